@@ -0,0 +1,124 @@
+package net.fortytwo.sesametools.benchmarks;
+
+import net.fortytwo.sesametools.caching.compact.CompactStore;
+import org.eclipse.rdf4j.common.iteration.CloseableIteration;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.sail.Sail;
+import org.eclipse.rdf4j.sail.SailConnection;
+import org.eclipse.rdf4j.sail.SailException;
+import org.eclipse.rdf4j.sail.memory.MemoryStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cache store backends available to <code>CachingSail</code>
+ * with respect to bulk loading and lookup by subject, the two operations a cache store performs most often.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CacheStoreBenchmark {
+    private static final String NS = "http://example.org/ns/";
+    private static final int STATEMENTS_PER_SUBJECT = 10;
+    private static final int PREDICATES = 50;
+
+    @Param({"memory", "compact"})
+    public String store;
+
+    @Param({"100000"})
+    public int statements;
+
+    private final ValueFactory valueFactory = SimpleValueFactory.getInstance();
+    private final Random random = new Random(42);
+
+    private Sail sail;
+    private SailConnection connection;
+    private int subjects;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SailException {
+        sail = createStore(store);
+        sail.initialize();
+        connection = sail.getConnection();
+        subjects = statements / STATEMENTS_PER_SUBJECT;
+        load(connection, statements);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SailException {
+        connection.close();
+        sail.shutDown();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void getStatementsBySubject(final Blackhole blackhole) throws SailException {
+        IRI subject = subject(random.nextInt(subjects));
+        try (CloseableIteration<? extends Statement, SailException> iter
+                     = connection.getStatements(subject, null, null, false)) {
+            while (iter.hasNext()) {
+                blackhole.consume(iter.next());
+            }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void bulkLoad() throws SailException {
+        Sail fresh = createStore(store);
+        fresh.initialize();
+        try (SailConnection sc = fresh.getConnection()) {
+            load(sc, statements);
+        } finally {
+            fresh.shutDown();
+        }
+    }
+
+    private void load(final SailConnection sc, final int count) throws SailException {
+        sc.begin();
+        for (int i = 0; i < count; i++) {
+            sc.addStatement(subject(i / STATEMENTS_PER_SUBJECT),
+                    valueFactory.createIRI(NS + "p" + (i % PREDICATES)),
+                    valueFactory.createLiteral(i));
+        }
+        sc.commit();
+    }
+
+    private IRI subject(final int i) {
+        return valueFactory.createIRI(NS + "s" + i);
+    }
+
+    private static Sail createStore(final String name) {
+        switch (name) {
+            case "memory":
+                return new MemoryStore();
+            case "compact":
+                return new CompactStore();
+            default:
+                throw new IllegalArgumentException("no such store: " + name);
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package net.fortytwo.sesametools.benchmarks;
+
+import net.fortytwo.sesametools.MultiStackableSail;
+import net.fortytwo.sesametools.RandomValueFactory;
+import net.fortytwo.sesametools.SingleContextSail;
+import net.fortytwo.sesametools.StatementGenerator;
+import net.fortytwo.sesametools.caching.CachingSail;
+import net.fortytwo.sesametools.constrained.ConstrainedSail;
+import net.fortytwo.sesametools.deduplication.DeduplicationSail;
+import net.fortytwo.sesametools.mappingsail.MappingSail;
+import net.fortytwo.sesametools.mappingsail.MappingSchema;
+import net.fortytwo.sesametools.readonly.ReadOnlySail;
+import net.fortytwo.sesametools.replay.RecorderSail;
+import net.fortytwo.sesametools.reposail.RepositorySail;
+import org.eclipse.rdf4j.common.iteration.CloseableIteration;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.QueryEvaluationException;
+import org.eclipse.rdf4j.query.QueryLanguage;
+import org.eclipse.rdf4j.query.algebra.TupleExpr;
+import org.eclipse.rdf4j.query.impl.MapBindingSet;
+import org.eclipse.rdf4j.query.impl.SimpleDataset;
+import org.eclipse.rdf4j.query.parser.QueryParserUtil;
+import org.eclipse.rdf4j.repository.sail.SailRepository;
+import org.eclipse.rdf4j.sail.Sail;
+import org.eclipse.rdf4j.sail.SailConnection;
+import org.eclipse.rdf4j.sail.SailException;
+import org.eclipse.rdf4j.sail.memory.MemoryStore;
+import org.eclipse.rdf4j.sail.nativerdf.NativeStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures the overhead of each stackable Sail in this project over a <code>MemoryStore</code>
+ * or a <code>NativeStore</code>, with respect to lookup by subject, SPARQL evaluation, single-statement transactions
+ * and bulk loading.
+ * Datasets are generated by a seeded <code>StatementGenerator</code>, so that runs are comparable,
+ * with a configurable skew in the frequency of subjects, predicates and objects.
+ * The <code>none</code> wrapper measures the base store alone, for reference.
+ * For example, to compare the wrappers over 1M statements in a native store:
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar SailWrapperBenchmark -p store=native -p statements=1000000
+ * </pre>
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SailWrapperBenchmark {
+    private static final String NS = "http://example.org/ns/";
+    private static final long SEED = 42;
+
+    private static final String QUERY = "SELECT ?p ?o WHERE { ?s ?p ?o }";
+
+    @Param({"none", "caching", "deduplication", "constrained", "mapping",
+            "singleContext", "readOnly", "recorder", "repository"})
+    public String wrapper;
+
+    @Param({"memory", "native"})
+    public String store;
+
+    @Param({"10000"})
+    public int statements;
+
+    @Param({"1.0"})
+    public double skew;
+
+    private final ValueFactory valueFactory = SimpleValueFactory.getInstance();
+    private final IRI context = valueFactory.createIRI(NS + "context");
+    private final Random random = new Random(SEED);
+
+    private List<Statement> dataset;
+    private TupleExpr query;
+    private RandomValueFactory writeGenerator;
+
+    private final List<File> dataDirs = new ArrayList<>();
+    private Sail baseSail;
+    private Sail sail;
+    private SailConnection connection;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dataset = generate(statements);
+        query = QueryParserUtil.parseTupleQuery(QueryLanguage.SPARQL, QUERY, null).getTupleExpr();
+        writeGenerator = new RandomValueFactory(valueFactory, SEED + 1);
+
+        baseSail = createStore();
+        baseSail.initialize();
+        load(baseSail, dataset);
+
+        sail = createWrapper(baseSail);
+        sail.initialize();
+        connection = sail.getConnection();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        connection.close();
+        sail.shutDown();
+        baseSail.shutDown();
+        deleteDataDirs();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void getStatementsBySubject(final Blackhole blackhole) throws SailException {
+        Resource subject = randomSubject();
+        try (CloseableIteration<? extends Statement, SailException> iter
+                     = connection.getStatements(subject, null, null, false)) {
+            while (iter.hasNext()) {
+                blackhole.consume(iter.next());
+            }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void evaluateBySubject(final Blackhole blackhole) throws SailException {
+        MapBindingSet bindings = new MapBindingSet();
+        bindings.addBinding("s", randomSubject());
+        try (CloseableIteration<? extends BindingSet, QueryEvaluationException> iter
+                     = connection.evaluate(query, null, bindings, false)) {
+            while (iter.hasNext()) {
+                blackhole.consume(iter.next());
+            }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void addStatement() throws SailException {
+        connection.begin();
+        connection.addStatement(
+                writeGenerator.randomResource(), writeGenerator.randomIRI(), writeGenerator.randomValue(), context);
+        connection.commit();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void bulkLoad() throws Exception {
+        Sail freshBase = createStore();
+        freshBase.initialize();
+        Sail fresh = createWrapper(freshBase);
+        fresh.initialize();
+        try {
+            load(fresh, dataset);
+        } finally {
+            fresh.shutDown();
+            freshBase.shutDown();
+        }
+    }
+
+    private Resource randomSubject() {
+        return dataset.get(random.nextInt(dataset.size())).getSubject();
+    }
+
+    // all statements are placed in a single context, which SingleContextSail and ConstrainedSail are restricted to
+    private List<Statement> generate(final int count) {
+        StatementGenerator generator = new StatementGenerator(valueFactory, SEED);
+        generator.setSubjects(Math.max(1, count / 10), skew);
+        generator.setPredicates(50, skew);
+        generator.setObjects(count, skew);
+
+        List<Statement> statements = new ArrayList<>(count);
+        generator.generate(count, st -> statements.add(valueFactory.createStatement(
+                st.getSubject(), st.getPredicate(), st.getObject(), context)));
+        return statements;
+    }
+
+    private void load(final Sail sail, final List<Statement> statements) throws SailException {
+        try (SailConnection sc = sail.getConnection()) {
+            sc.begin();
+            for (Statement st : statements) {
+                sc.addStatement(st.getSubject(), st.getPredicate(), st.getObject(), st.getContext());
+            }
+            sc.commit();
+        }
+    }
+
+    private Sail createStore() throws IOException {
+        switch (store) {
+            case "memory":
+                return new MemoryStore();
+            case "native":
+                File dir = Files.createTempDirectory("benchmark").toFile();
+                dataDirs.add(dir);
+                return new NativeStore(dir);
+            default:
+                throw new IllegalArgumentException("no such store: " + store);
+        }
+    }
+
+    // Note: the base store is initialized separately, so that the wrappers which initialize their base Sails
+    // are given a MultiStackableSail instead
+    private Sail createWrapper(final Sail base) {
+        Sail shared = new MultiStackableSail(base);
+        switch (wrapper) {
+            case "none":
+                return shared;
+            case "caching":
+                return new CachingSail(shared, true, false, false, statements);
+            case "deduplication":
+                return new DeduplicationSail(shared, statements);
+            case "constrained":
+                SimpleDataset readable = new SimpleDataset();
+                readable.addDefaultGraph(context);
+                SimpleDataset writable = new SimpleDataset();
+                writable.addDefaultGraph(context);
+                return new ConstrainedSail(shared, readable, writable, context, false);
+            case "mapping":
+                return new MappingSail(shared, new MappingSchema());
+            case "singleContext":
+                return new SingleContextSail(shared, context);
+            case "readOnly":
+                return new ReadOnlySail(shared);
+            case "recorder":
+                return new RecorderSail(shared, new OutputStream() {
+                    @Override
+                    public void write(final int b) {
+                        // discard the log, measuring only the cost of producing it
+                    }
+                });
+            case "repository":
+                return new RepositorySail(new SailRepository(shared));
+            default:
+                throw new IllegalArgumentException("no such wrapper: " + wrapper);
+        }
+    }
+
+    private void deleteDataDirs() throws IOException {
+        for (File dir : dataDirs) {
+            try (Stream<Path> paths = Files.walk(dir.toPath())) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+        dataDirs.clear();
+    }
+}
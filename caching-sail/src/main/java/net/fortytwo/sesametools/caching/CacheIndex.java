@@ -0,0 +1,344 @@
+package net.fortytwo.sesametools.caching;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+/**
+ * Keeps track of the keys which are resident in the cache of a <code>CachingSail</code>,
+ * together with the number of statements cached for each key,
+ * and decides which keys to evict when the statement capacity of the cache is exceeded.
+ * Note: a statement which is cached under more than one key is counted once per key,
+ * so the capacity is enforced conservatively.
+ * Keys which are being read from the cache may be pinned, and are not evicted until they are unpinned;
+ * if every other key is pinned, the capacity is exceeded temporarily.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class CacheIndex {
+    // LFU frequencies are halved after this many hits per resident key,
+    // so that keys which were popular once do not stay resident indefinitely
+    private static final int AGING_PERIOD_FACTOR = 10;
+
+    private final long capacity;
+    private final EvictionPolicy policy;
+    private final CacheStatistics statistics;
+
+    // in access order, for LRU and TinyLFU eviction
+    private final LinkedHashMap<CacheKey, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // for LFU eviction only
+    private final TreeSet<Entry> entriesByFrequency;
+    // for TinyLFU admission only
+    private final FrequencySketch sketch;
+
+    private long statementCount = 0;
+    private long clock = 0;
+    private long hitsSinceAging = 0;
+
+    public CacheIndex(final long capacity,
+                      final EvictionPolicy policy,
+                      final CacheStatistics statistics) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.statistics = statistics;
+
+        entriesByFrequency = EvictionPolicy.LFU == policy
+                ? new TreeSet<>(new FrequencyComparator())
+                : null;
+        sketch = EvictionPolicy.TINY_LFU == policy
+                ? new FrequencySketch(Math.min(capacity, Integer.MAX_VALUE))
+                : null;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public EvictionPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Records a request for the given key.
+     *
+     * @param key the requested key
+     * @return whether the key is resident in the cache
+     */
+    public synchronized boolean touch(final CacheKey key) {
+        if (null != sketch) {
+            sketch.increment(key);
+        }
+
+        // note: get() also moves the entry to the end of the access order
+        Entry e = entries.get(key);
+        if (null == e) {
+            statistics.recordMiss();
+            return false;
+        }
+
+        if (null != entriesByFrequency) {
+            entriesByFrequency.remove(e);
+            e.frequency++;
+            e.lastAccess = ++clock;
+            entriesByFrequency.add(e);
+
+            if (++hitsSinceAging >= AGING_PERIOD_FACTOR * Math.max(16, entries.size())) {
+                age();
+            }
+        }
+
+        statistics.recordHit();
+        return true;
+    }
+
+    /**
+     * Records a request for the given key, and if the key is resident, pins it so that it is not evicted
+     * before a matching call to {@link #unpin(CacheKey)}.
+     *
+     * @param key the requested key
+     * @return whether the key is resident in the cache, and has been pinned
+     */
+    public synchronized boolean touchAndPin(final CacheKey key) {
+        return touch(key) && pin(key);
+    }
+
+    /**
+     * Pins a key, if it is resident, so that it is not evicted before a matching call to {@link #unpin(CacheKey)}.
+     * Unlike {@link #touchAndPin(CacheKey)}, this does not count as a request for the key.
+     *
+     * @param key a key
+     * @return whether the key is resident in the cache, and has been pinned
+     */
+    public synchronized boolean pin(final CacheKey key) {
+        Entry e = entries.get(key);
+        if (null == e) {
+            return false;
+        }
+
+        e.pins++;
+        return true;
+    }
+
+    /**
+     * Releases a pin on a key.
+     * Has no effect if the key is no longer resident, e.g. because the cache has been cleared.
+     *
+     * @param key a pinned key
+     */
+    public synchronized void unpin(final CacheKey key) {
+        Entry e = entries.get(key);
+        if (null != e && e.pins > 0) {
+            e.pins--;
+        }
+    }
+
+    /**
+     * @param key a key
+     * @return whether the key is resident in the cache.
+     * Unlike {@link #touch(CacheKey)}, this does not count as a request for the key.
+     */
+    public synchronized boolean contains(final CacheKey key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * @param key a key which is not resident in the cache
+     * @return whether the key is worth loading into the cache, given the current eviction policy
+     */
+    public synchronized boolean admits(final CacheKey key) {
+        if (null == sketch || statementCount < capacity || entries.isEmpty()) {
+            return true;
+        }
+
+        // compare against the key which would actually be evicted, skipping pinned keys
+        Entry victim = chooseVictim(key);
+        return null != victim && sketch.frequency(key) > sketch.frequency(victim.key);
+    }
+
+    /**
+     * Marks a key as resident in the cache.
+     *
+     * @param key            a newly cached key
+     * @param statementCount the number of statements cached for the key
+     * @return the keys which must be evicted from the cache in order to make room for the new key.
+     * It is the caller's responsibility to remove the corresponding statements.
+     */
+    public synchronized List<CacheKey> add(final CacheKey key, final long statementCount) {
+        Entry e = new Entry(key, statementCount, ++clock);
+        e.lastAccess = clock;
+        Entry old = entries.put(key, e);
+        if (null != old) {
+            removeEntry(old);
+        }
+        if (null != entriesByFrequency) {
+            entriesByFrequency.add(e);
+        }
+        this.statementCount += statementCount;
+
+        List<CacheKey> victims = new LinkedList<>();
+        while (this.statementCount > capacity && entries.size() > 1) {
+            Entry victim = chooseVictim(key);
+            if (null == victim) {
+                break;
+            }
+            entries.remove(victim.key);
+            removeEntry(victim);
+            victims.add(victim.key);
+            statistics.recordEviction();
+        }
+
+        return victims;
+    }
+
+    /**
+     * Adjusts the statement count of a resident key after statements have been written through to the cache.
+     * Has no effect if the key is not resident.
+     *
+     * @param key   a key
+     * @param delta the number of statements added to the key
+     */
+    public synchronized void grow(final CacheKey key, final long delta) {
+        Entry e = entries.get(key);
+        if (null != e) {
+            e.statementCount += delta;
+            statementCount += delta;
+        }
+    }
+
+    /**
+     * Marks a key as no longer resident in the cache
+     *
+     * @param key a key
+     */
+    public synchronized void remove(final CacheKey key) {
+        Entry e = entries.remove(key);
+        if (null != e) {
+            removeEntry(e);
+        }
+    }
+
+    /**
+     * @return a logical timestamp, to be passed to {@link #removeAddedAfter(long, Predicate)}
+     */
+    public synchronized long getClock() {
+        return clock;
+    }
+
+    /**
+     * Marks keys as no longer resident in the cache if they have been added since a given time, pinned or not.
+     *
+     * @param time   a timestamp previously retrieved with {@link #getClock()}
+     * @param filter the keys to consider
+     * @return the removed keys.
+     * It is the caller's responsibility to remove the corresponding statements.
+     */
+    public synchronized List<CacheKey> removeAddedAfter(final long time, final Predicate<CacheKey> filter) {
+        List<CacheKey> removed = new LinkedList<>();
+        Iterator<Entry> iter = entries.values().iterator();
+        while (iter.hasNext()) {
+            Entry e = iter.next();
+            if (e.added > time && filter.test(e.key)) {
+                iter.remove();
+                removeEntry(e);
+                removed.add(e.key);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Marks all keys as no longer resident in the cache
+     */
+    public synchronized void clear() {
+        entries.clear();
+        if (null != entriesByFrequency) {
+            entriesByFrequency.clear();
+        }
+        statementCount = 0;
+    }
+
+    /**
+     * @return the keys resident in the cache, in the order in which they would be evicted
+     */
+    public synchronized List<CacheKey> getKeys() {
+        List<CacheKey> keys = new ArrayList<>(entries.size());
+        for (Entry e : null != entriesByFrequency ? entriesByFrequency : entries.values()) {
+            keys.add(e.key);
+        }
+        return keys;
+    }
+
+    /**
+     * @return the number of keys resident in the cache
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the total number of statements cached, counted per key
+     */
+    public synchronized long getStatementCount() {
+        return statementCount;
+    }
+
+    private void removeEntry(final Entry e) {
+        if (null != entriesByFrequency) {
+            entriesByFrequency.remove(e);
+        }
+        statementCount -= e.statementCount;
+    }
+
+    private void age() {
+        List<Entry> all = new ArrayList<>(entriesByFrequency);
+        entriesByFrequency.clear();
+        for (Entry e : all) {
+            e.frequency /= 2;
+            entriesByFrequency.add(e);
+        }
+        hitsSinceAging = 0;
+    }
+
+    private Entry chooseVictim(final CacheKey newKey) {
+        Iterator<Entry> iter = null != entriesByFrequency
+                ? entriesByFrequency.iterator()
+                : entries.values().iterator();
+
+        // neither the newly added key nor any pinned key is a victim
+        while (iter.hasNext()) {
+            Entry e = iter.next();
+            if (0 == e.pins && !e.key.equals(newKey)) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    private static class Entry {
+        private final CacheKey key;
+        private long statementCount;
+        private final long added;
+        private long frequency = 0;
+        private long lastAccess;
+        private int pins = 0;
+
+        private Entry(final CacheKey key, final long statementCount, final long added) {
+            this.key = key;
+            this.statementCount = statementCount;
+            this.added = added;
+        }
+    }
+
+    private static class FrequencyComparator implements Comparator<Entry> {
+        @Override
+        public int compare(final Entry first, final Entry second) {
+            int c = Long.compare(first.frequency, second.frequency);
+            return 0 == c ? Long.compare(first.lastAccess, second.lastAccess) : c;
+        }
+    }
+}
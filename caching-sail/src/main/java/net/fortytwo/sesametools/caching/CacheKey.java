@@ -0,0 +1,82 @@
+package net.fortytwo.sesametools.caching;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.Value;
+
+/**
+ * A unit of caching: all statements with a given value in a given position
+ * (subject, predicate or object).
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class CacheKey {
+    public enum Position {
+        SUBJECT, PREDICATE, OBJECT
+    }
+
+    private final Position position;
+    private final Value value;
+
+    public CacheKey(final Position position, final Value value) {
+        if (null == position || null == value) {
+            throw new IllegalArgumentException("null position or value");
+        }
+
+        this.position = position;
+        this.value = value;
+    }
+
+    public Position getPosition() {
+        return position;
+    }
+
+    public Value getValue() {
+        return value;
+    }
+
+    public Resource getSubject() {
+        return Position.SUBJECT == position ? (Resource) value : null;
+    }
+
+    public IRI getPredicate() {
+        return Position.PREDICATE == position ? (IRI) value : null;
+    }
+
+    public Value getObject() {
+        return Position.OBJECT == position ? value : null;
+    }
+
+    /**
+     * @param st a statement
+     * @return whether the given statement belongs to this key
+     */
+    public boolean matches(final Statement st) {
+        switch (position) {
+            case SUBJECT:
+                return value.equals(st.getSubject());
+            case PREDICATE:
+                return value.equals(st.getPredicate());
+            default:
+                return value.equals(st.getObject());
+        }
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        return other instanceof CacheKey
+                && position == ((CacheKey) other).position
+                && value.equals(((CacheKey) other).value);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * position.hashCode() + value.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return position + " " + value;
+    }
+}
@@ -0,0 +1,237 @@
+package net.fortytwo.sesametools.caching;
+
+import org.eclipse.rdf4j.common.iteration.CloseableIteration;
+import org.eclipse.rdf4j.common.iteration.CloseableIteratorIteration;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.sail.Sail;
+import org.eclipse.rdf4j.sail.SailConnection;
+import org.eclipse.rdf4j.sail.SailException;
+
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Predicate;
+
+/**
+ * Loads statements from a base <code>Sail</code> into the cache of a <code>CachingSail</code>,
+ * and removes the statements of evicted keys.
+ * A loader is shared by all connections to a <code>CachingSail</code>;
+ * concurrent requests to load the same key result in a single scan of the base <code>Sail</code>,
+ * the other requesting threads waiting for its outcome.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class CacheLoader {
+    private final Sail cache;
+    private final Sail baseSail;
+    private final CacheIndex cacheIndex;
+    private final boolean cacheSubject, cachePredicate, cacheObject;
+
+    private final ConcurrentMap<CacheKey, CompletableFuture<Boolean>> pendingLoads = new ConcurrentHashMap<>();
+
+    // serializes the publication of loaded keys with the removal of evicted keys,
+    // so that an eviction never removes statements which a newly resident key depends on
+    private final Object publicationLock = new Object();
+    // incremented on every invalidation, so that statements retrieved before a write are not cached after it
+    private long version = 0;
+
+    public CacheLoader(final Sail cache,
+                       final Sail baseSail,
+                       final CacheIndex cacheIndex,
+                       final boolean cacheSubject,
+                       final boolean cachePredicate,
+                       final boolean cacheObject) {
+        this.cache = cache;
+        this.baseSail = baseSail;
+        this.cacheIndex = cacheIndex;
+        this.cacheSubject = cacheSubject;
+        this.cachePredicate = cachePredicate;
+        this.cacheObject = cacheObject;
+    }
+
+    public CacheIndex getCacheIndex() {
+        return cacheIndex;
+    }
+
+    /**
+     * Makes a key resident in the cache, unless it is already resident.
+     * If another thread is already loading the same key, waits for that thread instead of loading the key again.
+     * Statements are retrieved through a separate connection to the base Sail,
+     * so that the uncommitted changes of the requesting connection are never cached.
+     *
+     * @param key the key to load
+     * @return whether the key is resident in the cache.
+     * If false, the key is not to be cached, and the caller should query the base Sail directly.
+     * @throws SailException if the key cannot be loaded
+     */
+    public boolean load(final CacheKey key) throws SailException {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        CompletableFuture<Boolean> existing = pendingLoads.putIfAbsent(key, future);
+        if (null != existing) {
+            return await(existing);
+        }
+
+        try {
+            // the key may have been loaded by another thread since the caller last checked
+            boolean loaded = cacheIndex.contains(key) || fill(key);
+            future.complete(loaded);
+            return loaded;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            pendingLoads.remove(key, future);
+        }
+    }
+
+    private boolean await(final CompletableFuture<Boolean> future) throws SailException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SailException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SailException) {
+                throw (SailException) e.getCause();
+            } else {
+                throw new SailException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Makes a key resident in the cache with a previously retrieved set of statements,
+     * e.g. from a snapshot, unless the key is already resident.
+     *
+     * @param key        the key to restore
+     * @param statements all statements of the key
+     * @return whether the key is resident in the cache
+     * @throws SailException if the statements cannot be added to the cache
+     */
+    public boolean restore(final CacheKey key, final Collection<Statement> statements) throws SailException {
+        return cacheIndex.contains(key)
+                || store(key, new CloseableIteratorIteration<>(statements.iterator()), getVersion());
+    }
+
+    /**
+     * Removes keys which may have become resident while they were being written to by an uncommitted transaction,
+     * and which may therefore lack the writes of that transaction.
+     * Also prevents any load which is in progress from publishing statements retrieved before the writes.
+     * To be called after the transaction has been committed to the base Sail.
+     *
+     * @param time    the time of the first write of the transaction, as given by {@link CacheIndex#getClock()}
+     * @param written the keys written to by the transaction
+     * @throws SailException if the statements of the removed keys cannot be removed from the cache
+     */
+    public void invalidate(final long time, final Predicate<CacheKey> written) throws SailException {
+        synchronized (publicationLock) {
+            version++;
+
+            List<CacheKey> stale = cacheIndex.removeAddedAfter(time, written);
+            if (stale.size() > 0) {
+                try (SailConnection invalidationConnection = cache.getConnection()) {
+                    evict(stale, invalidationConnection);
+                }
+            }
+        }
+    }
+
+    private long getVersion() {
+        synchronized (publicationLock) {
+            return version;
+        }
+    }
+
+    // Loads all statements for the given key into the cache, evicting other keys as necessary.
+    // Returns false if the key is not to be cached, in which case the cache is unchanged.
+    private boolean fill(final CacheKey key) throws SailException {
+        if (!cacheIndex.admits(key)) {
+            return false;
+        }
+
+        long version = getVersion();
+        try (SailConnection baseConnection = baseSail.getConnection();
+             CloseableIteration<? extends Statement, SailException> iter = baseConnection.getStatements(
+                     key.getSubject(), key.getPredicate(), key.getObject(), false)) {
+            return store(key, iter, version);
+        }
+    }
+
+    private boolean store(final CacheKey key,
+                          final CloseableIteration<? extends Statement, SailException> statements,
+                          final long version)
+            throws SailException {
+        long count = 0;
+
+        // Note: a separate connection is used, so that the cache may be filled
+        // while the requesting connection has an active transaction
+        try (SailConnection fillConnection = cache.getConnection()) {
+            fillConnection.begin();
+
+            while (statements.hasNext()) {
+                // a key which would fill the cache on its own is not cached at all
+                if (++count > cacheIndex.getCapacity()) {
+                    fillConnection.rollback();
+                    return false;
+                }
+
+                Statement st = statements.next();
+                fillConnection.addStatement(st.getSubject(), st.getPredicate(), st.getObject(), st.getContext());
+            }
+
+            synchronized (publicationLock) {
+                // a write has been committed since the statements were retrieved, and may be missing from them
+                if (version != this.version) {
+                    fillConnection.rollback();
+                    return false;
+                }
+
+                fillConnection.commit();
+
+                List<CacheKey> victims = cacheIndex.add(key, count);
+                if (victims.size() > 0) {
+                    evict(victims, fillConnection);
+                }
+            }
+        }
+
+        return true;
+    }
+
+    private void evict(final List<CacheKey> victims, final SailConnection fillConnection) throws SailException {
+        fillConnection.begin();
+
+        for (CacheKey victim : victims) {
+            List<Statement> toRemove = new LinkedList<>();
+            try (CloseableIteration<? extends Statement, SailException> iter = fillConnection.getStatements(
+                    victim.getSubject(), victim.getPredicate(), victim.getObject(), false)) {
+                while (iter.hasNext()) {
+                    Statement st = iter.next();
+                    // keep statements which are still needed by other resident keys
+                    if (!isCoveredByOtherKey(st, victim.getPosition())) {
+                        toRemove.add(st);
+                    }
+                }
+            }
+
+            for (Statement st : toRemove) {
+                fillConnection.removeStatements(st.getSubject(), st.getPredicate(), st.getObject(), st.getContext());
+            }
+        }
+
+        fillConnection.commit();
+    }
+
+    private boolean isCoveredByOtherKey(final Statement st, final CacheKey.Position evicted) {
+        return (cacheSubject && CacheKey.Position.SUBJECT != evicted
+                && cacheIndex.contains(new CacheKey(CacheKey.Position.SUBJECT, st.getSubject())))
+                || (cachePredicate && CacheKey.Position.PREDICATE != evicted
+                && cacheIndex.contains(new CacheKey(CacheKey.Position.PREDICATE, st.getPredicate())))
+                || (cacheObject && CacheKey.Position.OBJECT != evicted
+                && cacheIndex.contains(new CacheKey(CacheKey.Position.OBJECT, st.getObject())));
+    }
+}
@@ -0,0 +1,241 @@
+package net.fortytwo.sesametools.caching;
+
+import org.eclipse.rdf4j.common.iteration.CloseableIteration;
+import org.eclipse.rdf4j.model.BNode;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Literal;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.sail.SailConnection;
+import org.eclipse.rdf4j.sail.SailException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reads and writes compact binary snapshots of the resident keys of a <code>CachingSail</code>,
+ * together with their cached statements.
+ * Keys are written in eviction order, least valuable first, so that a restored cache evicts them in the same order.
+ * Each distinct value is written only once, and later referred to by its position in the snapshot.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+class CacheSnapshot {
+    private static final int MAGIC = 0x43534E50;
+    private static final int VERSION = 1;
+
+    private static final int NO_CONTEXT = -1;
+
+    private static final byte
+            IRI_VALUE = 1,
+            BNODE_VALUE = 2,
+            LANGUAGE_LITERAL_VALUE = 3,
+            TYPED_LITERAL_VALUE = 4;
+
+    private CacheSnapshot() {
+    }
+
+    /**
+     * Writes a snapshot, replacing any previous snapshot only once the new one is complete.
+     *
+     * @param file            the snapshot file
+     * @param keys            the resident keys, in eviction order
+     * @param cacheConnection a connection to the cache store
+     * @throws IOException   if the snapshot cannot be written
+     * @throws SailException if the cache store cannot be read
+     */
+    static void write(final File file,
+                      final List<CacheKey> keys,
+                      final SailConnection cacheConnection) throws IOException, SailException {
+        File tmp = new File(file.getPath() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(tmp))))) {
+            Map<Value, Integer> ids = new HashMap<>();
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(keys.size());
+
+            for (CacheKey key : keys) {
+                List<Statement> statements = new ArrayList<>();
+                try (CloseableIteration<? extends Statement, SailException> iter = cacheConnection.getStatements(
+                        key.getSubject(), key.getPredicate(), key.getObject(), false)) {
+                    while (iter.hasNext()) {
+                        statements.add(iter.next());
+                    }
+                }
+
+                out.writeByte(key.getPosition().ordinal());
+                writeValue(key.getValue(), out, ids);
+                out.writeInt(statements.size());
+                for (Statement st : statements) {
+                    writeValue(st.getSubject(), out, ids);
+                    writeValue(st.getPredicate(), out, ids);
+                    writeValue(st.getObject(), out, ids);
+                    if (null == st.getContext()) {
+                        out.writeInt(NO_CONTEXT);
+                    } else {
+                        writeValue(st.getContext(), out, ids);
+                    }
+                }
+            }
+        }
+
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Restores the keys of a snapshot, in order, through the given loader
+     *
+     * @param file         the snapshot file
+     * @param valueFactory a factory for the values of restored statements
+     * @param loader       the loader through which keys are made resident
+     * @param stopped      checked before each key; restoration ends early once it is true
+     * @return the number of keys restored
+     * @throws IOException   if the snapshot cannot be read or is not a valid snapshot
+     * @throws SailException if the cache store cannot be written
+     */
+    static int read(final File file,
+                    final ValueFactory valueFactory,
+                    final CacheLoader loader,
+                    final BooleanSupplier stopped) throws IOException, SailException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(file))))) {
+            if (MAGIC != in.readInt()) {
+                throw new IOException("not a cache snapshot: " + file);
+            }
+            int version = in.readInt();
+            if (VERSION != version) {
+                throw new IOException("unsupported cache snapshot version: " + version);
+            }
+
+            List<Value> values = new ArrayList<>();
+            CacheKey.Position[] positions = CacheKey.Position.values();
+
+            int restored = 0;
+            int keyCount = in.readInt();
+            for (int i = 0; i < keyCount && !stopped.getAsBoolean(); i++) {
+                CacheKey key = new CacheKey(positions[in.readByte()], readValue(in, valueFactory, values));
+
+                int statementCount = in.readInt();
+                List<Statement> statements = new ArrayList<>(statementCount);
+                for (int j = 0; j < statementCount; j++) {
+                    Resource subj = (Resource) readValue(in, valueFactory, values);
+                    IRI pred = (IRI) readValue(in, valueFactory, values);
+                    Value obj = readValue(in, valueFactory, values);
+                    Resource context = (Resource) readValue(in, valueFactory, values);
+                    statements.add(null == context
+                            ? valueFactory.createStatement(subj, pred, obj)
+                            : valueFactory.createStatement(subj, pred, obj, context));
+                }
+
+                if (loader.restore(key, statements)) {
+                    restored++;
+                }
+            }
+
+            return restored;
+        }
+    }
+
+    private static void writeValue(final Value value,
+                                   final DataOutputStream out,
+                                   final Map<Value, Integer> ids) throws IOException {
+        Integer id = ids.get(value);
+        if (null != id) {
+            out.writeInt(id);
+            return;
+        }
+
+        // the first occurrence of a value is followed by its definition
+        id = ids.size();
+        ids.put(value, id);
+        out.writeInt(id);
+
+        if (value instanceof IRI) {
+            out.writeByte(IRI_VALUE);
+            writeString(value.stringValue(), out);
+        } else if (value instanceof BNode) {
+            out.writeByte(BNODE_VALUE);
+            writeString(((BNode) value).getID(), out);
+        } else {
+            Literal literal = (Literal) value;
+            if (literal.getLanguage().isPresent()) {
+                out.writeByte(LANGUAGE_LITERAL_VALUE);
+                writeString(literal.getLabel(), out);
+                writeString(literal.getLanguage().get(), out);
+            } else {
+                out.writeByte(TYPED_LITERAL_VALUE);
+                writeString(literal.getLabel(), out);
+                writeString(literal.getDatatype().stringValue(), out);
+            }
+        }
+    }
+
+    private static Value readValue(final DataInputStream in,
+                                   final ValueFactory valueFactory,
+                                   final List<Value> values) throws IOException {
+        int id = in.readInt();
+        if (NO_CONTEXT == id) {
+            return null;
+        } else if (id < values.size()) {
+            return values.get(id);
+        } else if (id > values.size()) {
+            throw new IOException("corrupt cache snapshot: undefined value " + id);
+        }
+
+        Value value;
+        byte type = in.readByte();
+        switch (type) {
+            case IRI_VALUE:
+                value = valueFactory.createIRI(readString(in));
+                break;
+            case BNODE_VALUE:
+                value = valueFactory.createBNode(readString(in));
+                break;
+            case LANGUAGE_LITERAL_VALUE:
+                value = valueFactory.createLiteral(readString(in), readString(in));
+                break;
+            case TYPED_LITERAL_VALUE:
+                value = valueFactory.createLiteral(readString(in), valueFactory.createIRI(readString(in)));
+                break;
+            default:
+                throw new IOException("corrupt cache snapshot: unknown value type " + type);
+        }
+
+        values.add(value);
+        return value;
+    }
+
+    // Note: DataOutput.writeUTF is not used, as it is limited to strings of 64KB
+    private static void writeString(final String s, final DataOutputStream out) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
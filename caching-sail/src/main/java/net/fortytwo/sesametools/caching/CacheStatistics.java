@@ -0,0 +1,85 @@
+package net.fortytwo.sesametools.caching;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running counters describing the effectiveness of a <code>CachingSail</code>
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class CacheStatistics {
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong patternHits = new AtomicLong();
+    private final AtomicLong patternMisses = new AtomicLong();
+
+    /**
+     * @return the number of requests answered from keys already resident in the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of requests for keys which were not resident in the cache
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of keys which have been discarded in order to respect the capacity of the cache
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of requests answered from the pattern cache
+     */
+    public long getPatternHits() {
+        return patternHits.get();
+    }
+
+    /**
+     * @return the number of requests for patterns whose results were not in the pattern cache
+     */
+    public long getPatternMisses() {
+        return patternMisses.get();
+    }
+
+    public void reset() {
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+        patternHits.set(0);
+        patternMisses.set(0);
+    }
+
+    void recordHit() {
+        hits.incrementAndGet();
+    }
+
+    void recordMiss() {
+        misses.incrementAndGet();
+    }
+
+    void recordEviction() {
+        evictions.incrementAndGet();
+    }
+
+    void recordPatternHit() {
+        patternHits.incrementAndGet();
+    }
+
+    void recordPatternMiss() {
+        patternMisses.incrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+        return "hits: " + getHits() + ", misses: " + getMisses() + ", evictions: " + getEvictions()
+                + ", pattern hits: " + getPatternHits() + ", pattern misses: " + getPatternMisses();
+    }
+}
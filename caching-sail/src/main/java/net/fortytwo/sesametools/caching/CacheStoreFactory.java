@@ -0,0 +1,17 @@
+package net.fortytwo.sesametools.caching;
+
+import org.eclipse.rdf4j.sail.Sail;
+
+/**
+ * A source of the <code>Sail</code> in which a <code>CachingSail</code> keeps its cached statements.
+ * The cache store is created and initialized when the <code>CachingSail</code> is initialized,
+ * and shut down along with it.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public interface CacheStoreFactory {
+    /**
+     * @return a new, uninitialized <code>Sail</code>
+     */
+    Sail createCacheStore();
+}
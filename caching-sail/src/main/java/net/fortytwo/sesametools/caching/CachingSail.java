@@ -1,8 +1,8 @@
 
 package net.fortytwo.sesametools.caching;
 
-import org.eclipse.rdf4j.model.IRI;
-import org.eclipse.rdf4j.model.Resource;
+import net.fortytwo.sesametools.MetricsSource;
+import net.fortytwo.sesametools.SailMetrics;
 import org.eclipse.rdf4j.model.Value;
 import org.eclipse.rdf4j.model.ValueFactory;
 import org.eclipse.rdf4j.sail.Sail;
@@ -11,50 +11,90 @@ import org.eclipse.rdf4j.sail.SailException;
 import org.eclipse.rdf4j.sail.StackableSail;
 import org.eclipse.rdf4j.sail.helpers.AbstractSail;
 import org.eclipse.rdf4j.sail.memory.MemoryStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.util.HashSet;
-import java.util.Set;
+import java.io.IOException;
 
 /**
  * A <code>Sail</code> which caches statements retrieved from a base <code>Sail</code>
- * in an internal <code>MemoryStore</code>, speeding up subsequent queries for the same data.
+ * in an internal cache store (by default, a <code>MemoryStore</code>),
+ * speeding up subsequent queries for the same data.
+ * Statements are cached by subject, predicate and/or object, and the total number of cached statements
+ * is bounded by a capacity, beyond which keys are evicted according to an {@link EvictionPolicy}.
+ * Optionally, the contents of the cache are saved to a snapshot file on shutdown and restored on initialization,
+ * so that a restarted <code>CachingSail</code> does not start cold.
  *
  * @author Joshua Shinavier (http://fortytwo.net)
  */
-// Note: assumes that the value factories of the base Sail and the MemoryStore
-// cache are compatible.
-public class CachingSail extends AbstractSail implements StackableSail {
+// Note: assumes that the value factories of the base Sail and the cache store
+// are compatible.
+public class CachingSail extends AbstractSail implements StackableSail, MetricsSource {
     private static final long DEFAULT_CAPACITY = 1000000L;
+    private static final EvictionPolicy DEFAULT_EVICTION_POLICY = EvictionPolicy.LRU;
+    private static final CacheStoreFactory DEFAULT_CACHE_STORE_FACTORY = MemoryStore::new;
 
     private boolean cacheSubject, cachePredicate, cacheObject;
 
     private Sail baseSail;
     private Sail cache;
+    private CacheStoreFactory cacheStoreFactory = DEFAULT_CACHE_STORE_FACTORY;
 
-    private Set<Resource> cachedSubjects;
-    private Set<IRI> cachedPredicates;
-    private Set<Value> cachedObjects;
+    private CacheIndex cacheIndex;
+    private CacheLoader cacheLoader;
+    private PatternCache patternCache;
+    private StatementCounts statementCounts;
+    private long patternCacheCapacity = 0;
+    private final CacheStatistics statistics = new CacheStatistics();
 
     private long capacity;
+    private EvictionPolicy evictionPolicy;
+
+    private File snapshotFile;
+    private boolean restoreInBackground = false;
+    private Thread restoreThread;
+    private volatile boolean shuttingDown;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
     public CachingSail(final Sail baseSail,
                        final boolean cacheSubject,
                        final boolean cachePredicate,
                        final boolean cacheObject,
                        final long capacity) {
+        this(baseSail, cacheSubject, cachePredicate, cacheObject, capacity, DEFAULT_EVICTION_POLICY);
+    }
+
+    /**
+     * @param baseSail       the Sail whose statements are to be cached
+     * @param cacheSubject   whether to cache statements by subject
+     * @param cachePredicate whether to cache statements by predicate
+     * @param cacheObject    whether to cache statements by object
+     * @param capacity       the maximum number of statements to keep in the cache.
+     *                       If not positive, a default capacity is used.
+     * @param evictionPolicy the policy with which to choose keys to evict when the capacity is exceeded.
+     *                       If null, a default policy is used.
+     */
+    public CachingSail(final Sail baseSail,
+                       final boolean cacheSubject,
+                       final boolean cachePredicate,
+                       final boolean cacheObject,
+                       final long capacity,
+                       final EvictionPolicy evictionPolicy) {
         this.baseSail = baseSail;
         this.cacheSubject = cacheSubject;
         this.cachePredicate = cachePredicate;
         this.cacheObject = cacheObject;
 
         this.capacity = (capacity <= 0) ? DEFAULT_CAPACITY : capacity;
+        this.evictionPolicy = (null == evictionPolicy) ? DEFAULT_EVICTION_POLICY : evictionPolicy;
     }
 
     public SailConnection getConnectionInternal() throws SailException {
         return new CachingSailConnection(this, baseSail, cache,
                 cacheSubject, cachePredicate, cacheObject,
-                cachedSubjects, cachedPredicates, cachedObjects);
+                cacheLoader, patternCache, statementCounts);
     }
 
     @Override
@@ -70,19 +110,26 @@ public class CachingSail extends AbstractSail implements StackableSail {
     public void initializeInternal() throws SailException {
         baseSail.initialize();
 
-        cache = new MemoryStore();
+        cache = cacheStoreFactory.createCacheStore();
         cache.initialize();
 
-        if (cacheSubject) {
-            cachedSubjects = new HashSet<>();
-        }
-
-        if (cachePredicate) {
-            cachedPredicates = new HashSet<>();
-        }
+        cacheIndex = new CacheIndex(capacity, evictionPolicy, statistics);
+        cacheLoader = new CacheLoader(cache, baseSail, cacheIndex, cacheSubject, cachePredicate, cacheObject);
+        statementCounts = new StatementCounts(baseSail);
+        patternCache = patternCacheCapacity > 0
+                ? new PatternCache(patternCacheCapacity, statistics)
+                : null;
 
-        if (cacheObject) {
-            cachedObjects = new HashSet<>();
+        shuttingDown = false;
+        if (null != snapshotFile && snapshotFile.exists()) {
+            if (restoreInBackground) {
+                // until restoration is complete, requests for keys not yet restored are served from the base Sail
+                restoreThread = new Thread(this::restoreSnapshot, "cache snapshot restore");
+                restoreThread.setDaemon(true);
+                restoreThread.start();
+            } else {
+                restoreSnapshot();
+            }
         }
     }
 
@@ -97,6 +144,21 @@ public class CachingSail extends AbstractSail implements StackableSail {
     }
 
     public void shutDownInternal() throws SailException {
+        shuttingDown = true;
+        if (null != restoreThread) {
+            try {
+                restoreThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SailException(e);
+            }
+            restoreThread = null;
+        }
+
+        if (null != snapshotFile) {
+            saveSnapshot();
+        }
+
         baseSail.shutDown();
         cache.shutDown();
     }
@@ -112,4 +174,167 @@ public class CachingSail extends AbstractSail implements StackableSail {
     public long getCapacity() {
         return this.capacity;
     }
+
+    /**
+     * Sets the source of the Sail in which cached statements are kept.
+     * Must be called before this Sail is initialized.
+     *
+     * @param factory a cache store factory, e.g. <code>CompactStore::new</code>
+     */
+    public void setCacheStoreFactory(final CacheStoreFactory factory) {
+        if (isInitialized()) {
+            throw new IllegalStateException("cache store must be set before initialization");
+        }
+
+        this.cacheStoreFactory = null == factory ? DEFAULT_CACHE_STORE_FACTORY : factory;
+    }
+
+    /**
+     * Enables caching of the results of individual statement patterns, in addition to caching by key.
+     * With the pattern cache enabled, a pattern which binds more than the cached position
+     * (e.g. a subject and a predicate, when caching by subject) is answered from the pattern cache
+     * rather than by caching the entire key, unless the key is already resident.
+     * Must be called before this Sail is initialized.
+     *
+     * @param capacity the maximum number of statements to keep in the pattern cache,
+     *                 or zero (the default) to disable the pattern cache
+     */
+    public void setPatternCacheCapacity(final long capacity) {
+        if (isInitialized()) {
+            throw new IllegalStateException("pattern cache must be configured before initialization");
+        }
+
+        this.patternCacheCapacity = Math.max(0, capacity);
+    }
+
+    public long getPatternCacheCapacity() {
+        return patternCacheCapacity;
+    }
+
+    /**
+     * Sets a file in which to save the resident keys and cached statements on shutdown,
+     * and from which to restore them on initialization.
+     * Note: a snapshot reflects the base Sail at the time of shutdown,
+     * so it must not be used if the base Sail may have been modified in the meantime.
+     * Must be called before this Sail is initialized.
+     *
+     * @param file                the snapshot file, or null (the default) to start with an empty cache
+     * @param restoreInBackground whether to restore the snapshot in a background thread,
+     *                            rather than during initialization
+     */
+    public void setSnapshotFile(final File file, final boolean restoreInBackground) {
+        if (isInitialized()) {
+            throw new IllegalStateException("snapshot file must be set before initialization");
+        }
+
+        this.snapshotFile = file;
+        this.restoreInBackground = restoreInBackground;
+    }
+
+    public File getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    /**
+     * @return whether a snapshot is still being restored in the background
+     */
+    public boolean isRestoring() {
+        Thread t = restoreThread;
+        return null != t && t.isAlive();
+    }
+
+    /**
+     * Loads the given keys into the cache ahead of any requests for them,
+     * e.g. a list of frequently requested subjects.
+     *
+     * @param position the position of the keys, which must be one of the cached positions
+     * @param values   the values of the keys
+     * @return the number of the given keys which are resident in the cache afterwards
+     * @throws SailException if the base Sail cannot be read
+     */
+    public int warmUp(final CacheKey.Position position,
+                      final Iterable<? extends Value> values) throws SailException {
+        if (!isInitialized()) {
+            throw new IllegalStateException("cache must be initialized before it is warmed up");
+        }
+        if (!isCached(position)) {
+            throw new IllegalArgumentException("statements are not cached by " + position);
+        }
+
+        int resident = 0;
+        for (Value value : values) {
+            if (cacheLoader.load(new CacheKey(position, value))) {
+                resident++;
+            }
+        }
+        return resident;
+    }
+
+    /**
+     * Discards the statement counts and context list maintained by this Sail,
+     * so that they are retrieved from the base Sail again when next needed.
+     * To be called after the base Sail has been modified other than through this Sail.
+     */
+    public void invalidateStatementCounts() {
+        if (null != statementCounts) {
+            statementCounts.invalidate();
+        }
+    }
+
+    public EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    /**
+     * @return hit, miss and eviction counters for this cache
+     */
+    public CacheStatistics getStatistics() {
+        return statistics;
+    }
+
+    @Override
+    public void registerMetrics(final SailMetrics metrics) {
+        metrics.registerGauge("cache.hits", statistics::getHits);
+        metrics.registerGauge("cache.misses", statistics::getMisses);
+        metrics.registerGauge("cache.evictions", statistics::getEvictions);
+        metrics.registerGauge("cache.patternHits", statistics::getPatternHits);
+        metrics.registerGauge("cache.patternMisses", statistics::getPatternMisses);
+        metrics.registerGauge("cache.statements", this::getCachedStatementCount);
+    }
+
+    /**
+     * @return the number of statements currently held in the cache, counted per cached key
+     */
+    public long getCachedStatementCount() {
+        return null == cacheIndex ? 0 : cacheIndex.getStatementCount();
+    }
+
+    private boolean isCached(final CacheKey.Position position) {
+        switch (position) {
+            case SUBJECT:
+                return cacheSubject;
+            case PREDICATE:
+                return cachePredicate;
+            default:
+                return cacheObject;
+        }
+    }
+
+    // Note: a missing or unreadable snapshot is not an error; the cache simply starts cold
+    private void restoreSnapshot() {
+        try {
+            int restored = CacheSnapshot.read(snapshotFile, getValueFactory(), cacheLoader, () -> shuttingDown);
+            logger.info("restored " + restored + " cached keys from " + snapshotFile);
+        } catch (IOException | SailException e) {
+            logger.warn("failed to restore cache snapshot from " + snapshotFile, e);
+        }
+    }
+
+    private void saveSnapshot() {
+        try (SailConnection sc = cache.getConnection()) {
+            CacheSnapshot.write(snapshotFile, cacheIndex.getKeys(), sc);
+        } catch (IOException | SailException e) {
+            logger.error("failed to save cache snapshot to " + snapshotFile, e);
+        }
+    }
 }
@@ -1,6 +1,9 @@
 package net.fortytwo.sesametools.caching;
 
 import org.eclipse.rdf4j.common.iteration.CloseableIteration;
+import org.eclipse.rdf4j.common.iteration.CloseableIteratorIteration;
+import org.eclipse.rdf4j.common.iteration.IterationWrapper;
+import net.fortytwo.sesametools.CompoundCloseableIteration;
 import net.fortytwo.sesametools.SailConnectionTripleSource;
 import org.eclipse.rdf4j.model.IRI;
 import org.eclipse.rdf4j.model.Namespace;
@@ -11,16 +14,28 @@ import org.eclipse.rdf4j.model.ValueFactory;
 import org.eclipse.rdf4j.query.BindingSet;
 import org.eclipse.rdf4j.query.Dataset;
 import org.eclipse.rdf4j.query.QueryEvaluationException;
+import org.eclipse.rdf4j.query.algebra.ArbitraryLengthPath;
+import org.eclipse.rdf4j.query.algebra.DescribeOperator;
+import org.eclipse.rdf4j.query.algebra.Service;
+import org.eclipse.rdf4j.query.algebra.StatementPattern;
 import org.eclipse.rdf4j.query.algebra.TupleExpr;
+import org.eclipse.rdf4j.query.algebra.Var;
+import org.eclipse.rdf4j.query.algebra.ZeroLengthPath;
 import org.eclipse.rdf4j.query.algebra.evaluation.EvaluationStrategy;
 import org.eclipse.rdf4j.query.algebra.evaluation.TripleSource;
 import org.eclipse.rdf4j.query.algebra.evaluation.impl.SimpleEvaluationStrategy;
+import org.eclipse.rdf4j.query.algebra.helpers.AbstractQueryModelVisitor;
 import org.eclipse.rdf4j.sail.Sail;
 import org.eclipse.rdf4j.sail.SailConnection;
 import org.eclipse.rdf4j.sail.SailException;
 import org.eclipse.rdf4j.sail.helpers.AbstractSail;
 import org.eclipse.rdf4j.sail.helpers.AbstractSailConnection;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
 
 // TODO: define rollback behavior
@@ -38,9 +53,22 @@ public class CachingSailConnection extends AbstractSailConnection {
     private SailConnection baseSailConnection;
     private SailConnection cacheConnection;
 
-    private Set<Resource> cachedSubjects;
-    private Set<IRI> cachedPredicates;
-    private Set<Value> cachedObjects;
+    private CacheIndex cacheIndex;
+    private CacheLoader cacheLoader;
+    private PatternCache patternCache;
+    private StatementCounts statementCounts;
+
+    // the effect of the uncommitted writes of this connection on the statement counts
+    private final StatementCounts.Changes countChanges = new StatementCounts.Changes();
+
+    // writes of the current transaction, whose overlapping patterns are invalidated once more on commit
+    private final List<PatternCache.Pattern> pendingInvalidations = new LinkedList<>();
+
+    // Keys written to in the current transaction, whose statements in the base Sail are uncommitted.
+    // Any of them which another connection loads into the cache in the meantime is invalidated on commit.
+    private final Set<CacheKey> writtenKeys = new HashSet<>();
+    private boolean allKeysWritten = false;
+    private long firstWriteTime = -1;
 
     private boolean uncommittedChanges = false;
 
@@ -50,9 +78,9 @@ public class CachingSailConnection extends AbstractSailConnection {
                                  final boolean cacheSubject,
                                  final boolean cachePredicate,
                                  final boolean cacheObject,
-                                 final Set<Resource> cachedSubjects,
-                                 final Set<IRI> cachedPredicates,
-                                 final Set<Value> cachedObjects) throws SailException {
+                                 final CacheLoader cacheLoader,
+                                 final PatternCache patternCache,
+                                 final StatementCounts statementCounts) throws SailException {
         super(sail);
         this.cacheSubject = cacheSubject;
         this.cachePredicate = cachePredicate;
@@ -60,27 +88,68 @@ public class CachingSailConnection extends AbstractSailConnection {
         baseSailConnection = baseSail.getConnection();
         cacheConnection = cache.getConnection();
 
-        this.cachedSubjects = cachedSubjects;
-        this.cachedPredicates = cachedPredicates;
-        this.cachedObjects = cachedObjects;
+        this.cacheLoader = cacheLoader;
+        this.cacheIndex = cacheLoader.getCacheIndex();
+        this.patternCache = patternCache;
+        this.statementCounts = statementCounts;
 
         this.valueFactory = baseSail.getValueFactory();
     }
 
     // Note: adding statements does not change the configuration of cached
-    // values.
+    // values.  A statement is written to the cache only if at least one of its keys is resident;
+    // otherwise it will be retrieved from the base Sail if and when one of its keys is cached.
     protected void addStatementInternal(final Resource subj,
                                      final IRI pred,
                                      final Value obj,
                                      final Resource... contexts) throws SailException {
-        cacheConnection.addStatement(subj, pred, obj, contexts);
+        // statements without a context are added to the default graph
+        Resource[] written = 0 == contexts.length ? new Resource[]{null} : contexts;
+
+        // statements which are already present change neither the counts nor the size of the cache
+        long added = 0;
+        for (Resource context : written) {
+            if (!baseSailConnection.hasStatement(subj, pred, obj, false, context)) {
+                countChanges.add(context, 1);
+                added++;
+            }
+        }
+
+        List<CacheKey> keys = cacheKeysOf(subj, pred, obj);
+        markWritten(keys, false);
+
+        List<CacheKey> resident = new LinkedList<>();
+        for (CacheKey key : keys) {
+            if (cacheIndex.contains(key)) {
+                resident.add(key);
+            }
+        }
+
+        if (resident.size() > 0) {
+            for (CacheKey key : resident) {
+                cacheIndex.grow(key, added);
+            }
+            cacheConnection.addStatement(subj, pred, obj, contexts);
+        }
+        invalidatePatterns(subj, pred, obj, written);
         baseSailConnection.addStatement(subj, pred, obj, contexts);
         uncommittedChanges = true;
     }
 
-    // Note: clearing statements does not change the configuration of cached
-    // values.
+    // Note: clearing all statements invalidates all cached keys,
+    // while clearing specific contexts does not change the configuration of cached values.
     protected void clearInternal(final Resource... contexts) throws SailException {
+        countChanges.clear(contexts);
+        markWritten(Collections.emptyList(), true);
+
+        if (0 == contexts.length) {
+            cacheIndex.clear();
+            if (null != patternCache) {
+                patternCache.clear();
+            }
+        } else {
+            invalidatePatterns(null, null, null, contexts);
+        }
         cacheConnection.clear(contexts);
         baseSailConnection.clear(contexts);
         uncommittedChanges = true;
@@ -97,9 +166,29 @@ public class CachingSailConnection extends AbstractSailConnection {
 
     protected void commitInternal() throws SailException {
         if (uncommittedChanges) {
+            // the base Sail is committed first, so that the cache is never ahead of it
+            long generation = statementCounts.getGeneration();
+            try {
+                baseSailConnection.commit();
+            } catch (SailException e) {
+                cacheConnection.rollback();
+                throw e;
+            }
+            statementCounts.apply(countChanges, generation);
+            countChanges.reset();
             cacheConnection.commit();
-            baseSailConnection.commit();
             uncommittedChanges = false;
+
+            cacheLoader.invalidate(firstWriteTime, allKeysWritten ? key -> true : writtenKeys::contains);
+            writtenKeys.clear();
+            allKeysWritten = false;
+            firstWriteTime = -1;
+
+            // results of overlapping patterns may have been cached by other connections in the meantime
+            for (PatternCache.Pattern write : pendingInvalidations) {
+                patternCache.invalidate(write);
+            }
+            pendingInvalidations.clear();
         }
     }
 
@@ -108,6 +197,55 @@ public class CachingSailConnection extends AbstractSailConnection {
             final Dataset dataSet,
             final BindingSet bindingSet,
             final boolean includeInferred) throws SailException {
+        PatternCollector collector = new PatternCollector();
+        tupleExpr.visit(collector);
+
+        // Prefetch the keys of all patterns up front, rather than one at a time in the course of evaluation.
+        // If every pattern is answerable from a resident key, the query is handed to the cache store as a whole,
+        // so that it benefits from the store's own optimizer and evaluation strategy.
+        // Whether the query can be handed over at all is decided before any key is loaded,
+        // so that queries which are evaluated against the base Sail anyway do not cause any evictions.
+        // Note: uncommitted changes to non-resident keys are not visible in the cache store
+        List<CacheKey> keys = new LinkedList<>();
+        boolean answerableFromCache = collector.isAnswerableFromKeys() && !uncommittedChanges;
+        if (answerableFromCache) {
+            for (StatementPattern sp : collector.getPatterns()) {
+                CacheKey key = findCacheKey(sp, bindingSet);
+                if (null == key) {
+                    answerableFromCache = false;
+                    break;
+                }
+                keys.add(key);
+            }
+        }
+
+        // The keys are pinned, so that none of them is evicted, by this or any other connection,
+        // before the query has been evaluated against the cache store.
+        List<CacheKey> pinned = new LinkedList<>();
+        boolean handedOver = false;
+        try {
+            if (answerableFromCache) {
+                for (CacheKey key : keys) {
+                    if (!pinResident(key)) {
+                        answerableFromCache = false;
+                        break;
+                    }
+                    pinned.add(key);
+                }
+            }
+
+            if (answerableFromCache) {
+                CloseableIteration<? extends BindingSet, QueryEvaluationException> result
+                        = unpinOnClose(cacheConnection.evaluate(tupleExpr, dataSet, bindingSet, includeInferred), pinned);
+                handedOver = true;
+                return result;
+            }
+        } finally {
+            if (!handedOver) {
+                unpin(pinned);
+            }
+        }
+
         try {
             TripleSource tripleSource = new SailConnectionTripleSource(this, valueFactory, includeInferred);
             EvaluationStrategy strategy = new SimpleEvaluationStrategy(tripleSource, dataSet, null);
@@ -131,7 +269,7 @@ public class CachingSailConnection extends AbstractSailConnection {
 
     protected CloseableIteration<? extends Resource, SailException> getContextIDsInternal()
             throws SailException {
-        return baseSailConnection.getContextIDs();
+        return new CloseableIteratorIteration<>(statementCounts.getContexts(countChanges).iterator());
     }
 
     protected String getNamespaceInternal(final String prefix) throws SailException {
@@ -151,27 +289,19 @@ public class CachingSailConnection extends AbstractSailConnection {
             final boolean includeInferred,
             final Resource... context) throws SailException {
 
-        if (null != subj && cacheSubject) {
-            if (!cachedSubjects.contains(subj)) {
-                cacheStatements(subj, null, null);
-                cachedSubjects.add(subj);
-            }
-
-            return cacheConnection.getStatements(subj, pred, obj, includeInferred, context);
-        } else if (null != obj && cacheObject) {
-            if (!cachedObjects.contains(obj)) {
-                cacheStatements(null, null, obj);
-                cachedObjects.add(obj);
-            }
+        CacheKey key = findCacheKey(subj, pred, obj);
 
-            return cacheConnection.getStatements(subj, pred, obj, includeInferred, context);
-        } else if (null != pred && cachePredicate) {
-            if (!cachedPredicates.contains(pred)) {
-                cacheStatements(null, pred, null);
-                cachedPredicates.add(pred);
-            }
+        // Note: the pattern cache is bypassed while this connection has uncommitted changes,
+        // which are visible only to this connection.
+        if (null != patternCache && !uncommittedChanges
+                && (null == key || (!isKeyPattern(key, subj, pred, obj, context) && !cacheIndex.contains(key)))) {
+            return getStatementsThroughPatternCache(subj, pred, obj, includeInferred, context);
+        }
 
-            return cacheConnection.getStatements(subj, pred, obj, includeInferred, context);
+        // Note: uncommitted changes to keys which were not resident when written are not visible in the cache store
+        if (null != key && !uncommittedChanges && pinResident(key)) {
+            return unpinOnClose(cacheConnection.getStatements(subj, pred, obj, includeInferred, context),
+                    Collections.singletonList(key));
         } else {
             return baseSailConnection.getStatements(subj, pred, obj, includeInferred, context);
         }
@@ -182,16 +312,29 @@ public class CachingSailConnection extends AbstractSailConnection {
     }
 
     // Note: removing statements does not change the configuration of cached
-    // values.
+    // values.  The cache is left untouched if the pattern rules out all resident keys.
     protected void removeStatementsInternal(final Resource subj, final IRI pred, final Value obj,
                                          final Resource... contexts) throws SailException {
-        cacheConnection.removeStatements(subj, pred, obj, contexts);
+        // the statements to be removed are those which the removal would find
+        try (CloseableIteration<? extends Statement, SailException> iter
+                     = baseSailConnection.getStatements(subj, pred, obj, false, contexts)) {
+            while (iter.hasNext()) {
+                countChanges.add(iter.next().getContext(), -1);
+            }
+        }
+        markWritten(boundKeysOf(subj, pred, obj), !allKeysBound(subj, pred, obj));
+
+        if (mayBeCached(subj, pred, obj)) {
+            cacheConnection.removeStatements(subj, pred, obj, contexts);
+        }
+        invalidatePatterns(subj, pred, obj, contexts);
         baseSailConnection.removeStatements(subj, pred, obj, contexts);
         uncommittedChanges = true;
     }
 
     // No rollback ability for now.
     protected void rollbackInternal() throws SailException {
+        // Note: the base Sail is not rolled back, so the changes to the counts are kept until the next commit
         /*
           cacheConnection.rollback();
           baseSailConnection.rollback();
@@ -203,7 +346,7 @@ public class CachingSailConnection extends AbstractSailConnection {
     }
 
     protected long sizeInternal(final Resource... contexts) throws SailException {
-        return baseSailConnection.size(contexts);
+        return statementCounts.size(countChanges, contexts);
     }
 
     protected void startTransactionInternal() throws SailException {
@@ -211,21 +354,168 @@ public class CachingSailConnection extends AbstractSailConnection {
         cacheConnection.begin();
     }
 
-    private void cacheStatements(final Resource subj, final IRI pred, final Value obj) throws SailException {
+    // finds the key of a statement pattern whose constants are known before evaluation
+    private CacheKey findCacheKey(final StatementPattern pattern, final BindingSet bindings) {
+        Value subj = valueOf(pattern.getSubjectVar(), bindings);
+        Value pred = valueOf(pattern.getPredicateVar(), bindings);
+        if ((null != subj && !(subj instanceof Resource)) || (null != pred && !(pred instanceof IRI))) {
+            return null;
+        }
 
-        cacheConnection.begin();
+        return findCacheKey((Resource) subj, (IRI) pred, valueOf(pattern.getObjectVar(), bindings));
+    }
 
-        CloseableIteration<? extends Statement, SailException> iter
-                = baseSailConnection.getStatements(subj, pred, obj, false);
+    private Value valueOf(final Var var, final BindingSet bindings) {
+        return var.hasValue() ? var.getValue() : bindings.getValue(var.getName());
+    }
 
-        while (iter.hasNext()) {
-            Statement st = iter.next();
-            cacheConnection.addStatement(st.getSubject(), st.getPredicate(), st.getObject(), st.getContext());
+    private CacheKey findCacheKey(final Resource subj, final IRI pred, final Value obj) {
+        if (null != subj && cacheSubject) {
+            return new CacheKey(CacheKey.Position.SUBJECT, subj);
+        } else if (null != obj && cacheObject) {
+            return new CacheKey(CacheKey.Position.OBJECT, obj);
+        } else if (null != pred && cachePredicate) {
+            return new CacheKey(CacheKey.Position.PREDICATE, pred);
+        } else {
+            return null;
         }
+    }
 
-        iter.close();
+    // whether a pattern asks for exactly the statements of a key
+    private boolean isKeyPattern(final CacheKey key, final Resource subj, final IRI pred, final Value obj,
+                                 final Resource... contexts) {
+        return 0 == contexts.length
+                && key.getSubject() == subj && key.getPredicate() == pred && key.getObject() == obj;
+    }
 
-        cacheConnection.commit();
+    @SuppressWarnings("unchecked")
+    private CloseableIteration<? extends Statement, SailException> getStatementsThroughPatternCache(
+            final Resource subj,
+            final IRI pred,
+            final Value obj,
+            final boolean includeInferred,
+            final Resource... contexts) throws SailException {
+        PatternCache.Pattern pattern = new PatternCache.Pattern(subj, pred, obj, includeInferred, contexts);
+        List<Statement> results = patternCache.get(pattern);
+        if (null != results) {
+            return new CloseableIteratorIteration<>(results.iterator());
+        }
+
+        long version = patternCache.getVersion();
+        results = new ArrayList<>();
+        CloseableIteration<Statement, SailException> iter = (CloseableIteration<Statement, SailException>)
+                baseSailConnection.getStatements(subj, pred, obj, includeInferred, contexts);
+        boolean streaming = false;
+        try {
+            while (iter.hasNext()) {
+                // too many results to cache; pass the remainder through
+                if (results.size() >= patternCache.getMaxResultsPerPattern()) {
+                    streaming = true;
+                    List<CloseableIteration<Statement, SailException>> parts = new LinkedList<>();
+                    parts.add(new CloseableIteratorIteration<>(results.iterator()));
+                    parts.add(iter);
+                    return new CompoundCloseableIteration<>(parts);
+                }
+
+                results.add(iter.next());
+            }
+        } finally {
+            if (!streaming) {
+                iter.close();
+            }
+        }
+
+        patternCache.put(pattern, results, version);
+        return new CloseableIteratorIteration<>(results.iterator());
+    }
+
+    // Makes a key resident if it is not already, and pins it so that it stays resident while it is read.
+    // Returns false if the key is not to be cached, or if it was evicted again before it could be pinned.
+    private boolean pinResident(final CacheKey key) throws SailException {
+        return cacheIndex.touchAndPin(key)
+                || (cacheLoader.load(key) && cacheIndex.pin(key));
+    }
+
+    private void unpin(final List<CacheKey> keys) {
+        for (CacheKey key : keys) {
+            cacheIndex.unpin(key);
+        }
+    }
+
+    // keys stay pinned until the results read from the cache store are closed
+    private <E, X extends Exception> CloseableIteration<E, X> unpinOnClose(
+            final CloseableIteration<? extends E, ? extends X> iter, final List<CacheKey> keys) {
+        return new IterationWrapper<E, X>(iter) {
+            @Override
+            protected void handleClose() throws X {
+                try {
+                    super.handleClose();
+                } finally {
+                    unpin(keys);
+                }
+            }
+        };
+    }
+
+    // a write to a pattern with an unbound, cached position may affect any key
+    private void markWritten(final List<CacheKey> keys, final boolean anyKey) {
+        if (firstWriteTime < 0) {
+            firstWriteTime = cacheIndex.getClock();
+        }
+        writtenKeys.addAll(keys);
+        allKeysWritten |= anyKey;
+    }
+
+    private void invalidatePatterns(final Resource subj, final IRI pred, final Value obj,
+                                    final Resource... contexts) {
+        if (null != patternCache) {
+            PatternCache.Pattern write = new PatternCache.Pattern(subj, pred, obj, false, contexts);
+            patternCache.invalidate(write);
+            pendingInvalidations.add(write);
+        }
+    }
+
+    private List<CacheKey> cacheKeysOf(final Resource subj, final IRI pred, final Value obj) {
+        List<CacheKey> keys = new LinkedList<>();
+        if (cacheSubject) {
+            keys.add(new CacheKey(CacheKey.Position.SUBJECT, subj));
+        }
+        if (cachePredicate) {
+            keys.add(new CacheKey(CacheKey.Position.PREDICATE, pred));
+        }
+        if (cacheObject) {
+            keys.add(new CacheKey(CacheKey.Position.OBJECT, obj));
+        }
+        return keys;
+    }
+
+    private List<CacheKey> boundKeysOf(final Resource subj, final IRI pred, final Value obj) {
+        List<CacheKey> keys = new LinkedList<>();
+        if (cacheSubject && null != subj) {
+            keys.add(new CacheKey(CacheKey.Position.SUBJECT, subj));
+        }
+        if (cachePredicate && null != pred) {
+            keys.add(new CacheKey(CacheKey.Position.PREDICATE, pred));
+        }
+        if (cacheObject && null != obj) {
+            keys.add(new CacheKey(CacheKey.Position.OBJECT, obj));
+        }
+        return keys;
+    }
+
+    private boolean allKeysBound(final Resource subj, final IRI pred, final Value obj) {
+        return (!cacheSubject || null != subj) && (!cachePredicate || null != pred) && (!cacheObject || null != obj);
+    }
+
+    // A statement can only be in the cache if at least one of its keys is resident.
+    // Any position which is cached and left unbound in the pattern may match a resident key.
+    private boolean mayBeCached(final Resource subj, final IRI pred, final Value obj) {
+        return (cacheSubject && (null == subj
+                || cacheIndex.contains(new CacheKey(CacheKey.Position.SUBJECT, subj))))
+                || (cachePredicate && (null == pred
+                || cacheIndex.contains(new CacheKey(CacheKey.Position.PREDICATE, pred))))
+                || (cacheObject && (null == obj
+                || cacheIndex.contains(new CacheKey(CacheKey.Position.OBJECT, obj))));
     }
 
     public SailConnection getBaseConnection() {
@@ -236,4 +526,45 @@ public class CachingSailConnection extends AbstractSailConnection {
     public boolean pendingRemovals() {
         return false;
     }
+
+    // Collects the statement patterns of a query.
+    // Path expressions and other operators which retrieve statements beyond their
+    // own constants cannot be answered from the keys of their patterns alone.
+    private static class PatternCollector extends AbstractQueryModelVisitor<RuntimeException> {
+        private final List<StatementPattern> patterns = new LinkedList<>();
+        private boolean answerableFromKeys = true;
+
+        public List<StatementPattern> getPatterns() {
+            return patterns;
+        }
+
+        public boolean isAnswerableFromKeys() {
+            return answerableFromKeys;
+        }
+
+        @Override
+        public void meet(final StatementPattern node) {
+            patterns.add(node);
+        }
+
+        @Override
+        public void meet(final ArbitraryLengthPath node) {
+            answerableFromKeys = false;
+        }
+
+        @Override
+        public void meet(final ZeroLengthPath node) {
+            answerableFromKeys = false;
+        }
+
+        @Override
+        public void meet(final DescribeOperator node) {
+            answerableFromKeys = false;
+        }
+
+        @Override
+        public void meet(final Service node) {
+            answerableFromKeys = false;
+        }
+    }
 }
@@ -0,0 +1,26 @@
+package net.fortytwo.sesametools.caching;
+
+/**
+ * The strategy used by a <code>CachingSail</code> to choose which cached keys to discard
+ * when the statement capacity of the cache is exceeded.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public enum EvictionPolicy {
+    /**
+     * Evict the least recently used key.
+     */
+    LRU,
+
+    /**
+     * Evict the least frequently used key, breaking ties by recency.
+     */
+    LFU,
+
+    /**
+     * Evict the least recently used key, but admit a new key into a full cache only if it has been
+     * requested more often (according to an approximate frequency sketch) than the key it would displace.
+     * This protects frequently used keys from being flushed out by scans over many rarely used keys.
+     */
+    TINY_LFU
+}
@@ -0,0 +1,64 @@
+package net.fortytwo.sesametools.caching;
+
+/**
+ * A count-min sketch which estimates how often each key has been requested, in constant space.
+ * Counts are periodically halved so that the sketch favors recent popularity over historical popularity.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int MAX_WIDTH = 1 << 22;
+    private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+    private final int[][] table;
+    private final int mask;
+    private final long sampleSize;
+    private long additions;
+
+    FrequencySketch(final long expectedKeys) {
+        int width = 16;
+        while (width < expectedKeys && width < MAX_WIDTH) {
+            width <<= 1;
+        }
+
+        table = new int[DEPTH][width];
+        mask = width - 1;
+        sampleSize = 10L * width;
+    }
+
+    void increment(final Object key) {
+        int h = key.hashCode();
+        for (int i = 0; i < DEPTH; i++) {
+            table[i][index(h, i)]++;
+        }
+
+        if (++additions >= sampleSize) {
+            age();
+        }
+    }
+
+    int frequency(final Object key) {
+        int h = key.hashCode();
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            min = Math.min(min, table[i][index(h, i)]);
+        }
+        return min;
+    }
+
+    private int index(final int hash, final int row) {
+        int h = hash * SEEDS[row];
+        h ^= h >>> 16;
+        return h & mask;
+    }
+
+    private void age() {
+        for (int[] row : table) {
+            for (int j = 0; j < row.length; j++) {
+                row[j] >>>= 1;
+            }
+        }
+        additions /= 2;
+    }
+}
@@ -0,0 +1,247 @@
+package net.fortytwo.sesametools.caching;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.Value;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A bounded, least-recently-used cache of the results of individual <code>getStatements</code> calls,
+ * keyed on the complete pattern (subject, predicate, object, contexts and inference flag).
+ * Complements the key-based cache of a <code>CachingSail</code> for repetitive, narrow patterns such as
+ * <code>(s, rdf:type, ?)</code>, which would otherwise cause the whole neighbourhood of a value to be cached.
+ * Cached results are invalidated by any write which may overlap with their pattern.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class PatternCache {
+    private final long capacity;
+    private final long maxResultsPerPattern;
+    private final CacheStatistics statistics;
+
+    private final LinkedHashMap<Pattern, List<Statement>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // cached patterns by subject, with the null key for patterns with a wildcard subject
+    private final Map<Resource, Set<Pattern>> patternsBySubject = new HashMap<>();
+
+    private long statementCount = 0;
+    // incremented on every invalidation, so that results retrieved before a write are not cached after it
+    private long version = 0;
+
+    /**
+     * @param capacity   the maximum total number of statements to retain
+     * @param statistics counters to which pattern hits and misses are reported
+     */
+    public PatternCache(final long capacity, final CacheStatistics statistics) {
+        this.capacity = capacity;
+        this.maxResultsPerPattern = Math.max(1, capacity / 16);
+        this.statistics = statistics;
+    }
+
+    /**
+     * @return the maximum number of results for a pattern to be cached.
+     * Patterns with more results are passed through without being cached.
+     */
+    public long getMaxResultsPerPattern() {
+        return maxResultsPerPattern;
+    }
+
+    /**
+     * @return the current version of the cache, to be passed to {@link #put(Pattern, List, long)}
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * @param pattern a pattern
+     * @return the cached results of the pattern, or null if they are not cached
+     */
+    public synchronized List<Statement> get(final Pattern pattern) {
+        List<Statement> results = entries.get(pattern);
+        if (null == results) {
+            statistics.recordPatternMiss();
+        } else {
+            statistics.recordPatternHit();
+        }
+        return results;
+    }
+
+    /**
+     * Caches the results of a pattern, unless the cache has been invalidated since they were retrieved.
+     *
+     * @param pattern a pattern
+     * @param results the complete results of the pattern
+     * @param version the version of the cache before the results were retrieved
+     */
+    public synchronized void put(final Pattern pattern, final List<Statement> results, final long version) {
+        if (version != this.version || results.size() > maxResultsPerPattern) {
+            return;
+        }
+
+        if (null != entries.put(pattern, results)) {
+            return;
+        }
+
+        patternsBySubject.computeIfAbsent(pattern.subject, s -> new HashSet<>()).add(pattern);
+        statementCount += results.size();
+
+        Iterator<Map.Entry<Pattern, List<Statement>>> iter = entries.entrySet().iterator();
+        while (statementCount > capacity && iter.hasNext()) {
+            Map.Entry<Pattern, List<Statement>> eldest = iter.next();
+            if (!eldest.getKey().equals(pattern)) {
+                iter.remove();
+                forget(eldest.getKey(), eldest.getValue());
+            }
+        }
+    }
+
+    /**
+     * Discards the results of all patterns which may overlap with the given pattern of added or removed statements.
+     *
+     * @param subj     the subject of the write, or null for any subject
+     * @param pred     the predicate of the write, or null for any predicate
+     * @param obj      the object of the write, or null for any object
+     * @param contexts the contexts of the write. If empty, any context.
+     */
+    public synchronized void invalidate(final Resource subj, final IRI pred, final Value obj,
+                                        final Resource... contexts) {
+        version++;
+
+        List<Pattern> candidates = new LinkedList<>();
+        if (null == subj) {
+            candidates.addAll(entries.keySet());
+        } else {
+            Set<Pattern> s = patternsBySubject.get(subj);
+            if (null != s) {
+                candidates.addAll(s);
+            }
+            s = patternsBySubject.get(null);
+            if (null != s) {
+                candidates.addAll(s);
+            }
+        }
+
+        for (Pattern p : candidates) {
+            if (p.overlaps(subj, pred, obj, contexts)) {
+                forget(p, entries.remove(p));
+            }
+        }
+    }
+
+    /**
+     * Discards the results of all patterns which may overlap with the given pattern of added or removed statements.
+     *
+     * @param write the pattern of the write
+     */
+    public void invalidate(final Pattern write) {
+        invalidate(write.subject, write.predicate, write.object, write.contexts);
+    }
+
+    /**
+     * Discards all cached results
+     */
+    public synchronized void clear() {
+        version++;
+        entries.clear();
+        patternsBySubject.clear();
+        statementCount = 0;
+    }
+
+    /**
+     * @return the number of patterns whose results are cached
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void forget(final Pattern pattern, final List<Statement> results) {
+        Set<Pattern> s = patternsBySubject.get(pattern.subject);
+        if (null != s) {
+            s.remove(pattern);
+            if (s.isEmpty()) {
+                patternsBySubject.remove(pattern.subject);
+            }
+        }
+        if (null != results) {
+            statementCount -= results.size();
+        }
+    }
+
+    /**
+     * The arguments of a <code>getStatements</code> call
+     */
+    public static class Pattern {
+        private final Resource subject;
+        private final IRI predicate;
+        private final Value object;
+        private final Resource[] contexts;
+        private final boolean includeInferred;
+
+        public Pattern(final Resource subject,
+                       final IRI predicate,
+                       final Value object,
+                       final boolean includeInferred,
+                       final Resource... contexts) {
+            this.subject = subject;
+            this.predicate = predicate;
+            this.object = object;
+            this.includeInferred = includeInferred;
+            this.contexts = contexts.clone();
+        }
+
+        // note: a null element of a contexts array stands for the default graph
+        private boolean overlaps(final Resource subj, final IRI pred, final Value obj, final Resource[] ctxs) {
+            if ((null != subj && null != subject && !subj.equals(subject))
+                    || (null != pred && null != predicate && !pred.equals(predicate))
+                    || (null != obj && null != object && !obj.equals(object))) {
+                return false;
+            }
+
+            if (0 == ctxs.length || 0 == contexts.length) {
+                return true;
+            }
+
+            for (Resource a : ctxs) {
+                for (Resource b : contexts) {
+                    if (null == a ? null == b : a.equals(b)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (!(other instanceof Pattern)) {
+                return false;
+            }
+
+            Pattern p = (Pattern) other;
+            return includeInferred == p.includeInferred
+                    && (null == subject ? null == p.subject : subject.equals(p.subject))
+                    && (null == predicate ? null == p.predicate : predicate.equals(p.predicate))
+                    && (null == object ? null == p.object : object.equals(p.object))
+                    && Arrays.equals(contexts, p.contexts);
+        }
+
+        @Override
+        public int hashCode() {
+            int h = includeInferred ? 1 : 0;
+            h = 31 * h + (null == subject ? 0 : subject.hashCode());
+            h = 31 * h + (null == predicate ? 0 : predicate.hashCode());
+            h = 31 * h + (null == object ? 0 : object.hashCode());
+            return 31 * h + Arrays.hashCode(contexts);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package net.fortytwo.sesametools.caching;
+
+import org.eclipse.rdf4j.common.iteration.CloseableIteration;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.sail.Sail;
+import org.eclipse.rdf4j.sail.SailConnection;
+import org.eclipse.rdf4j.sail.SailException;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Per-context statement counts of the base <code>Sail</code> of a <code>CachingSail</code>,
+ * allowing <code>size()</code> and <code>getContextIDs()</code> to be answered without querying the base Sail.
+ * Counts are retrieved from the base Sail when first needed.
+ * Each connection to the <code>CachingSail</code> keeps track of the effect of its writes on the counts
+ * as a set of {@link Changes}, which it sees on top of the shared counts, and which are applied to them on commit.
+ * Writes which bypass the <code>CachingSail</code> must be followed by a call to {@link #invalidate()}.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class StatementCounts {
+    private final Sail baseSail;
+
+    // statement counts by context, with the null key for the default graph
+    private final Map<Resource, Long> counts = new HashMap<>();
+    private boolean valid = false;
+    // incremented whenever the counts are retrieved from the base Sail
+    private long generation = 0;
+
+    public StatementCounts(final Sail baseSail) {
+        this.baseSail = baseSail;
+    }
+
+    /**
+     * Discards all counts, so that they are retrieved from the base Sail again when next needed
+     */
+    public synchronized void invalidate() {
+        counts.clear();
+        valid = false;
+    }
+
+    /**
+     * @return the current generation of the counts, to be passed to {@link #apply(Changes, long)}
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Applies the changes of a committed transaction to the counts.
+     *
+     * @param changes    the changes of the transaction
+     * @param generation the generation of the counts before the transaction was committed to the base Sail.
+     *                   If the counts have been retrieved again since then, they may or may not include the changes,
+     *                   and are discarded instead.
+     */
+    public synchronized void apply(final Changes changes, final long generation) {
+        if (generation != this.generation) {
+            invalidate();
+        } else if (valid) {
+            if (changes.clearedAll) {
+                counts.clear();
+            } else {
+                for (Resource context : changes.cleared) {
+                    counts.remove(context);
+                }
+            }
+
+            for (Map.Entry<Resource, Long> e : changes.deltas.entrySet()) {
+                Long count = counts.get(e.getKey());
+                putCount(e.getKey(), (null == count ? 0 : count) + e.getValue());
+            }
+        }
+    }
+
+    /**
+     * @param changes  uncommitted changes to be taken into account
+     * @param contexts the contexts to count, with null for the default graph. If empty, all contexts.
+     * @return the number of statements in the given contexts
+     * @throws SailException if the counts must be retrieved from the base Sail, and this fails
+     */
+    public synchronized long size(final Changes changes, final Resource... contexts) throws SailException {
+        ensureValid();
+
+        long size = 0;
+        for (Resource context : 0 == contexts.length
+                ? allContexts(changes) : new HashSet<>(Arrays.asList(contexts))) {
+            size += count(changes, context);
+        }
+        return size;
+    }
+
+    /**
+     * @param changes uncommitted changes to be taken into account
+     * @return all named contexts which contain statements
+     * @throws SailException if the counts must be retrieved from the base Sail, and this fails
+     */
+    public synchronized List<Resource> getContexts(final Changes changes) throws SailException {
+        ensureValid();
+
+        List<Resource> contexts = new LinkedList<>();
+        for (Resource context : allContexts(changes)) {
+            if (null != context && count(changes, context) > 0) {
+                contexts.add(context);
+            }
+        }
+        return contexts;
+    }
+
+    private long count(final Changes changes, final Resource context) {
+        Long count = changes.clearedAll || changes.cleared.contains(context) ? null : counts.get(context);
+        Long delta = changes.deltas.get(context);
+        return (null == count ? 0 : count) + (null == delta ? 0 : delta);
+    }
+
+    private Set<Resource> allContexts(final Changes changes) {
+        Set<Resource> contexts = new HashSet<>(counts.keySet());
+        contexts.addAll(changes.deltas.keySet());
+        return contexts;
+    }
+
+    // Note: a separate connection is used, so that only committed statements are counted
+    private void ensureValid() throws SailException {
+        if (valid) {
+            return;
+        }
+
+        try (SailConnection sc = baseSail.getConnection()) {
+            putCount(null, sc.size((Resource) null));
+
+            try (CloseableIteration<? extends Resource, SailException> iter = sc.getContextIDs()) {
+                while (iter.hasNext()) {
+                    Resource context = iter.next();
+                    putCount(context, sc.size(context));
+                }
+            }
+        }
+
+        generation++;
+        valid = true;
+    }
+
+    private void putCount(final Resource context, final long count) {
+        if (count > 0) {
+            counts.put(context, count);
+        } else {
+            counts.remove(context);
+        }
+    }
+
+    /**
+     * The uncommitted changes of a single connection to the statement counts.
+     * Not thread-safe.
+     */
+    public static class Changes {
+        // changes to the number of statements in each context, with the null key for the default graph
+        private final Map<Resource, Long> deltas = new HashMap<>();
+        // contexts which have been cleared before any of the above changes
+        private final Set<Resource> cleared = new HashSet<>();
+        private boolean clearedAll = false;
+
+        /**
+         * @param context a context, or null for the default graph
+         * @param delta   the number of statements added to the context, or removed from it if negative
+         */
+        public void add(final Resource context, final long delta) {
+            Long d = deltas.get(context);
+            deltas.put(context, (null == d ? 0 : d) + delta);
+        }
+
+        /**
+         * Records the removal of all statements from the given contexts
+         *
+         * @param contexts contexts, with null for the default graph.  If empty, all contexts.
+         */
+        public void clear(final Resource... contexts) {
+            if (0 == contexts.length) {
+                deltas.clear();
+                cleared.clear();
+                clearedAll = true;
+            } else {
+                for (Resource context : contexts) {
+                    deltas.remove(context);
+                    cleared.add(context);
+                }
+            }
+        }
+
+        /**
+         * @return whether there are no changes
+         */
+        public boolean isEmpty() {
+            return deltas.isEmpty() && cleared.isEmpty() && !clearedAll;
+        }
+
+        /**
+         * Discards all changes
+         */
+        public void reset() {
+            deltas.clear();
+            cleared.clear();
+            clearedAll = false;
+        }
+    }
+}
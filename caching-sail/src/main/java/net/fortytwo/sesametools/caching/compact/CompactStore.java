@@ -0,0 +1,79 @@
+package net.fortytwo.sesametools.caching.compact;
+
+import org.eclipse.rdf4j.IsolationLevels;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.sail.SailConnection;
+import org.eclipse.rdf4j.sail.SailException;
+import org.eclipse.rdf4j.sail.helpers.AbstractSail;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A non-persistent <code>Sail</code> which keeps its statements in dictionary-encoded form in direct memory,
+ * taking a small, fixed number of bytes per statement outside of the Java heap.
+ * Only the distinct values of the statements, together with their ids, are kept on the heap.
+ * Intended as a compact alternative to <code>MemoryStore</code> for use as the cache of a
+ * <code>CachingSail</code>, where it may hold many millions of statements without adding to garbage
+ * collection pauses.
+ * Note: writes become visible to other connections as soon as they are made
+ * (i.e. the store offers no transaction isolation), although they may be rolled back.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class CompactStore extends AbstractSail {
+    private final ValueFactory valueFactory;
+    private final QuadTable quads = new QuadTable();
+    private final Map<String, String> namespaces = new ConcurrentHashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public CompactStore() {
+        this(SimpleValueFactory.getInstance());
+    }
+
+    public CompactStore(final ValueFactory valueFactory) {
+        this.valueFactory = valueFactory;
+        setSupportedIsolationLevels(IsolationLevels.NONE);
+        setDefaultIsolationLevel(IsolationLevels.NONE);
+    }
+
+    @Override
+    protected SailConnection getConnectionInternal() throws SailException {
+        return new CompactStoreConnection(this, quads, namespaces, lock, valueFactory);
+    }
+
+    @Override
+    protected void shutDownInternal() throws SailException {
+        lock.writeLock().lock();
+        try {
+            quads.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean isWritable() throws SailException {
+        return true;
+    }
+
+    @Override
+    public ValueFactory getValueFactory() {
+        return valueFactory;
+    }
+
+    /**
+     * @return the number of bytes of direct memory currently allocated for statements
+     */
+    public long getAllocatedBytes() {
+        lock.readLock().lock();
+        try {
+            return quads.getAllocatedBytes();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package net.fortytwo.sesametools.caching.compact;
+
+import net.fortytwo.sesametools.SailConnectionTripleSource;
+import org.eclipse.rdf4j.common.iteration.AbstractCloseableIteration;
+import org.eclipse.rdf4j.common.iteration.CloseableIteration;
+import org.eclipse.rdf4j.common.iteration.CloseableIteratorIteration;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Namespace;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleNamespace;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.Dataset;
+import org.eclipse.rdf4j.query.QueryEvaluationException;
+import org.eclipse.rdf4j.query.algebra.QueryRoot;
+import org.eclipse.rdf4j.query.algebra.StatementPattern;
+import org.eclipse.rdf4j.query.algebra.TupleExpr;
+import org.eclipse.rdf4j.query.algebra.Var;
+import org.eclipse.rdf4j.query.algebra.evaluation.EvaluationStrategy;
+import org.eclipse.rdf4j.query.algebra.evaluation.TripleSource;
+import org.eclipse.rdf4j.query.algebra.evaluation.impl.BindingAssigner;
+import org.eclipse.rdf4j.query.algebra.evaluation.impl.CompareOptimizer;
+import org.eclipse.rdf4j.query.algebra.evaluation.impl.ConjunctiveConstraintSplitter;
+import org.eclipse.rdf4j.query.algebra.evaluation.impl.ConstantOptimizer;
+import org.eclipse.rdf4j.query.algebra.evaluation.impl.DisjunctiveConstraintOptimizer;
+import org.eclipse.rdf4j.query.algebra.evaluation.impl.EvaluationStatistics;
+import org.eclipse.rdf4j.query.algebra.evaluation.impl.FilterOptimizer;
+import org.eclipse.rdf4j.query.algebra.evaluation.impl.IterativeEvaluationOptimizer;
+import org.eclipse.rdf4j.query.algebra.evaluation.impl.OrderLimitOptimizer;
+import org.eclipse.rdf4j.query.algebra.evaluation.impl.QueryJoinOptimizer;
+import org.eclipse.rdf4j.query.algebra.evaluation.impl.QueryModelNormalizer;
+import org.eclipse.rdf4j.query.algebra.evaluation.impl.SameTermFilterOptimizer;
+import org.eclipse.rdf4j.query.algebra.evaluation.impl.SimpleEvaluationStrategy;
+import org.eclipse.rdf4j.sail.SailException;
+import org.eclipse.rdf4j.sail.helpers.AbstractSail;
+import org.eclipse.rdf4j.sail.helpers.AbstractSailConnection;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReadWriteLock;
+
+/**
+ * A connection to a <code>CompactStore</code>.
+ * Statements are retrieved lazily, but iterations hold a lock on the store only while they are advanced,
+ * so that statements may be written while an iteration is open.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class CompactStoreConnection extends AbstractSailConnection {
+    private final QuadTable quads;
+    private final Map<String, String> namespaces;
+    private final ReadWriteLock lock;
+    private final ValueFactory valueFactory;
+
+    // changes made in the current transaction, in order, for the sake of rollback
+    private final LinkedList<Change> changes = new LinkedList<>();
+
+    CompactStoreConnection(final AbstractSail sail,
+                           final QuadTable quads,
+                           final Map<String, String> namespaces,
+                           final ReadWriteLock lock,
+                           final ValueFactory valueFactory) {
+        super(sail);
+        this.quads = quads;
+        this.namespaces = namespaces;
+        this.lock = lock;
+        this.valueFactory = valueFactory;
+    }
+
+    @Override
+    protected void closeInternal() throws SailException {
+        // Nothing to do.
+    }
+
+    @Override
+    protected CloseableIteration<? extends BindingSet, QueryEvaluationException> evaluateInternal(
+            final TupleExpr tupleExpr,
+            final Dataset dataset,
+            final BindingSet bindings,
+            final boolean includeInferred) throws SailException {
+        // the expression is optimized in place, so a copy is made
+        TupleExpr expr = tupleExpr.clone();
+        if (!(expr instanceof QueryRoot)) {
+            expr = new QueryRoot(expr);
+        }
+
+        try {
+            TripleSource tripleSource = new SailConnectionTripleSource(this, valueFactory, includeInferred);
+            EvaluationStrategy strategy = new SimpleEvaluationStrategy(tripleSource, dataset, null);
+
+            // the same optimizers as applied by MemoryStore and NativeStore
+            new BindingAssigner().optimize(expr, dataset, bindings);
+            new ConstantOptimizer(strategy).optimize(expr, dataset, bindings);
+            new CompareOptimizer().optimize(expr, dataset, bindings);
+            new ConjunctiveConstraintSplitter().optimize(expr, dataset, bindings);
+            new DisjunctiveConstraintOptimizer().optimize(expr, dataset, bindings);
+            new SameTermFilterOptimizer().optimize(expr, dataset, bindings);
+            new QueryModelNormalizer().optimize(expr, dataset, bindings);
+            new QueryJoinOptimizer(new CompactEvaluationStatistics()).optimize(expr, dataset, bindings);
+            new IterativeEvaluationOptimizer().optimize(expr, dataset, bindings);
+            new FilterOptimizer().optimize(expr, dataset, bindings);
+            new OrderLimitOptimizer().optimize(expr, dataset, bindings);
+
+            return strategy.evaluate(expr, bindings);
+        } catch (QueryEvaluationException e) {
+            throw new SailException(e);
+        }
+    }
+
+    @Override
+    protected CloseableIteration<? extends Resource, SailException> getContextIDsInternal() throws SailException {
+        List<Resource> contexts;
+        lock.readLock().lock();
+        try {
+            contexts = quads.getContexts();
+        } finally {
+            lock.readLock().unlock();
+        }
+        return new CloseableIteratorIteration<>(contexts.iterator());
+    }
+
+    @Override
+    protected CloseableIteration<? extends Statement, SailException> getStatementsInternal(
+            final Resource subj,
+            final IRI pred,
+            final Value obj,
+            final boolean includeInferred,
+            final Resource... contexts) throws SailException {
+        lock.readLock().lock();
+        try {
+            return new QuadIteration(quads.match(subj, pred, obj, contexts, valueFactory));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    protected long sizeInternal(final Resource... contexts) throws SailException {
+        lock.readLock().lock();
+        try {
+            return quads.count(contexts);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    protected void startTransactionInternal() throws SailException {
+        changes.clear();
+    }
+
+    @Override
+    protected void commitInternal() throws SailException {
+        changes.clear();
+    }
+
+    @Override
+    protected void rollbackInternal() throws SailException {
+        lock.writeLock().lock();
+        try {
+            // undo changes in reverse order
+            while (!changes.isEmpty()) {
+                Change c = changes.removeLast();
+                Statement st = c.statement;
+                if (c.added) {
+                    quads.remove(st.getSubject(), st.getPredicate(), st.getObject(),
+                            new Resource[]{st.getContext()}, valueFactory);
+                } else {
+                    quads.add(st.getSubject(), st.getPredicate(), st.getObject(), st.getContext());
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    protected void addStatementInternal(final Resource subj,
+                                        final IRI pred,
+                                        final Value obj,
+                                        final Resource... contexts) throws SailException {
+        lock.writeLock().lock();
+        try {
+            if (0 == contexts.length) {
+                addQuad(subj, pred, obj, null);
+            } else {
+                for (Resource ctx : contexts) {
+                    addQuad(subj, pred, obj, ctx);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    protected void removeStatementsInternal(final Resource subj,
+                                            final IRI pred,
+                                            final Value obj,
+                                            final Resource... contexts) throws SailException {
+        lock.writeLock().lock();
+        try {
+            for (Statement st : quads.remove(subj, pred, obj, contexts, valueFactory)) {
+                changes.add(new Change(st, false));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    protected void clearInternal(final Resource... contexts) throws SailException {
+        removeStatementsInternal(null, null, null, contexts);
+    }
+
+    @Override
+    protected CloseableIteration<? extends Namespace, SailException> getNamespacesInternal() throws SailException {
+        List<Namespace> results = new LinkedList<>();
+        for (Map.Entry<String, String> e : namespaces.entrySet()) {
+            results.add(new SimpleNamespace(e.getKey(), e.getValue()));
+        }
+        return new CloseableIteratorIteration<>(results.iterator());
+    }
+
+    @Override
+    protected String getNamespaceInternal(final String prefix) throws SailException {
+        return namespaces.get(prefix);
+    }
+
+    @Override
+    protected void setNamespaceInternal(final String prefix, final String name) throws SailException {
+        namespaces.put(prefix, name);
+    }
+
+    @Override
+    protected void removeNamespaceInternal(final String prefix) throws SailException {
+        namespaces.remove(prefix);
+    }
+
+    @Override
+    protected void clearNamespacesInternal() throws SailException {
+        namespaces.clear();
+    }
+
+    @Override
+    public boolean pendingRemovals() {
+        return false;
+    }
+
+    private void addQuad(final Resource subj, final IRI pred, final Value obj, final Resource context) {
+        if (quads.add(subj, pred, obj, context)) {
+            changes.add(new Change(null == context
+                    ? valueFactory.createStatement(subj, pred, obj)
+                    : valueFactory.createStatement(subj, pred, obj, context), true));
+        }
+    }
+
+    // estimates the cardinality of a statement pattern by the shortest chain of any of its constants
+    private class CompactEvaluationStatistics extends EvaluationStatistics {
+        @Override
+        protected CardinalityCalculator createCardinalityCalculator() {
+            return new CardinalityCalculator() {
+                @Override
+                protected double getCardinality(final StatementPattern sp) {
+                    lock.readLock().lock();
+                    try {
+                        return quads.estimate(valueOf(sp.getSubjectVar()), valueOf(sp.getPredicateVar()),
+                                valueOf(sp.getObjectVar()), valueOf(sp.getContextVar()));
+                    } finally {
+                        lock.readLock().unlock();
+                    }
+                }
+            };
+        }
+
+        private Value valueOf(final Var var) {
+            return null == var ? null : var.getValue();
+        }
+    }
+
+    private class QuadIteration extends AbstractCloseableIteration<Statement, SailException> {
+        private final QuadTable.Cursor cursor;
+
+        private QuadIteration(final QuadTable.Cursor cursor) {
+            this.cursor = cursor;
+        }
+
+        @Override
+        public boolean hasNext() throws SailException {
+            if (isClosed()) {
+                return false;
+            }
+
+            boolean hasNext;
+            lock.readLock().lock();
+            try {
+                hasNext = cursor.hasNext();
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            if (!hasNext) {
+                close();
+            }
+            return hasNext;
+        }
+
+        @Override
+        public Statement next() throws SailException {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            lock.readLock().lock();
+            try {
+                return cursor.next();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected void handleClose() throws SailException {
+            cursor.close();
+        }
+    }
+
+    private static class Change {
+        private final Statement statement;
+        private final boolean added;
+
+        private Change(final Statement statement, final boolean added) {
+            this.statement = statement;
+            this.added = added;
+        }
+    }
+}
@@ -0,0 +1,571 @@
+package net.fortytwo.sesametools.caching.compact;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.ValueFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A compact, dictionary-encoded table of quads.
+ * Each distinct value is assigned an integer id, and each quad is stored as a fixed-size record of ids
+ * in direct (off-heap) memory.  Every record is threaded onto four doubly-linked chains,
+ * one per position (subject, predicate, object and context), so that the quads having a given value
+ * in a given position can be enumerated without scanning the table.
+ * Note: the dictionary itself is kept on the heap, so heap usage grows with the number of distinct values,
+ * but not with the number of quads.
+ * Matching quads are enumerated lazily through a {@link Cursor}.  While any cursor is open, removed records
+ * and released value ids are not reused, so that a cursor may be advanced between modifications of the table.
+ * The table is not thread-safe; callers are responsible for synchronization.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+class QuadTable {
+    private static final int SUBJ = 0, PRED = 1, OBJ = 2, CTX = 3;
+    private static final int POSITIONS = 4;
+
+    // record layout: four value ids, followed by a (next, prev) pair of record pointers for each position
+    private static final int RECORD_INTS = POSITIONS + 2 * POSITIONS;
+    private static final int SEGMENT_BITS = 16;
+    private static final int SEGMENT_RECORDS = 1 << SEGMENT_BITS;
+    private static final int SEGMENT_MASK = SEGMENT_RECORDS - 1;
+
+    private static final int NIL = -1;
+    // the id of the default graph in the context position; values have positive ids
+    private static final int DEFAULT_GRAPH = 0;
+
+    // dictionary
+    private final Map<Value, Integer> idsByValue = new HashMap<>();
+    private Value[] valuesById = new Value[1024];
+    private int[] freeIds = new int[64];
+    private int freeIdCount = 0;
+    private int nextId = 1;
+
+    // per-id, per-position chain heads and lengths
+    private final int[][] heads = new int[POSITIONS][];
+    private final int[][] counts = new int[POSITIONS][];
+
+    // records
+    private final List<IntBuffer> segments = new ArrayList<>();
+    private int highWater = 0;
+    private int freeRecords = NIL;
+    private long size = 0;
+
+    // removed records and released value ids which may still be reached by an open cursor
+    private final AtomicInteger openCursors = new AtomicInteger();
+    private int[] deferredRecords = new int[64];
+    private int deferredRecordCount = 0;
+    private int[] deferredIds = new int[64];
+    private int deferredIdCount = 0;
+    // incremented whenever the table is cleared, invalidating all open cursors
+    private int generation = 0;
+
+    QuadTable() {
+        for (int i = 0; i < POSITIONS; i++) {
+            heads[i] = new int[valuesById.length];
+            Arrays.fill(heads[i], NIL);
+            counts[i] = new int[valuesById.length];
+        }
+    }
+
+    /**
+     * @return the number of quads in the table
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * @return the number of distinct values in the dictionary
+     */
+    int getValueCount() {
+        return idsByValue.size();
+    }
+
+    /**
+     * @return the number of bytes of direct memory allocated for quad records
+     */
+    long getAllocatedBytes() {
+        return (long) segments.size() * SEGMENT_RECORDS * RECORD_INTS * 4;
+    }
+
+    /**
+     * Adds a quad to the table, unless it is already present.
+     *
+     * @return whether the quad was added
+     */
+    boolean add(final Resource subj, final IRI pred, final Value obj, final Resource context) {
+        reclaim();
+
+        Integer s = idsByValue.get(subj), p = idsByValue.get(pred), o = idsByValue.get(obj);
+        Integer c = null == context ? (Integer) DEFAULT_GRAPH : idsByValue.get(context);
+        if (null != s && null != p && null != o && null != c && NIL != find(s, p, o, c)) {
+            return false;
+        }
+
+        int[] ids = {intern(subj), intern(pred), intern(obj), null == context ? DEFAULT_GRAPH : intern(context)};
+        int record = allocateRecord();
+        for (int pos = 0; pos < POSITIONS; pos++) {
+            set(record, pos, ids[pos]);
+            link(record, pos, ids[pos]);
+        }
+        size++;
+        return true;
+    }
+
+    /**
+     * Finds the quads matching a pattern.
+     * The returned cursor must be closed.
+     *
+     * @param contexts the contexts to match, as in <code>SailConnection.getStatements</code>.
+     *                 If empty, quads in any context match; a null element matches the default graph.
+     */
+    Cursor match(final Resource subj, final IRI pred, final Value obj, final Resource[] contexts,
+                 final ValueFactory valueFactory) {
+        Cursor cursor = new Cursor(subj, pred, obj, contexts, valueFactory);
+        openCursors.incrementAndGet();
+        return cursor;
+    }
+
+    /**
+     * Removes the quads matching a pattern.
+     *
+     * @return the removed quads
+     */
+    List<Statement> remove(final Resource subj, final IRI pred, final Value obj, final Resource[] contexts,
+                           final ValueFactory valueFactory) {
+        reclaim();
+
+        List<Statement> removed = new LinkedList<>();
+        // Note: this cursor is not counted as open; it has already moved past each record when it is freed
+        Cursor cursor = new Cursor(subj, pred, obj, contexts, valueFactory);
+        int record;
+        while (NIL != (record = cursor.advance())) {
+            removed.add(toStatement(record, valueFactory));
+            int[] ids = new int[POSITIONS];
+            for (int pos = 0; pos < POSITIONS; pos++) {
+                ids[pos] = get(record, pos);
+                unlink(record, pos, ids[pos]);
+            }
+            freeRecord(record);
+            size--;
+            for (int pos = 0; pos < POSITIONS; pos++) {
+                release(ids[pos]);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return the number of quads in the given contexts, or in all contexts if none are given
+     */
+    long count(final Resource[] contexts) {
+        if (0 == contexts.length) {
+            return size;
+        }
+
+        long total = 0;
+        for (Resource ctx : contexts) {
+            Integer c = null == ctx ? (Integer) DEFAULT_GRAPH : idsByValue.get(ctx);
+            if (null != c) {
+                total += counts[CTX][c];
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return an upper bound on the number of quads having the given values, any of which may be null,
+     * in the respective positions
+     */
+    long estimate(final Value subj, final Value pred, final Value obj, final Value context) {
+        Value[] values = {subj, pred, obj, context};
+        long estimate = size;
+        for (int pos = 0; pos < POSITIONS; pos++) {
+            if (null != values[pos]) {
+                Integer id = idsByValue.get(values[pos]);
+                if (null == id) {
+                    return 0;
+                }
+                estimate = Math.min(estimate, counts[pos][id]);
+            }
+        }
+        return estimate;
+    }
+
+    /**
+     * @return the named contexts which contain at least one quad
+     */
+    List<Resource> getContexts() {
+        List<Resource> results = new LinkedList<>();
+        for (int id = 1; id < nextId; id++) {
+            if (counts[CTX][id] > 0) {
+                results.add((Resource) valuesById[id]);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Removes all quads and values, and releases direct memory.
+     */
+    void clear() {
+        idsByValue.clear();
+        Arrays.fill(valuesById, null);
+        freeIdCount = 0;
+        nextId = 1;
+        for (int i = 0; i < POSITIONS; i++) {
+            Arrays.fill(heads[i], NIL);
+            Arrays.fill(counts[i], 0);
+        }
+        segments.clear();
+        highWater = 0;
+        freeRecords = NIL;
+        size = 0;
+        deferredRecordCount = 0;
+        deferredIdCount = 0;
+        generation++;
+    }
+
+    /**
+     * A lazy enumeration of the quads matching a pattern.
+     * Quads added after the cursor was opened may or may not be enumerated,
+     * and quads removed before the cursor reaches them are not.
+     * Each call must be synchronized with modifications of the table, as for the table itself.
+     */
+    class Cursor {
+        private final ValueFactory valueFactory;
+        private final int[] bound = {NIL, NIL, NIL, NIL};
+        // the set of acceptable context ids, or null for any context
+        private int[] contextIds;
+        // the position whose chain is walked, or NIL if the whole table is scanned
+        private int chainPos = NIL;
+        // the next record to visit, or NIL if there are no more records
+        private int record = NIL;
+        private final int cursorGeneration = generation;
+        private Statement next;
+        private boolean closed;
+
+        private Cursor(final Resource subj, final IRI pred, final Value obj, final Resource[] contexts,
+                       final ValueFactory valueFactory) {
+            this.valueFactory = valueFactory;
+
+            Value[] values = {subj, pred, obj};
+            for (int pos = SUBJ; pos <= OBJ; pos++) {
+                if (null != values[pos]) {
+                    Integer id = idsByValue.get(values[pos]);
+                    if (null == id) {
+                        return;
+                    }
+                    bound[pos] = id;
+                }
+            }
+
+            if (contexts.length > 0) {
+                int[] ids = new int[contexts.length];
+                int n = 0;
+                for (Resource ctx : contexts) {
+                    Integer c = null == ctx ? (Integer) DEFAULT_GRAPH : idsByValue.get(ctx);
+                    if (null != c) {
+                        ids[n++] = c;
+                    }
+                }
+                if (0 == n) {
+                    return;
+                }
+                contextIds = Arrays.copyOf(ids, n);
+                if (1 == n) {
+                    bound[CTX] = contextIds[0];
+                }
+            }
+
+            // walk the shortest chain of any bound position, or else scan the whole table
+            for (int pos = 0; pos < POSITIONS; pos++) {
+                if (NIL != bound[pos]
+                        && (NIL == chainPos || counts[pos][bound[pos]] < counts[chainPos][bound[chainPos]])) {
+                    chainPos = pos;
+                }
+            }
+            record = NIL == chainPos ? 0 : heads[chainPos][bound[chainPos]];
+        }
+
+        /**
+         * @return whether there is another matching quad
+         */
+        boolean hasNext() {
+            if (null == next && !closed) {
+                // the quad is retrieved right away, as its record may be freed before the next call
+                int r = advance();
+                if (NIL != r) {
+                    next = toStatement(r, valueFactory);
+                }
+            }
+            return null != next;
+        }
+
+        /**
+         * @return the next matching quad
+         */
+        Statement next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Statement st = next;
+            next = null;
+            return st;
+        }
+
+        /**
+         * Releases the cursor, allowing the records it may still reach to be reused.
+         */
+        void close() {
+            if (!closed) {
+                closed = true;
+                next = null;
+                openCursors.decrementAndGet();
+            }
+        }
+
+        // moves to the next live, matching record, returning it, or NIL at the end
+        private int advance() {
+            if (cursorGeneration != generation) {
+                record = NIL;
+            }
+
+            if (NIL == chainPos) {
+                while (NIL != record && record < highWater) {
+                    int r = record++;
+                    if (isLive(r) && matches(r, bound, contextIds)) {
+                        return r;
+                    }
+                }
+                record = NIL;
+            } else {
+                while (NIL != record) {
+                    int r = record;
+                    record = QuadTable.this.next(r, chainPos);
+                    if (isLive(r) && matches(r, bound, contextIds)) {
+                        return r;
+                    }
+                }
+            }
+            return NIL;
+        }
+    }
+
+    private boolean matches(final int record, final int[] bound, final int[] contextIds) {
+        for (int pos = SUBJ; pos <= OBJ; pos++) {
+            if (NIL != bound[pos] && get(record, pos) != bound[pos]) {
+                return false;
+            }
+        }
+
+        if (null != contextIds) {
+            int c = get(record, CTX);
+            for (int id : contextIds) {
+                if (id == c) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        return true;
+    }
+
+    private int find(final int s, final int p, final int o, final int c) {
+        int[] ids = {s, p, o, c};
+        int chainPos = SUBJ;
+        for (int pos = 1; pos < POSITIONS; pos++) {
+            if (counts[pos][ids[pos]] < counts[chainPos][ids[chainPos]]) {
+                chainPos = pos;
+            }
+        }
+
+        for (int record = heads[chainPos][ids[chainPos]]; NIL != record; record = next(record, chainPos)) {
+            if (get(record, SUBJ) == s && get(record, PRED) == p && get(record, OBJ) == o && get(record, CTX) == c) {
+                return record;
+            }
+        }
+        return NIL;
+    }
+
+    private Statement toStatement(final int record, final ValueFactory valueFactory) {
+        Resource subj = (Resource) valuesById[get(record, SUBJ)];
+        IRI pred = (IRI) valuesById[get(record, PRED)];
+        Value obj = valuesById[get(record, OBJ)];
+        int c = get(record, CTX);
+        return DEFAULT_GRAPH == c
+                ? valueFactory.createStatement(subj, pred, obj)
+                : valueFactory.createStatement(subj, pred, obj, (Resource) valuesById[c]);
+    }
+
+    // dictionary ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private int intern(final Value value) {
+        Integer id = idsByValue.get(value);
+        if (null != id) {
+            return id;
+        }
+
+        int newId = freeIdCount > 0 ? freeIds[--freeIdCount] : nextId++;
+        if (newId >= valuesById.length) {
+            int length = valuesById.length * 2;
+            valuesById = Arrays.copyOf(valuesById, length);
+            for (int i = 0; i < POSITIONS; i++) {
+                int oldLength = heads[i].length;
+                heads[i] = Arrays.copyOf(heads[i], length);
+                Arrays.fill(heads[i], oldLength, length, NIL);
+                counts[i] = Arrays.copyOf(counts[i], length);
+            }
+        }
+
+        valuesById[newId] = value;
+        idsByValue.put(value, newId);
+        return newId;
+    }
+
+    // frees a value id once no quad refers to it
+    private void release(final int id) {
+        if (DEFAULT_GRAPH == id || null == valuesById[id]) {
+            return;
+        }
+
+        // an open cursor may still compare the id of a removed record with the ids of its pattern
+        if (openCursors.get() > 0) {
+            if (deferredIdCount == deferredIds.length) {
+                deferredIds = Arrays.copyOf(deferredIds, deferredIds.length * 2);
+            }
+            deferredIds[deferredIdCount++] = id;
+            return;
+        }
+
+        for (int pos = 0; pos < POSITIONS; pos++) {
+            if (counts[pos][id] > 0) {
+                return;
+            }
+        }
+
+        idsByValue.remove(valuesById[id]);
+        valuesById[id] = null;
+        if (freeIdCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+        }
+        freeIds[freeIdCount++] = id;
+    }
+
+    // records ///////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private int allocateRecord() {
+        if (NIL != freeRecords) {
+            int record = freeRecords;
+            freeRecords = next(record, SUBJ);
+            return record;
+        }
+
+        if (highWater == segments.size() * SEGMENT_RECORDS) {
+            segments.add(ByteBuffer.allocateDirect(SEGMENT_RECORDS * RECORD_INTS * 4)
+                    .order(ByteOrder.nativeOrder()).asIntBuffer());
+        }
+        return highWater++;
+    }
+
+    // A free record has a subject id of zero, and is threaded onto the free list through its subject chain.
+    // While a cursor is open, the chain pointers of a removed record are kept, so that a cursor can move past it.
+    private void freeRecord(final int record) {
+        set(record, SUBJ, 0);
+        if (openCursors.get() > 0) {
+            if (deferredRecordCount == deferredRecords.length) {
+                deferredRecords = Arrays.copyOf(deferredRecords, deferredRecords.length * 2);
+            }
+            deferredRecords[deferredRecordCount++] = record;
+        } else {
+            setNext(record, SUBJ, freeRecords);
+            freeRecords = record;
+        }
+    }
+
+    // makes deferred records and ids available for reuse once no cursor is open
+    private void reclaim() {
+        if (openCursors.get() > 0) {
+            return;
+        }
+
+        for (int i = 0; i < deferredRecordCount; i++) {
+            setNext(deferredRecords[i], SUBJ, freeRecords);
+            freeRecords = deferredRecords[i];
+        }
+        deferredRecordCount = 0;
+
+        int ids = deferredIdCount;
+        deferredIdCount = 0;
+        for (int i = 0; i < ids; i++) {
+            // the value may have been added again in the meantime
+            release(deferredIds[i]);
+        }
+    }
+
+    private boolean isLive(final int record) {
+        return 0 != get(record, SUBJ);
+    }
+
+    private void link(final int record, final int pos, final int id) {
+        int head = heads[pos][id];
+        setNext(record, pos, head);
+        setPrev(record, pos, NIL);
+        if (NIL != head) {
+            setPrev(head, pos, record);
+        }
+        heads[pos][id] = record;
+        counts[pos][id]++;
+    }
+
+    private void unlink(final int record, final int pos, final int id) {
+        int next = next(record, pos), prev = prev(record, pos);
+        if (NIL == prev) {
+            heads[pos][id] = next;
+        } else {
+            setNext(prev, pos, next);
+        }
+        if (NIL != next) {
+            setPrev(next, pos, prev);
+        }
+        counts[pos][id]--;
+    }
+
+    private int get(final int record, final int field) {
+        return segments.get(record >>> SEGMENT_BITS).get((record & SEGMENT_MASK) * RECORD_INTS + field);
+    }
+
+    private void set(final int record, final int field, final int value) {
+        segments.get(record >>> SEGMENT_BITS).put((record & SEGMENT_MASK) * RECORD_INTS + field, value);
+    }
+
+    private int next(final int record, final int pos) {
+        return get(record, POSITIONS + 2 * pos);
+    }
+
+    private int prev(final int record, final int pos) {
+        return get(record, POSITIONS + 2 * pos + 1);
+    }
+
+    private void setNext(final int record, final int pos, final int next) {
+        set(record, POSITIONS + 2 * pos, next);
+    }
+
+    private void setPrev(final int record, final int pos, final int prev) {
+        set(record, POSITIONS + 2 * pos + 1, prev);
+    }
+}
@@ -1,6 +1,8 @@
 package net.fortytwo.sesametools.caching;
 
 import org.eclipse.rdf4j.common.iteration.CloseableIteration;
+import net.fortytwo.sesametools.MultiStackableSail;
+import net.fortytwo.sesametools.caching.compact.CompactStore;
 import net.fortytwo.sesametools.replay.Handler;
 import net.fortytwo.sesametools.replay.RecorderSail;
 import net.fortytwo.sesametools.replay.SailConnectionCall;
@@ -9,6 +11,9 @@ import org.junit.Before;
 import org.junit.Test;
 import org.eclipse.rdf4j.model.Statement;
 import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.query.QueryLanguage;
+import org.eclipse.rdf4j.query.TupleQueryResult;
 import org.eclipse.rdf4j.repository.Repository;
 import org.eclipse.rdf4j.repository.RepositoryConnection;
 import org.eclipse.rdf4j.repository.sail.SailRepository;
@@ -20,9 +25,18 @@ import org.eclipse.rdf4j.sail.memory.MemoryStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 /**
  * @author Joshua Shinavier (http://fortytwo.net)
@@ -105,6 +119,157 @@ public class CachingSailTest {
 
     }
 
+    @Test
+    public void testCompactCacheStore() throws Exception {
+        CachingSail compactSail = new CachingSail(
+                new RecorderSail(new MultiStackableSail(baseSail), counter), true, false, false, CAPACITY);
+        compactSail.setCacheStoreFactory(CompactStore::new);
+        compactSail.initialize();
+        SailConnection compactSc = compactSail.getConnection();
+        try {
+            counter.reset();
+            assertEquals(2, countStatements(compactSc.getStatements(uri("one"), null, null, false)));
+            assertEquals(1, counter.getGets());
+            counter.reset();
+            assertEquals(1, countStatements(compactSc.getStatements(uri("one"), uri("two"), null, false)));
+            assertEquals(0, counter.getGets());
+        } finally {
+            compactSc.close();
+            compactSail.shutDown();
+        }
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        int count;
+
+        // Each of the two subjects has two statements, so only one of them fits into the cache at a time.
+        CachingSail smallSail = new CachingSail(
+                new RecorderSail(new MultiStackableSail(baseSail), counter), true, false, false, 2);
+        smallSail.initialize();
+        SailConnection smallSc = smallSail.getConnection();
+        try {
+            counter.reset();
+            count = countStatements(smallSc.getStatements(uri("one"), null, null, false));
+            assertEquals(2, count);
+            assertEquals(1, counter.getGets());
+            assertEquals(2, smallSail.getCachedStatementCount());
+
+            // Subject "six" displaces subject "one".
+            counter.reset();
+            count = countStatements(smallSc.getStatements(uri("six"), null, null, false));
+            assertEquals(2, count);
+            assertEquals(1, counter.getGets());
+            assertEquals(1, smallSail.getStatistics().getEvictions());
+            assertEquals(2, smallSail.getCachedStatementCount());
+
+            counter.reset();
+            count = countStatements(smallSc.getStatements(uri("six"), null, null, false));
+            assertEquals(2, count);
+            assertEquals(0, counter.getGets());
+
+            // Subject "one" must be fetched again.
+            counter.reset();
+            count = countStatements(smallSc.getStatements(uri("one"), null, null, false));
+            assertEquals(2, count);
+            assertEquals(1, counter.getGets());
+
+            assertEquals(1, smallSail.getStatistics().getHits());
+            assertEquals(3, smallSail.getStatistics().getMisses());
+            assertEquals(2, smallSail.getStatistics().getEvictions());
+        } finally {
+            smallSc.close();
+            smallSail.shutDown();
+        }
+    }
+
+    @Test
+    public void testKeysBeingReadAreNotEvicted() throws Exception {
+        CachingSail smallSail = new CachingSail(
+                new RecorderSail(new MultiStackableSail(baseSail), counter), true, false, false, 2);
+        smallSail.initialize();
+        SailConnection first = smallSail.getConnection();
+        SailConnection second = smallSail.getConnection();
+        try {
+            CloseableIteration<? extends Statement, SailException> iter
+                    = first.getStatements(uri("one"), null, null, false);
+            assertTrue(iter.hasNext());
+            iter.next();
+
+            // Subject "one" is being read, so subject "six" does not displace it, even though the cache is full.
+            assertEquals(2, countStatements(second.getStatements(uri("six"), null, null, false)));
+            assertEquals(0, smallSail.getStatistics().getEvictions());
+            assertEquals(4, smallSail.getCachedStatementCount());
+
+            assertTrue(iter.hasNext());
+            iter.next();
+            iter.close();
+
+            // Once the read is complete, subject "one" may be evicted again.
+            assertEquals(0, countStatements(second.getStatements(uri("two"), null, null, false)));
+            assertEquals(1, smallSail.getStatistics().getEvictions());
+            assertEquals(2, smallSail.getCachedStatementCount());
+        } finally {
+            first.close();
+            second.close();
+            smallSail.shutDown();
+        }
+    }
+
+    @Test
+    public void testAdmissionComparesWithEvictableKey() throws Exception {
+        CacheIndex index = new CacheIndex(1000, EvictionPolicy.TINY_LFU, new CacheStatistics());
+        CacheKey a = new CacheKey(CacheKey.Position.SUBJECT, uri("a"));
+        CacheKey b = new CacheKey(CacheKey.Position.SUBJECT, uri("b"));
+        CacheKey c = new CacheKey(CacheKey.Position.SUBJECT, uri("c"));
+        index.add(a, 500);
+        index.add(b, 500);
+        assertTrue(index.pin(a));
+        for (int i = 0; i < 5; i++) {
+            index.touch(b);
+            index.touch(c);
+        }
+
+        // the least recently used key "a" is pinned, so "c" competes with "b", which is as popular
+        assertFalse(index.admits(c));
+
+        index.touch(c);
+        assertTrue(index.admits(c));
+    }
+
+    @Test
+    public void testConcurrentLoadsAreCoalesced() throws Exception {
+        final int threads = 16;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger errors = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        counter.reset();
+        for (int i = 0; i < threads; i++) {
+            executor.submit(() -> {
+                try {
+                    start.await();
+                    try (SailConnection c = cachingSail.getConnection()) {
+                        if (2 != countStatements(c.getStatements(uri("one"), null, null, false))) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                } catch (Exception e) {
+                    LOG.error("query failed", e);
+                    errors.incrementAndGet();
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        executor.awaitTermination(30, TimeUnit.SECONDS);
+
+        assertEquals(0, errors.get());
+        // All threads but one wait for the same scan of the base Sail.
+        assertEquals(1, counter.getGets());
+        assertEquals(threads, cachingSail.getStatistics().getHits() + cachingSail.getStatistics().getMisses());
+    }
+
     @Test
     public void testWrite() throws Exception {
         int count;
@@ -134,11 +299,274 @@ public class CachingSailTest {
         assertEquals(0, count);
     }
 
+    @Test
+    public void testWriteThrough() throws Exception {
+        int count;
+
+        count = countStatements(sc.getStatements(uri("one"), null, null, false));
+        assertEquals(2, count);
+        assertEquals(2, cachingSail.getCachedStatementCount());
+
+        // Statements about a resident subject are written through to the cache.
+        sc.begin();
+        sc.addStatement(uri("one"), uri("ten"), uri("eleven"));
+        sc.commit();
+        assertEquals(3, cachingSail.getCachedStatementCount());
+        counter.reset();
+        count = countStatements(sc.getStatements(uri("one"), null, null, false));
+        assertEquals(3, count);
+        assertEquals(0, counter.getGets());
+
+        // Statements about a non-resident subject bypass the cache, but are found when the subject is cached.
+        sc.begin();
+        sc.addStatement(uri("six"), uri("ten"), uri("eleven"));
+        sc.commit();
+        assertEquals(3, cachingSail.getCachedStatementCount());
+        counter.reset();
+        count = countStatements(sc.getStatements(uri("six"), null, null, false));
+        assertEquals(3, count);
+        assertEquals(1, counter.getGets());
+
+        // Wildcard removal reaches statements of all resident subjects.
+        sc.begin();
+        sc.removeStatements(null, uri("ten"), null);
+        sc.commit();
+        counter.reset();
+        assertEquals(2, countStatements(sc.getStatements(uri("one"), null, null, false)));
+        assertEquals(2, countStatements(sc.getStatements(uri("six"), null, null, false)));
+        assertEquals(0, counter.getGets());
+
+        // Clearing the store invalidates all cached subjects.
+        sc.begin();
+        sc.clear();
+        sc.commit();
+        assertEquals(0, cachingSail.getCachedStatementCount());
+        counter.reset();
+        assertEquals(0, countStatements(sc.getStatements(uri("one"), null, null, false)));
+        assertEquals(1, counter.getGets());
+    }
+
+    @Test
+    public void testKeysLoadedDuringWriteAreInvalidated() throws Exception {
+        SailConnection other = cachingSail.getConnection();
+        try {
+            sc.begin();
+            sc.addStatement(uri("six"), uri("ten"), uri("eleven"));
+            sc.removeStatements(uri("one"), null, null);
+
+            // another connection caches both subjects before the writes are committed
+            assertEquals(2, countStatements(other.getStatements(uri("six"), null, null, false)));
+            assertEquals(2, countStatements(other.getStatements(uri("one"), null, null, false)));
+            assertEquals(4, cachingSail.getCachedStatementCount());
+
+            sc.commit();
+            assertEquals(0, cachingSail.getCachedStatementCount());
+            assertEquals(3, countStatements(other.getStatements(uri("six"), null, null, false)));
+            assertEquals(0, countStatements(other.getStatements(uri("one"), null, null, false)));
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test
+    public void testUncommittedWritesAreNotCached() throws Exception {
+        SailConnection other = cachingSail.getConnection();
+        try {
+            sc.begin();
+            sc.addStatement(uri("six"), uri("ten"), uri("eleven"));
+            assertEquals(3, countStatements(sc.getStatements(uri("six"), null, null, false)));
+            assertEquals(0, cachingSail.getCachedStatementCount());
+
+            assertEquals(2, countStatements(other.getStatements(uri("six"), null, null, false)));
+            assertEquals(2, cachingSail.getCachedStatementCount());
+            sc.rollback();
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test
+    public void testPatternCache() throws Exception {
+        CachingSail patternSail = new CachingSail(
+                new RecorderSail(new MultiStackableSail(baseSail), counter), false, false, false, CAPACITY);
+        patternSail.setPatternCacheCapacity(1000);
+        patternSail.initialize();
+        SailConnection patternSc = patternSail.getConnection();
+        try {
+            // The first request for a pattern goes to the base Sail, subsequent requests do not.
+            counter.reset();
+            assertEquals(1, countStatements(patternSc.getStatements(null, uri("two"), null, false)));
+            assertEquals(1, counter.getGets());
+            counter.reset();
+            assertEquals(1, countStatements(patternSc.getStatements(null, uri("two"), null, false)));
+            assertEquals(0, counter.getGets());
+            assertEquals(1, patternSail.getStatistics().getPatternHits());
+            assertEquals(1, patternSail.getStatistics().getPatternMisses());
+
+            // A non-overlapping write leaves the cached results alone.
+            patternSc.begin();
+            patternSc.addStatement(uri("one"), uri("ten"), uri("eleven"));
+            patternSc.commit();
+            counter.reset();
+            assertEquals(1, countStatements(patternSc.getStatements(null, uri("two"), null, false)));
+            assertEquals(0, counter.getGets());
+
+            // An overlapping write invalidates them.
+            patternSc.begin();
+            patternSc.addStatement(uri("six"), uri("two"), uri("eleven"));
+            patternSc.commit();
+            counter.reset();
+            assertEquals(2, countStatements(patternSc.getStatements(null, uri("two"), null, false)));
+            assertEquals(1, counter.getGets());
+        } finally {
+            patternSc.close();
+            patternSail.shutDown();
+        }
+    }
+
+    @Test
+    public void testQueryEvaluation() throws Exception {
+        String query = "SELECT * WHERE { <" + NS + "one> <" + NS + "two> ?x . <" + NS + "one> <" + NS + "four> ?y }";
+        Repository repo = new SailRepository(cachingSail);
+        try (RepositoryConnection rc = repo.getConnection()) {
+            // Subject "one" is fetched once, before evaluation.
+            counter.reset();
+            assertEquals(1, countSolutions(rc.prepareTupleQuery(QueryLanguage.SPARQL, query).evaluate()));
+            assertEquals(1, counter.getGets());
+            assertEquals(2, cachingSail.getCachedStatementCount());
+
+            // All patterns are now answerable from the cache store.
+            counter.reset();
+            assertEquals(1, countSolutions(rc.prepareTupleQuery(QueryLanguage.SPARQL, query).evaluate()));
+            assertEquals(0, counter.getGets());
+
+            // A pattern without a cached key must be relayed to the base Sail.
+            counter.reset();
+            assertEquals(1, countSolutions(rc.prepareTupleQuery(QueryLanguage.SPARQL,
+                    "SELECT * WHERE { <" + NS + "one> ?p ?o . ?s <" + NS + "two> ?o }").evaluate()));
+            assertEquals(2, counter.getGets());
+
+            // While there are uncommitted changes, the query is evaluated against the base Sail,
+            // and no keys are loaded on its behalf.
+            rc.begin();
+            rc.add(uri("nine"), uri("ten"), uri("eleven"));
+            assertEquals(1, countSolutions(rc.prepareTupleQuery(QueryLanguage.SPARQL,
+                    "SELECT * WHERE { <" + NS + "six> <" + NS + "seven> ?x }").evaluate()));
+            assertEquals(2, cachingSail.getCachedStatementCount());
+            rc.rollback();
+        }
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        File snapshot = File.createTempFile("cache", ".snapshot");
+        snapshot.delete();
+        try {
+            CachingSail first = new CachingSail(
+                    new RecorderSail(new MultiStackableSail(baseSail), counter), true, false, false, CAPACITY);
+            first.setSnapshotFile(snapshot, false);
+            first.initialize();
+            try (SailConnection c = first.getConnection()) {
+                assertEquals(2, countStatements(c.getStatements(uri("one"), null, null, false)));
+            }
+            first.shutDown();
+            assertTrue(snapshot.exists());
+
+            // The restarted cache is warm.
+            CachingSail second = new CachingSail(
+                    new RecorderSail(new MultiStackableSail(baseSail), counter), true, false, false, CAPACITY);
+            second.setSnapshotFile(snapshot, false);
+            second.initialize();
+            try (SailConnection c = second.getConnection()) {
+                assertEquals(2, second.getCachedStatementCount());
+                counter.reset();
+                assertEquals(2, countStatements(c.getStatements(uri("one"), null, null, false)));
+                assertEquals(0, counter.getGets());
+            }
+            second.shutDown();
+        } finally {
+            snapshot.delete();
+        }
+    }
+
+    @Test
+    public void testWarmUp() throws Exception {
+        assertEquals(2, cachingSail.warmUp(CacheKey.Position.SUBJECT, Arrays.asList(uri("one"), uri("six"))));
+        assertEquals(4, cachingSail.getCachedStatementCount());
+        counter.reset();
+        assertEquals(2, countStatements(sc.getStatements(uri("six"), null, null, false)));
+        assertEquals(0, counter.getGets());
+    }
+
+    @Test
+    public void testStatementCounts() throws Exception {
+        // Counts are retrieved from the base Sail once.
+        assertEquals(4, sc.size());
+        counter.reset();
+        assertEquals(4, sc.size(uri("ctxA")));
+        assertEquals(0, sc.size((Resource) null));
+        assertEquals(1, countStatements(sc.getContextIDs()));
+        assertEquals(0, counter.getSizes());
+
+        // Writes through the CachingSail update the counts incrementally, without recounting any context,
+        // and the counts follow them, including uncommitted ones.
+        sc.begin();
+        sc.addStatement(uri("one"), uri("ten"), uri("eleven"), uri("ctxB"));
+        sc.addStatement(uri("one"), uri("two"), uri("three"), uri("ctxA"));
+        sc.addStatement(uri("six"), uri("ten"), uri("eleven"));
+        assertEquals(6, sc.size());
+        assertEquals(2, countStatements(sc.getContextIDs()));
+        sc.commit();
+        assertEquals(6, sc.size());
+        assertEquals(1, sc.size((Resource) null));
+        assertEquals(2, countStatements(sc.getContextIDs()));
+        assertEquals(0, counter.getSizes());
+
+        // Removal without a context affects any context, but is counted all the same.
+        sc.begin();
+        sc.removeStatements(null, uri("ten"), null);
+        assertEquals(4, sc.size());
+        sc.commit();
+        assertEquals(4, sc.size());
+        assertEquals(1, countStatements(sc.getContextIDs()));
+        assertEquals(0, counter.getSizes());
+
+        sc.begin();
+        sc.clear(uri("ctxA"));
+        assertEquals(0, sc.size(uri("ctxA")));
+        sc.addStatement(uri("one"), uri("two"), uri("three"), uri("ctxA"));
+        assertEquals(1, sc.size(uri("ctxA")));
+        sc.commit();
+        assertEquals(1, sc.size());
+        assertEquals(1, countStatements(sc.getContextIDs()));
+        assertEquals(0, counter.getSizes());
+
+        // Other connections see only committed changes.
+        SailConnection other = cachingSail.getConnection();
+        try {
+            sc.begin();
+            sc.clear();
+            assertEquals(0, sc.size());
+            assertEquals(1, other.size());
+            sc.commit();
+            assertEquals(0, other.size());
+            assertEquals(0, countStatements(other.getContextIDs()));
+        } finally {
+            other.close();
+        }
+        assertEquals(0, counter.getSizes());
+
+        // After invalidation, counts are retrieved from the base Sail again.
+        cachingSail.invalidateStatementCounts();
+        assertEquals(0, sc.size());
+        assertTrue(counter.getSizes() > 0);
+    }
+
     private IRI uri(final String localName) {
         return baseSail.getValueFactory().createIRI(NS + localName);
     }
 
-    private int countStatements(final CloseableIteration<? extends Statement, SailException> iter)
+    private int countStatements(final CloseableIteration<?, SailException> iter)
             throws SailException {
 
         int count = 0;
@@ -149,20 +577,41 @@ public class CachingSailTest {
         return count;
     }
 
+    private int countSolutions(final TupleQueryResult result) throws Exception {
+        int count = 0;
+        try {
+            while (result.hasNext()) {
+                count++;
+                result.next();
+            }
+        } finally {
+            result.close();
+        }
+        return count;
+    }
+
     private class SailCounter implements Handler<SailConnectionCall, SailException> {
         private int gets = 0;
+        private int sizes = 0;
         
-        public void handle(final SailConnectionCall call) throws SailException {
+        public synchronized void handle(final SailConnectionCall call) throws SailException {
             if (call.getType() == SailConnectionCall.Type.GET_STATEMENTS) {
                 gets++;
+            } else if (call.getType() == SailConnectionCall.Type.SIZE) {
+                sizes++;
             }
         }
         
-        public void reset() {
+        public synchronized void reset() {
             gets = 0;
+            sizes = 0;
+        }
+
+        public synchronized int getSizes() {
+            return sizes;
         }
         
-        public int getGets() {
+        public synchronized int getGets() {
             return gets;
         }
     }
@@ -0,0 +1,192 @@
+package net.fortytwo.sesametools.caching.compact;
+
+import org.eclipse.rdf4j.common.iteration.CloseableIteration;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Literal;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.query.QueryLanguage;
+import org.eclipse.rdf4j.query.TupleQueryResult;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.sail.SailRepository;
+import org.eclipse.rdf4j.sail.SailConnection;
+import org.eclipse.rdf4j.sail.SailException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class CompactStoreTest {
+    private static final String NS = "http://example.org/ns/";
+
+    private CompactStore store;
+    private ValueFactory vf;
+    private SailConnection sc;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new CompactStore();
+        store.initialize();
+        vf = store.getValueFactory();
+        sc = store.getConnection();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sc.close();
+        store.shutDown();
+    }
+
+    @Test
+    public void testAddAndMatch() throws Exception {
+        Literal lit = vf.createLiteral("foo", "en");
+
+        sc.begin();
+        sc.addStatement(uri("a"), uri("p"), uri("b"));
+        sc.addStatement(uri("a"), uri("p"), lit);
+        sc.addStatement(uri("b"), uri("q"), uri("a"), uri("g1"), uri("g2"));
+        // duplicates are ignored
+        sc.addStatement(uri("a"), uri("p"), uri("b"));
+        sc.commit();
+
+        assertEquals(4, sc.size());
+        assertEquals(2, sc.size((Resource) null));
+        assertEquals(1, sc.size(uri("g1")));
+        assertEquals(4, count(sc.getStatements(null, null, null, false)));
+        assertEquals(2, count(sc.getStatements(uri("a"), null, null, false)));
+        assertEquals(1, count(sc.getStatements(uri("a"), null, lit, false)));
+        assertEquals(2, count(sc.getStatements(null, uri("q"), null, false)));
+        assertEquals(2, count(sc.getStatements(null, null, uri("a"), false, uri("g1"), uri("g2"))));
+        assertEquals(2, count(sc.getStatements(null, null, null, false, (Resource) null)));
+        assertEquals(0, count(sc.getStatements(uri("b"), null, null, false, (Resource) null)));
+        assertEquals(0, count(sc.getStatements(uri("nonexistent"), null, null, false)));
+        assertEquals(2, count(sc.getContextIDs()));
+    }
+
+    @Test
+    public void testRemoveAndRollback() throws Exception {
+        sc.begin();
+        for (int i = 0; i < 10; i++) {
+            sc.addStatement(uri("a"), uri("p"), vf.createLiteral(i), uri("g"));
+        }
+        sc.commit();
+        assertEquals(10, sc.size());
+
+        sc.begin();
+        sc.removeStatements(uri("a"), null, vf.createLiteral(3));
+        sc.clear(uri("nonexistent"));
+        sc.commit();
+        assertEquals(9, sc.size());
+
+        sc.begin();
+        sc.clear(uri("g"));
+        sc.addStatement(uri("b"), uri("p"), uri("c"));
+        assertEquals(1, sc.size());
+        sc.rollback();
+        assertEquals(9, sc.size());
+        assertEquals(0, count(sc.getStatements(uri("b"), null, null, false)));
+
+        sc.begin();
+        sc.clear();
+        sc.commit();
+        assertEquals(0, sc.size());
+        assertEquals(0, count(sc.getContextIDs()));
+    }
+
+    @Test
+    public void testWriteDuringIteration() throws Exception {
+        sc.begin();
+        for (int i = 0; i < 10; i++) {
+            sc.addStatement(uri("a"), uri("p"), vf.createLiteral(i));
+        }
+        sc.commit();
+
+        // statements are removed and added while an iteration over them is open
+        int count = 0;
+        sc.begin();
+        try (CloseableIteration<? extends Statement, SailException> iter
+                     = sc.getStatements(uri("a"), null, null, false)) {
+            while (iter.hasNext()) {
+                Statement st = iter.next();
+                assertEquals(uri("a"), st.getSubject());
+                sc.removeStatements(st.getSubject(), st.getPredicate(), st.getObject());
+                sc.addStatement(uri("b"), uri("p"), st.getObject());
+                count++;
+            }
+        }
+        sc.commit();
+
+        assertEquals(10, count);
+        assertEquals(10, sc.size());
+        assertEquals(0, count(sc.getStatements(uri("a"), null, null, false)));
+        assertEquals(10, count(sc.getStatements(uri("b"), null, null, false)));
+    }
+
+    @Test
+    public void testManyStatements() throws Exception {
+        // enough statements to span several direct memory segments
+        int n = 200000;
+        sc.begin();
+        for (int i = 0; i < n; i++) {
+            sc.addStatement(uri("s" + (i % 1000)), uri("p" + (i % 7)), vf.createLiteral(i));
+        }
+        sc.commit();
+        assertEquals(n, sc.size());
+        assertEquals(n / 1000, count(sc.getStatements(uri("s42"), null, null, false)));
+        assertTrue(store.getAllocatedBytes() > 0);
+
+        sc.begin();
+        for (int i = 0; i < 1000; i += 2) {
+            sc.removeStatements(uri("s" + i), null, null);
+        }
+        sc.commit();
+        assertEquals(n / 2, sc.size());
+        assertEquals(0, count(sc.getStatements(uri("s42"), null, null, false)));
+        assertEquals(n / 1000, count(sc.getStatements(uri("s43"), null, null, false)));
+    }
+
+    @Test
+    public void testSparqlQuery() throws Exception {
+        sc.begin();
+        sc.addStatement(uri("a"), uri("knows"), uri("b"));
+        sc.addStatement(uri("b"), uri("knows"), uri("c"));
+        sc.addStatement(uri("c"), uri("knows"), uri("d"));
+        sc.commit();
+
+        SailRepository repo = new SailRepository(store);
+        try (RepositoryConnection rc = repo.getConnection()) {
+            try (TupleQueryResult result = rc.prepareTupleQuery(QueryLanguage.SPARQL,
+                    "SELECT ?x ?z WHERE { ?x <" + NS + "knows> ?y . ?y <" + NS + "knows> ?z }").evaluate()) {
+                int count = 0;
+                while (result.hasNext()) {
+                    result.next();
+                    count++;
+                }
+                assertEquals(2, count);
+            }
+        }
+    }
+
+    private IRI uri(final String localName) {
+        return vf.createIRI(NS + localName);
+    }
+
+    private int count(final CloseableIteration<?, SailException> iter) throws SailException {
+        int count = 0;
+        try {
+            while (iter.hasNext()) {
+                iter.next();
+                count++;
+            }
+        } finally {
+            iter.close();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,51 @@
+package net.fortytwo.sesametools;
+
+import org.eclipse.rdf4j.sail.Sail;
+import org.eclipse.rdf4j.sail.SailConnection;
+import org.eclipse.rdf4j.sail.SailException;
+import org.eclipse.rdf4j.sail.helpers.SailWrapper;
+
+/**
+ * A StackableSail which records the throughput and latency of each operation on its base Sail,
+ * the number of results of each iteration, and the number of open connections and iterations.
+ * Any layer of a Sail stack may be wrapped in this way, so as to find out which layer is slow.
+ * If the base Sail is a {@link MetricsSource}, its specialized metrics are reported through the same
+ * {@link SailMetrics} instance.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class InstrumentedSail extends SailWrapper {
+    private final SailMetrics metrics;
+
+    /**
+     * @param baseSail the Sail to instrument
+     * @param metrics  the metrics instance to record to
+     */
+    public InstrumentedSail(final Sail baseSail, final SailMetrics metrics) {
+        super(baseSail);
+        this.metrics = metrics;
+
+        if (baseSail instanceof MetricsSource) {
+            ((MetricsSource) baseSail).registerMetrics(metrics);
+        }
+    }
+
+    public SailMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public SailConnection getConnection() throws SailException {
+        long start = System.nanoTime();
+        SailConnection baseConnection;
+        try {
+            baseConnection = getBaseSail().getConnection();
+        } catch (SailException e) {
+            metrics.counter("getConnection.errors").increment();
+            throw e;
+        }
+        metrics.histogram("getConnection").record(System.nanoTime() - start);
+
+        return new InstrumentedSailConnection(baseConnection, metrics);
+    }
+}
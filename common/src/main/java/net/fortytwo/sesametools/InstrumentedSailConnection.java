@@ -0,0 +1,219 @@
+package net.fortytwo.sesametools;
+
+import org.eclipse.rdf4j.IsolationLevel;
+import org.eclipse.rdf4j.common.iteration.CloseableIteration;
+import org.eclipse.rdf4j.common.iteration.IterationWrapper;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Namespace;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.Dataset;
+import org.eclipse.rdf4j.query.QueryEvaluationException;
+import org.eclipse.rdf4j.query.algebra.TupleExpr;
+import org.eclipse.rdf4j.sail.SailConnection;
+import org.eclipse.rdf4j.sail.SailException;
+import org.eclipse.rdf4j.sail.UpdateContext;
+import org.eclipse.rdf4j.sail.helpers.SailConnectionWrapper;
+
+import java.util.function.Supplier;
+
+/**
+ * A connection to an {@link InstrumentedSail}.
+ * Each operation is recorded in a latency histogram (in nanoseconds) named after the operation,
+ * and failures in a counter with the suffix <code>.errors</code>.
+ * For operations returning an iteration, the latency is the time taken to obtain the iteration,
+ * and the number of results is recorded, on close, in a histogram with the suffix <code>.results</code>.
+ * The gauges <code>connections.open</code> and <code>iterations.open</code> track resources not yet closed.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class InstrumentedSailConnection extends SailConnectionWrapper {
+    private static final String
+            CONNECTIONS_OPEN = "connections.open",
+            ITERATIONS_OPEN = "iterations.open";
+
+    private final SailMetrics metrics;
+    private boolean closed = false;
+
+    public InstrumentedSailConnection(final SailConnection baseSailConnection, final SailMetrics metrics) {
+        super(baseSailConnection);
+        this.metrics = metrics;
+        metrics.gauge(CONNECTIONS_OPEN).incrementAndGet();
+    }
+
+    @Override
+    public void close() throws SailException {
+        if (!closed) {
+            closed = true;
+            metrics.gauge(CONNECTIONS_OPEN).decrementAndGet();
+        }
+        timed("close", super::close);
+    }
+
+    @Override
+    public void begin() throws SailException {
+        timed("begin", () -> super.begin());
+    }
+
+    @Override
+    public void begin(final IsolationLevel level) throws SailException {
+        timed("begin", () -> super.begin(level));
+    }
+
+    @Override
+    public void prepare() throws SailException {
+        timed("prepare", super::prepare);
+    }
+
+    @Override
+    public void flush() throws SailException {
+        timed("flush", super::flush);
+    }
+
+    @Override
+    public void commit() throws SailException {
+        timed("commit", super::commit);
+    }
+
+    @Override
+    public void rollback() throws SailException {
+        timed("rollback", super::rollback);
+    }
+
+    @Override
+    public void addStatement(final Resource subj,
+                             final IRI pred,
+                             final Value obj,
+                             final Resource... contexts) throws SailException {
+        timed("addStatement", () -> super.addStatement(subj, pred, obj, contexts));
+    }
+
+    @Override
+    public void addStatement(final UpdateContext op,
+                             final Resource subj,
+                             final IRI pred,
+                             final Value obj,
+                             final Resource... contexts) throws SailException {
+        timed("addStatement", () -> super.addStatement(op, subj, pred, obj, contexts));
+    }
+
+    @Override
+    public void removeStatements(final Resource subj,
+                                 final IRI pred,
+                                 final Value obj,
+                                 final Resource... contexts) throws SailException {
+        timed("removeStatements", () -> super.removeStatements(subj, pred, obj, contexts));
+    }
+
+    @Override
+    public void removeStatement(final UpdateContext op,
+                                final Resource subj,
+                                final IRI pred,
+                                final Value obj,
+                                final Resource... contexts) throws SailException {
+        timed("removeStatements", () -> super.removeStatement(op, subj, pred, obj, contexts));
+    }
+
+    @Override
+    public void clear(final Resource... contexts) throws SailException {
+        timed("clear", () -> super.clear(contexts));
+    }
+
+    @Override
+    public long size(final Resource... contexts) throws SailException {
+        return timed("size", () -> super.size(contexts));
+    }
+
+    @Override
+    public long size(final Resource context) throws SailException {
+        return timed("size", () -> super.size(context));
+    }
+
+    @Override
+    public CloseableIteration<? extends Statement, SailException> getStatements(final Resource subj,
+                                                                              final IRI pred,
+                                                                              final Value obj,
+                                                                              final boolean includeInferred,
+                                                                              final Resource... contexts)
+            throws SailException {
+        return counted("getStatements",
+                timed("getStatements", () -> super.getStatements(subj, pred, obj, includeInferred, contexts)));
+    }
+
+    @Override
+    public CloseableIteration<? extends BindingSet, QueryEvaluationException> evaluate(final TupleExpr tupleExpr,
+                                                                                     final Dataset dataset,
+                                                                                     final BindingSet bindings,
+                                                                                     final boolean includeInferred)
+            throws SailException {
+        return counted("evaluate",
+                timed("evaluate", () -> super.evaluate(tupleExpr, dataset, bindings, includeInferred)));
+    }
+
+    @Override
+    public CloseableIteration<? extends Resource, SailException> getContextIDs() throws SailException {
+        return counted("getContextIDs", timed("getContextIDs", super::getContextIDs));
+    }
+
+    @Override
+    public CloseableIteration<? extends Namespace, SailException> getNamespaces() throws SailException {
+        return counted("getNamespaces", timed("getNamespaces", super::getNamespaces));
+    }
+
+    private void timed(final String operation, final Runnable task) {
+        timed(operation, () -> {
+            task.run();
+            return null;
+        });
+    }
+
+    // Note: SailException and QueryEvaluationException are unchecked, so that any operation fits a Supplier
+    private <T> T timed(final String operation, final Supplier<T> task) {
+        long start = System.nanoTime();
+        T result;
+        try {
+            result = task.get();
+        } catch (RuntimeException e) {
+            metrics.counter(operation + ".errors").increment();
+            throw e;
+        }
+        metrics.histogram(operation).record(System.nanoTime() - start);
+        return result;
+    }
+
+    private <E, X extends Exception> CloseableIteration<E, X> counted(
+            final String operation, final CloseableIteration<? extends E, ? extends X> base) {
+        metrics.gauge(ITERATIONS_OPEN).incrementAndGet();
+        return new CountingIteration<>(operation, base);
+    }
+
+    private class CountingIteration<E, X extends Exception> extends IterationWrapper<E, X> {
+        private final String operation;
+        private long count = 0;
+
+        private CountingIteration(final String operation, final CloseableIteration<? extends E, ? extends X> base) {
+            super(base);
+            this.operation = operation;
+        }
+
+        @Override
+        public E next() throws X {
+            E next = super.next();
+            count++;
+            return next;
+        }
+
+        // called only once, however often the iteration is closed
+        @Override
+        protected void handleClose() throws X {
+            try {
+                super.handleClose();
+            } finally {
+                metrics.gauge(ITERATIONS_OPEN).decrementAndGet();
+                metrics.histogram(operation + ".results").record(count);
+            }
+        }
+    }
+}
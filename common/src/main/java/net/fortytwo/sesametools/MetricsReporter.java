@@ -0,0 +1,16 @@
+package net.fortytwo.sesametools;
+
+import java.util.Map;
+
+/**
+ * A destination for the metrics collected by a {@link SailMetrics} instance, e.g. a log or a monitoring system
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public interface MetricsReporter {
+    /**
+     * @param name    the name of the metrics instance
+     * @param metrics a snapshot of all metrics, as returned by {@link SailMetrics#snapshot()}
+     */
+    void report(String name, Map<String, Number> metrics);
+}
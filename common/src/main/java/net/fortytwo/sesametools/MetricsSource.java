@@ -0,0 +1,17 @@
+package net.fortytwo.sesametools;
+
+/**
+ * A Sail which maintains specialized metrics of its own, such as cache hits or rejected writes.
+ * When wrapped in an {@link InstrumentedSail}, these metrics are reported together with the generic ones.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public interface MetricsSource {
+    /**
+     * Adds this Sail's metrics to the given instance, typically as counters which the Sail then maintains,
+     * or as gauges which read from existing statistics
+     *
+     * @param metrics the metrics instance to report to
+     */
+    void registerMetrics(SailMetrics metrics);
+}
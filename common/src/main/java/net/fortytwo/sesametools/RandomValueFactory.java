@@ -10,10 +10,12 @@ import org.eclipse.rdf4j.model.ValueFactory;
 import org.eclipse.rdf4j.model.vocabulary.XMLSchema;
 
 import java.util.Random;
+import java.util.SplittableRandom;
 import java.util.UUID;
 
 /**
- * A utility for generating random values and statements
+ * A utility for generating random values and statements.
+ * Values are uniformly random; for reproducible data with realistic skew, see {@link StatementGenerator}.
  *
  * @author Joshua Shinavier (http://fortytwo.net)
  */
@@ -38,10 +40,39 @@ public class RandomValueFactory {
     }
 
     private ValueFactory valueFactory;
-    private Random rand = new Random();
+    private Random rand;
+    // for the IRIs of a seeded factory, as Random has too little state for IRIs to be unique in large datasets.
+    // An unseeded factory uses random UUIDs instead.
+    private SplittableRandom iriRand;
+    // if not null, IRIs are generated by appending consecutive numbers to this prefix, rather than at random
+    private String iriPrefix;
+    private long iriCount = 0;
 
     public RandomValueFactory(final ValueFactory vf) {
         this.valueFactory = vf;
+        this.rand = new Random();
+    }
+
+    /**
+     * @param vf   a factory for the generated values
+     * @param seed a seed for the random number generator.
+     *             Factories with the same seed generate the same sequence of values and statements.
+     */
+    public RandomValueFactory(final ValueFactory vf, final long seed) {
+        this.valueFactory = vf;
+        this.rand = new Random(seed);
+        this.iriRand = new SplittableRandom(seed);
+    }
+
+    /**
+     * @param vf        a factory for the generated values
+     * @param seed      a seed for the random number generator
+     * @param iriPrefix a prefix for the generated IRIs, which are numbered consecutively.
+     *                  Factories with distinct prefixes are guaranteed never to generate the same IRI.
+     */
+    public RandomValueFactory(final ValueFactory vf, final long seed, final String iriPrefix) {
+        this(vf, seed);
+        this.iriPrefix = iriPrefix;
     }
 
     public Statement randomStatement() {
@@ -69,7 +100,12 @@ public class RandomValueFactory {
     }
 
     public IRI randomIRI() {
-        return valueFactory.createIRI("urn:uuid:" + UUID.randomUUID().toString().replace("-", ""));
+        if (null != iriPrefix) {
+            return valueFactory.createIRI(iriPrefix + iriCount++);
+        }
+
+        UUID uuid = null == iriRand ? UUID.randomUUID() : new UUID(iriRand.nextLong(), iriRand.nextLong());
+        return valueFactory.createIRI("urn:uuid:" + uuid.toString().replace("-", ""));
     }
 
     public BNode randomBNode() {
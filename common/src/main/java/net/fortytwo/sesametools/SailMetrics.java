@@ -0,0 +1,273 @@
+package net.fortytwo.sesametools;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A named collection of counters, gauges and histograms describing the runtime behavior of a Sail.
+ * Metrics are created on first use, and may be updated concurrently.
+ * A snapshot of all metrics may be pushed to any number of {@link MetricsReporter}s, on demand or periodically,
+ * and may be exposed as the attributes of a JMX MBean.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class SailMetrics {
+    private static final String JMX_DOMAIN = "net.fortytwo.sesametools";
+
+    private final String name;
+
+    private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> gauges = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongSupplier> suppliedGauges = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    private final List<MetricsReporter> reporters = new CopyOnWriteArrayList<>();
+    private ScheduledExecutorService reportingExecutor;
+    private ObjectName objectName;
+
+    /**
+     * @param name a name for this instance, distinguishing it from the metrics of other Sails,
+     *             e.g. in reports and JMX object names
+     */
+    public SailMetrics(final String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param name the name of a counter
+     * @return the counter with the given name, which is created if necessary
+     */
+    public LongAdder counter(final String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    /**
+     * @param name the name of a gauge, i.e. of a value which may go up as well as down
+     * @return the gauge with the given name, which is created if necessary
+     */
+    public AtomicLong gauge(final String name) {
+        return gauges.computeIfAbsent(name, n -> new AtomicLong());
+    }
+
+    /**
+     * Adds a gauge whose value is read from elsewhere whenever a snapshot is taken
+     *
+     * @param name     the name of the gauge. Any existing gauge of the same name is replaced.
+     * @param supplier a function providing the current value of the gauge
+     */
+    public void registerGauge(final String name, final LongSupplier supplier) {
+        suppliedGauges.put(name, supplier);
+    }
+
+    /**
+     * @param name the name of a histogram, e.g. of the latency of an operation in nanoseconds
+     * @return the histogram with the given name, which is created if necessary
+     */
+    public Histogram histogram(final String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    /**
+     * Takes a snapshot of all metrics.
+     * Counters and gauges appear under their own names;
+     * each histogram contributes a count, mean, maximum and selected percentiles,
+     * e.g. <code>getStatements.count</code> and <code>getStatements.p99</code>.
+     *
+     * @return the current values of all metrics, in alphabetical order
+     */
+    public SortedMap<String, Number> snapshot() {
+        SortedMap<String, Number> snapshot = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> e : counters.entrySet()) {
+            snapshot.put(e.getKey(), e.getValue().sum());
+        }
+        for (Map.Entry<String, AtomicLong> e : gauges.entrySet()) {
+            snapshot.put(e.getKey(), e.getValue().get());
+        }
+        for (Map.Entry<String, LongSupplier> e : suppliedGauges.entrySet()) {
+            snapshot.put(e.getKey(), e.getValue().getAsLong());
+        }
+        for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+            Histogram h = e.getValue();
+            String prefix = e.getKey() + ".";
+            snapshot.put(prefix + "count", h.getCount());
+            snapshot.put(prefix + "mean", h.getMean());
+            snapshot.put(prefix + "p50", h.getValueAtPercentile(50));
+            snapshot.put(prefix + "p90", h.getValueAtPercentile(90));
+            snapshot.put(prefix + "p99", h.getValueAtPercentile(99));
+            snapshot.put(prefix + "p999", h.getValueAtPercentile(99.9));
+            snapshot.put(prefix + "max", h.getMax());
+        }
+        return snapshot;
+    }
+
+    /**
+     * Resets all counters and histograms. Gauges are left alone, as they describe current state.
+     */
+    public void reset() {
+        for (LongAdder counter : counters.values()) {
+            counter.reset();
+        }
+        for (Histogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+    }
+
+    public void addReporter(final MetricsReporter reporter) {
+        reporters.add(reporter);
+    }
+
+    public void removeReporter(final MetricsReporter reporter) {
+        reporters.remove(reporter);
+    }
+
+    /**
+     * Pushes a snapshot of all metrics to each reporter
+     */
+    public void report() {
+        if (reporters.isEmpty()) {
+            return;
+        }
+
+        Map<String, Number> snapshot = snapshot();
+        for (MetricsReporter reporter : reporters) {
+            reporter.report(name, snapshot);
+        }
+    }
+
+    /**
+     * Starts pushing snapshots to the reporters at a fixed rate, in a background thread
+     *
+     * @param period the time between reports
+     * @param unit   the unit of the period
+     */
+    public synchronized void startReporting(final long period, final TimeUnit unit) {
+        stopReporting();
+
+        reportingExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics reporter: " + name);
+            t.setDaemon(true);
+            return t;
+        });
+        reportingExecutor.scheduleAtFixedRate(this::report, period, period, unit);
+    }
+
+    public synchronized void stopReporting() {
+        if (null != reportingExecutor) {
+            reportingExecutor.shutdownNow();
+            reportingExecutor = null;
+        }
+    }
+
+    /**
+     * Exposes all metrics as the read-only attributes of an MBean in the platform MBean server,
+     * under the object name <code>net.fortytwo.sesametools:type=SailMetrics,name=...</code>
+     *
+     * @return the object name of the MBean
+     * @throws JMException if the MBean cannot be registered, e.g. because the name is already in use
+     */
+    public synchronized ObjectName registerMBean() throws JMException {
+        if (null == objectName) {
+            ObjectName on = new ObjectName(JMX_DOMAIN + ":type=SailMetrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), on);
+            objectName = on;
+        }
+
+        return objectName;
+    }
+
+    public synchronized void unregisterMBean() throws JMException {
+        if (null != objectName) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + snapshot();
+    }
+
+    // Note: the set of attributes grows as metrics are created, so it is computed anew for each request
+    private class MetricsMBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(final String attribute) throws AttributeNotFoundException {
+            Number value = snapshot().get(attribute);
+            if (null == value) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public void setAttribute(final Attribute attribute) {
+            throw new UnsupportedOperationException("metrics are read-only");
+        }
+
+        @Override
+        public AttributeList getAttributes(final String[] attributes) {
+            Map<String, Number> snapshot = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                Number value = snapshot.get(attribute);
+                if (null != value) {
+                    list.add(new Attribute(attribute, value));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(final AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(final String actionName, final Object[] params, final String[] signature) {
+            throw new UnsupportedOperationException("no operations are supported");
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            Map<String, Number> snapshot = snapshot();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[snapshot.size()];
+            int i = 0;
+            for (Map.Entry<String, Number> e : snapshot.entrySet()) {
+                attributes[i++] = new MBeanAttributeInfo(
+                        e.getKey(), e.getValue().getClass().getName(), e.getKey(), true, false, false);
+            }
+
+            return new MBeanInfo(SailMetrics.class.getName(), "metrics of " + name, attributes,
+                    null, new MBeanOperationInfo[0], new MBeanNotificationInfo[0]);
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package net.fortytwo.sesametools;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Literal;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.vocabulary.XMLSchema;
+
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.function.Consumer;
+
+/**
+ * A generator of statements which resemble real-world data more closely than those of {@link RandomValueFactory}.
+ * Subjects, predicates, objects and contexts are drawn from vocabularies of configurable size,
+ * each with its own Zipf-distributed skew, so that some values are far more common than others.
+ * Objects are a configurable mix of IRIs, which refer to subjects, and literals of several datatypes.
+ * A value is a function of its rank alone, so that a popular object is the very same literal each time it is used.
+ * <p>
+ * Generators with the same seed and settings produce the same sequence of statements.
+ * No state is kept apart from the random number generator, so any number of statements
+ * may be generated in constant memory.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class StatementGenerator {
+    private static final String DEFAULT_NAMESPACE = "http://example.org/generated/";
+    private static final String[] LANGUAGES = {"en", "fr", "de", "es", "zh"};
+    private static final long EPOCH_OFFSET = 1000000000L;
+
+    /**
+     * The kinds of literal which may be generated as objects
+     */
+    public enum LiteralKind {
+        STRING, LANGUAGE_STRING, INTEGER, DOUBLE, BOOLEAN, DATE_TIME
+    }
+
+    private final ValueFactory valueFactory;
+    private final long seed;
+    private final Random random;
+
+    private String namespace = DEFAULT_NAMESPACE;
+
+    private ZipfDistribution subjects = new ZipfDistribution(1000000, 1.0);
+    private ZipfDistribution predicates = new ZipfDistribution(100, 1.0);
+    private ZipfDistribution objects = new ZipfDistribution(1000000, 1.0);
+    // null for the default graph only
+    private ZipfDistribution contexts = null;
+
+    private double literalFraction = 0.5;
+    private final double[] literalWeights = {0.4, 0.2, 0.2, 0.1, 0.05, 0.05};
+
+    /**
+     * @param valueFactory a factory for the generated values and statements
+     * @param seed         a seed for the random number generator
+     */
+    public StatementGenerator(final ValueFactory valueFactory, final long seed) {
+        this.valueFactory = valueFactory;
+        this.seed = seed;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * @param namespace the namespace of all generated IRIs
+     */
+    public void setNamespace(final String namespace) {
+        this.namespace = namespace;
+    }
+
+    /**
+     * @param count    the number of distinct subjects
+     * @param exponent the skew of subject frequencies, from 0 (uniform) upwards
+     */
+    public void setSubjects(final long count, final double exponent) {
+        subjects = new ZipfDistribution(count, exponent);
+    }
+
+    /**
+     * @param count    the number of distinct predicates
+     * @param exponent the skew of predicate frequencies, from 0 (uniform) upwards
+     */
+    public void setPredicates(final long count, final double exponent) {
+        predicates = new ZipfDistribution(count, exponent);
+    }
+
+    /**
+     * @param count    the number of distinct objects
+     * @param exponent the skew of object frequencies, from 0 (uniform) upwards
+     */
+    public void setObjects(final long count, final double exponent) {
+        objects = new ZipfDistribution(count, exponent);
+    }
+
+    /**
+     * @param count    the number of distinct named graphs, or 0 to generate statements in the default graph only
+     * @param exponent the skew of context frequencies, from 0 (uniform) upwards
+     */
+    public void setContexts(final long count, final double exponent) {
+        contexts = 0 == count ? null : new ZipfDistribution(count, exponent);
+    }
+
+    /**
+     * @param fraction the fraction of distinct objects which are literals rather than IRIs, between 0 and 1
+     */
+    public void setLiteralFraction(final double fraction) {
+        if (fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException("literal fraction must be between 0 and 1");
+        }
+
+        this.literalFraction = fraction;
+    }
+
+    /**
+     * @param kind   a kind of literal
+     * @param weight the relative frequency of this kind among literal objects. Use 0 to exclude it.
+     */
+    public void setLiteralWeight(final LiteralKind kind, final double weight) {
+        if (weight < 0) {
+            throw new IllegalArgumentException("weight must not be negative");
+        }
+
+        literalWeights[kind.ordinal()] = weight;
+    }
+
+    public Statement next() {
+        Resource subj = subject(subjects.sample(random));
+        IRI pred = predicate(predicates.sample(random));
+        Value obj = object(objects.sample(random));
+        return null == contexts
+                ? valueFactory.createStatement(subj, pred, obj)
+                : valueFactory.createStatement(subj, pred, obj, context(contexts.sample(random)));
+    }
+
+    /**
+     * Generates statements one at a time, without holding them in memory
+     *
+     * @param count    the number of statements to generate
+     * @param consumer a consumer for the generated statements
+     */
+    public void generate(final long count, final Consumer<Statement> consumer) {
+        for (long i = 0; i < count; i++) {
+            consumer.accept(next());
+        }
+    }
+
+    /**
+     * @param count the number of statements to generate
+     * @return an iterator over the given number of newly generated statements
+     */
+    public Iterator<Statement> iterator(final long count) {
+        return new Iterator<Statement>() {
+            private long remaining = count;
+
+            @Override
+            public boolean hasNext() {
+                return remaining > 0;
+            }
+
+            @Override
+            public Statement next() {
+                if (remaining <= 0) {
+                    throw new NoSuchElementException();
+                }
+                remaining--;
+                return StatementGenerator.this.next();
+            }
+        };
+    }
+
+    /**
+     * @param rank the rank of a subject, where 0 is the most frequent
+     * @return the subject with the given rank
+     */
+    public IRI subject(final long rank) {
+        return valueFactory.createIRI(namespace + "s" + rank);
+    }
+
+    public IRI predicate(final long rank) {
+        return valueFactory.createIRI(namespace + "p" + rank);
+    }
+
+    public IRI context(final long rank) {
+        return valueFactory.createIRI(namespace + "g" + rank);
+    }
+
+    // Note: whether an object is a literal, and of which kind, is derived from a hash of its rank
+    public Value object(final long rank) {
+        if (unitHash(rank, 1) >= literalFraction) {
+            // IRI objects refer to subjects, linking statements into a graph
+            return subject(rank % subjects.getNumberOfElements());
+        }
+
+        switch (literalKind(rank)) {
+            case STRING:
+                return valueFactory.createLiteral("literal " + rank);
+            case LANGUAGE_STRING:
+                return valueFactory.createLiteral("literal " + rank,
+                        LANGUAGES[(int) (rank % LANGUAGES.length)]);
+            case INTEGER:
+                return valueFactory.createLiteral(rank);
+            case DOUBLE:
+                return valueFactory.createLiteral(rank / 100.0);
+            case BOOLEAN:
+                return valueFactory.createLiteral(0 == rank % 2);
+            case DATE_TIME:
+                return dateTime(rank);
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    private Literal dateTime(final long rank) {
+        return valueFactory.createLiteral(Instant.ofEpochSecond(EPOCH_OFFSET + rank).toString(), XMLSchema.DATETIME);
+    }
+
+    private LiteralKind literalKind(final long rank) {
+        double total = 0;
+        for (double w : literalWeights) {
+            total += w;
+        }
+        if (0 == total) {
+            return LiteralKind.STRING;
+        }
+
+        double target = unitHash(rank, 2) * total;
+        double sum = 0;
+        for (int i = 0; i < literalWeights.length; i++) {
+            sum += literalWeights[i];
+            if (target < sum) {
+                return LiteralKind.values()[i];
+            }
+        }
+        return LiteralKind.STRING;
+    }
+
+    // a pseudo-random number in [0, 1) determined by the seed, a rank and a purpose
+    private double unitHash(final long rank, final int purpose) {
+        long h = mix(seed ^ mix(rank * 31 + purpose));
+        return (h >>> 11) * 0x1.0p-53;
+    }
+
+    // the finalization step of MurmurHash3
+    private static long mix(final long value) {
+        long h = value * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,108 @@
+package net.fortytwo.sesametools;
+
+import java.util.Random;
+
+/**
+ * A Zipf (power-law) distribution over the ranks 0 through n-1, in which the probability of rank k is proportional to
+ * 1 / (k + 1)^exponent.
+ * An exponent of 0 gives a uniform distribution; an exponent around 1 resembles the frequency of words,
+ * or of subjects and predicates in typical RDF data.
+ * Sampling uses the rejection-inversion method of Hörmann and Derflinger,
+ * which takes constant time and memory regardless of the number of ranks.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class ZipfDistribution {
+    private final long numberOfElements;
+    private final double exponent;
+
+    private final double hIntegralX1;
+    private final double hIntegralNumberOfElements;
+    private final double s;
+
+    /**
+     * @param numberOfElements the number of ranks, which must be positive
+     * @param exponent         the skew of the distribution, which must not be negative
+     */
+    public ZipfDistribution(final long numberOfElements, final double exponent) {
+        if (numberOfElements <= 0) {
+            throw new IllegalArgumentException("number of elements must be positive");
+        }
+        if (exponent < 0) {
+            throw new IllegalArgumentException("exponent must not be negative");
+        }
+
+        this.numberOfElements = numberOfElements;
+        this.exponent = exponent;
+
+        this.hIntegralX1 = hIntegral(1.5) - 1d;
+        this.hIntegralNumberOfElements = hIntegral(numberOfElements + 0.5);
+        this.s = 2d - hIntegralInverse(hIntegral(2.5) - h(2));
+    }
+
+    public long getNumberOfElements() {
+        return numberOfElements;
+    }
+
+    public double getExponent() {
+        return exponent;
+    }
+
+    /**
+     * @param random a source of randomness
+     * @return a rank between 0 and n-1, where lower ranks are more probable
+     */
+    public long sample(final Random random) {
+        if (0 == exponent) {
+            return (long) (random.nextDouble() * numberOfElements);
+        }
+
+        while (true) {
+            double u = hIntegralNumberOfElements + random.nextDouble() * (hIntegralX1 - hIntegralNumberOfElements);
+            double x = hIntegralInverse(u);
+            long k = (long) (x + 0.5);
+            if (k < 1) {
+                k = 1;
+            } else if (k > numberOfElements) {
+                k = numberOfElements;
+            }
+
+            if (k - x <= s || u >= hIntegral(k + 0.5) - h(k)) {
+                return k - 1;
+            }
+        }
+    }
+
+    // the integral of h, i.e. of x^-exponent
+    private double hIntegral(final double x) {
+        double logX = Math.log(x);
+        return helper2((1d - exponent) * logX) * logX;
+    }
+
+    private double h(final double x) {
+        return Math.exp(-exponent * Math.log(x));
+    }
+
+    private double hIntegralInverse(final double x) {
+        double t = x * (1d - exponent);
+        if (t < -1d) {
+            // limit to the domain of log1p, which t may fall outside of through rounding
+            t = -1d;
+        }
+        return Math.exp(helper1(t) * x);
+    }
+
+    // log(1 + x) / x, stable for small x
+    private static double helper1(final double x) {
+        return Math.abs(x) > 1e-8
+                ? Math.log1p(x) / x
+                : 1d - x * (0.5 - x * (1d / 3d - 0.25 * x));
+    }
+
+    // (exp(x) - 1) / x, stable for small x
+    private static double helper2(final double x) {
+        return Math.abs(x) > 1e-8
+                ? Math.expm1(x) / x
+                : 1d + x * 0.5 * (1d + x * (1d / 3d) * (1d + 0.25 * x));
+    }
+}
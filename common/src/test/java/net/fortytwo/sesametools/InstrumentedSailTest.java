@@ -0,0 +1,102 @@
+package net.fortytwo.sesametools;
+
+import org.eclipse.rdf4j.common.iteration.CloseableIteration;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.vocabulary.RDF;
+import org.eclipse.rdf4j.model.vocabulary.RDFS;
+import org.eclipse.rdf4j.sail.Sail;
+import org.eclipse.rdf4j.sail.SailConnection;
+import org.eclipse.rdf4j.sail.SailException;
+import org.eclipse.rdf4j.sail.memory.MemoryStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class InstrumentedSailTest {
+    private SailMetrics metrics;
+    private Sail sail;
+
+    @Before
+    public void setup() throws Exception {
+        metrics = new SailMetrics("test");
+        sail = new InstrumentedSail(new MemoryStore(), metrics);
+        sail.initialize();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sail.shutDown();
+    }
+
+    @Test
+    public void testOperationsAreRecorded() throws Exception {
+        try (SailConnection sc = sail.getConnection()) {
+            assertEquals(1L, metrics.snapshot().get("connections.open"));
+
+            sc.begin();
+            sc.addStatement(RDF.TYPE, RDF.TYPE, RDF.PROPERTY);
+            sc.addStatement(RDF.PROPERTY, RDF.TYPE, RDFS.CLASS);
+            sc.commit();
+
+            try (CloseableIteration<? extends Statement, SailException> iter
+                         = sc.getStatements(null, RDF.TYPE, null, false)) {
+                assertEquals(1L, metrics.snapshot().get("iterations.open"));
+                while (iter.hasNext()) {
+                    iter.next();
+                }
+            }
+        }
+
+        Map<String, Number> snapshot = metrics.snapshot();
+        assertEquals(0L, snapshot.get("connections.open"));
+        assertEquals(0L, snapshot.get("iterations.open"));
+        assertEquals(2L, snapshot.get("addStatement.count"));
+        assertEquals(1L, snapshot.get("commit.count"));
+        assertEquals(1L, snapshot.get("getStatements.count"));
+        assertEquals(2L, snapshot.get("getStatements.results.max"));
+        assertTrue(snapshot.get("commit.max").longValue() > 0);
+    }
+
+    @Test
+    public void testReportersAndJmx() throws Exception {
+        metrics.registerGauge("answer", () -> 42);
+        Map<String, Number> reported = new HashMap<>();
+        metrics.addReporter((name, m) -> reported.putAll(m));
+        metrics.report();
+        assertEquals(42L, reported.get("answer"));
+
+        ObjectName name = metrics.registerMBean();
+        try {
+            assertEquals(42L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "answer"));
+        } finally {
+            metrics.unregisterMBean();
+        }
+    }
+
+    @Test
+    public void testHistogramPercentiles() throws Exception {
+        Histogram h = new Histogram();
+        for (long i = 1; i <= 100000; i++) {
+            h.record(i * 1000);
+        }
+
+        assertEquals(100000, h.getCount());
+        assertEquals(100000000, h.getMax());
+        long median = h.getValueAtPercentile(50);
+        assertTrue(Math.abs(median - 50000000) < 50000000 * 0.02);
+        long p99 = h.getValueAtPercentile(99);
+        assertTrue(Math.abs(p99 - 99000000) < 99000000 * 0.02);
+        assertEquals(h.getMax(), h.getValueAtPercentile(100));
+    }
+}
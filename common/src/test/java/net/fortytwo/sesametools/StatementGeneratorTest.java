@@ -0,0 +1,104 @@
+package net.fortytwo.sesametools;
+
+import org.eclipse.rdf4j.model.Literal;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.model.vocabulary.XMLSchema;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class StatementGeneratorTest {
+    private static final ValueFactory valueFactory = SimpleValueFactory.getInstance();
+
+    @Test
+    public void testSameSeedGivesSameStatements() throws Exception {
+        Iterator<Statement> first = new StatementGenerator(valueFactory, 42).iterator(1000);
+        Iterator<Statement> second = new StatementGenerator(valueFactory, 42).iterator(1000);
+        while (first.hasNext()) {
+            Statement a = first.next();
+            Statement b = second.next();
+            assertEquals(a, b);
+            assertEquals(a.getContext(), b.getContext());
+        }
+        assertFalse(second.hasNext());
+
+        // seeded RandomValueFactories are likewise reproducible
+        assertEquals(new RandomValueFactory(valueFactory, 42).randomStatement(),
+                new RandomValueFactory(valueFactory, 42).randomStatement());
+    }
+
+    @Test
+    public void testVocabularySizesAreRespected() throws Exception {
+        StatementGenerator generator = new StatementGenerator(valueFactory, 1);
+        generator.setSubjects(10, 0);
+        generator.setPredicates(3, 0);
+        generator.setContexts(2, 0);
+
+        Set<Resource> subjects = new HashSet<>();
+        Set<Resource> contexts = new HashSet<>();
+        generator.generate(10000, st -> {
+            subjects.add(st.getSubject());
+            contexts.add(st.getContext());
+        });
+        assertEquals(10, subjects.size());
+        assertEquals(2, contexts.size());
+
+        generator.setContexts(0, 0);
+        assertNull(generator.next().getContext());
+    }
+
+    @Test
+    public void testSkew() throws Exception {
+        assertTrue(topFrequency(0.0) < 0.01);
+        // with an exponent of 1 over 1000 ranks, the top rank has about 13% of the probability mass
+        double top = topFrequency(1.0);
+        assertTrue(top > 0.11 && top < 0.15);
+    }
+
+    @Test
+    public void testLiteralMix() throws Exception {
+        StatementGenerator generator = new StatementGenerator(valueFactory, 7);
+        generator.setLiteralFraction(1.0);
+        for (StatementGenerator.LiteralKind kind : StatementGenerator.LiteralKind.values()) {
+            generator.setLiteralWeight(kind, 0);
+        }
+        generator.setLiteralWeight(StatementGenerator.LiteralKind.DATE_TIME, 1);
+
+        for (int i = 0; i < 100; i++) {
+            Literal l = (Literal) generator.next().getObject();
+            assertEquals(XMLSchema.DATETIME, l.getDatatype());
+        }
+
+        // values depend only on their rank
+        assertEquals(generator.object(12345), generator.object(12345));
+    }
+
+    private double topFrequency(final double exponent) {
+        ZipfDistribution zipf = new ZipfDistribution(1000, exponent);
+        Random random = new Random(0);
+        Map<Long, Integer> counts = new HashMap<>();
+        int samples = 100000;
+        for (int i = 0; i < samples; i++) {
+            long rank = zipf.sample(random);
+            assertTrue(rank >= 0 && rank < 1000);
+            counts.merge(rank, 1, Integer::sum);
+        }
+        return (double) counts.getOrDefault(0L, 0) / samples;
+    }
+}
@@ -1,6 +1,8 @@
 
 package net.fortytwo.sesametools.constrained;
 
+import net.fortytwo.sesametools.MetricsSource;
+import net.fortytwo.sesametools.SailMetrics;
 import org.eclipse.rdf4j.model.IRI;
 import org.eclipse.rdf4j.query.Dataset;
 import org.eclipse.rdf4j.query.impl.SimpleDataset;
@@ -9,6 +11,8 @@ import org.eclipse.rdf4j.sail.SailConnection;
 import org.eclipse.rdf4j.sail.SailException;
 import org.eclipse.rdf4j.sail.helpers.SailWrapper;
 
+import java.util.concurrent.atomic.LongAdder;
+
 /**
  * A StackableSail which is constrained in reading and writing triples by a pair
  * of Dataset objects.  A connection may only read statements from the set of
@@ -17,13 +21,15 @@ import org.eclipse.rdf4j.sail.helpers.SailWrapper;
  * 
  * @author Joshua Shinavier (http://fortytwo.net)
  */
-public class ConstrainedSail extends SailWrapper {
+public class ConstrainedSail extends SailWrapper implements MetricsSource {
 
     private final IRI defaultWriteContext;
     private final boolean hideNonWritableContexts;
     protected final Dataset readableSet;
     protected final Dataset writableSet;
 
+    private final LongAdder rejectionCount = new LongAdder();
+
     /**
      * Constructor.
      *
@@ -67,12 +73,26 @@ public class ConstrainedSail extends SailWrapper {
 
     public SailConnection getConnection() throws SailException {
         // For now, use reasonable defaults for namespace and null context access.
-        return new ConstrainedSailConnection(getBaseSail().getConnection(),
+        ConstrainedSailConnection sc = new ConstrainedSailConnection(getBaseSail().getConnection(),
                 getValueFactory(),
                 readableSet,
                 writableSet,
                 defaultWriteContext,
                 true, true, hideNonWritableContexts);
+        sc.setRejectionCounter(rejectionCount);
+        return sc;
+    }
+
+    /**
+     * @return the number of writes to individual contexts which have been refused, over all connections
+     */
+    public long getRejectionCount() {
+        return rejectionCount.sum();
+    }
+
+    @Override
+    public void registerMetrics(final SailMetrics metrics) {
+        metrics.registerGauge("constrained.rejectedWrites", this::getRejectionCount);
     }
 
     public IRI getDefaultWriteContext() {
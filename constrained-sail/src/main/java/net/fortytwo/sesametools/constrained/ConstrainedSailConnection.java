@@ -25,6 +25,7 @@ import org.eclipse.rdf4j.sail.helpers.SailConnectionWrapper;
 
 import java.util.Collection;
 import java.util.LinkedList;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * @author Joshua Shinavier (http://fortytwo.net)
@@ -56,6 +57,8 @@ public class ConstrainedSailConnection extends SailConnectionWrapper {
 
     private Dataset readableSet;
     private Dataset writableSet;
+
+    private LongAdder rejectionCounter = new LongAdder();
     private Resource defaultWriteContext;
 
     /**
@@ -101,6 +104,11 @@ public class ConstrainedSailConnection extends SailConnectionWrapper {
         }
     }
 
+    // allows the Sail to aggregate statistics over all of its connections
+    void setRejectionCounter(final LongAdder rejectionCounter) {
+        this.rejectionCounter = rejectionCounter;
+    }
+
     /**
      * Adds a statement to each of the given contexts for which the requestor
      * has write access.  If no context is given, statements will be written to
@@ -118,11 +126,15 @@ public class ConstrainedSailConnection extends SailConnectionWrapper {
                 } else {
                     super.addStatement(subj, pred, obj, defaultWriteContext);
                 }
+            } else {
+                rejectionCounter.increment();
             }
         } else {
             for (Resource context : contexts) {
                 if (writePermitted(context)) {
                     super.addStatement(subj, pred, obj, context);
+                } else {
+                    rejectionCounter.increment();
                 }
             }
         }
@@ -147,6 +159,8 @@ public class ConstrainedSailConnection extends SailConnectionWrapper {
             for (Resource context : contexts) {
                 if (writePermitted(context)) {
                     super.clear(context);
+                } else {
+                    rejectionCounter.increment();
                 }
             }
         }
@@ -316,6 +330,8 @@ public class ConstrainedSailConnection extends SailConnectionWrapper {
             for (Resource context : contexts) {
                 if (deletePermitted(context)) {
                     super.removeStatements(subj, pred, obj, context);
+                } else {
+                    rejectionCounter.increment();
                 }
             }
         }
@@ -0,0 +1,150 @@
+package net.fortytwo.sesametools.deduplication;
+
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Literal;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Value;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter of (subject, predicate, object) triples, regardless of context.
+ * The filter answers "definitely absent" or "possibly present";
+ * the rate of false positives depends on the number of triples added relative to the expected number.
+ * Triples cannot be removed, so that the filter errs on the side of false positives after removals.
+ * The filter may safely be shared between threads.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class BloomFilter {
+    private static final int MAGIC = 0x44424C4D;
+
+    private final AtomicLongArray bits;
+    private final long bitCount;
+    private final int hashCount;
+
+    /**
+     * @param expectedTriples          the number of distinct triples the filter is expected to hold
+     * @param falsePositiveProbability the desired probability of a false positive at the expected number of triples,
+     *                                 e.g. 0.01
+     */
+    public BloomFilter(final long expectedTriples, final double falsePositiveProbability) {
+        if (expectedTriples <= 0) {
+            throw new IllegalArgumentException("expected number of triples must be positive");
+        }
+        if (falsePositiveProbability <= 0 || falsePositiveProbability >= 1) {
+            throw new IllegalArgumentException("false positive probability must be between 0 and 1");
+        }
+
+        double ln2 = Math.log(2);
+        long m = (long) Math.ceil(-expectedTriples * Math.log(falsePositiveProbability) / (ln2 * ln2));
+        // round up to a whole number of words
+        int words = (int) Math.min(Integer.MAX_VALUE, (m + 63) / 64);
+
+        this.bits = new AtomicLongArray(words);
+        this.bitCount = words * 64L;
+        this.hashCount = Math.max(1, (int) Math.round((double) m / expectedTriples * ln2));
+    }
+
+    private BloomFilter(final AtomicLongArray bits, final int hashCount) {
+        this.bits = bits;
+        this.bitCount = bits.length() * 64L;
+        this.hashCount = hashCount;
+    }
+
+    /**
+     * @return the size of the filter, in bits
+     */
+    public long getBitCount() {
+        return bitCount;
+    }
+
+    public int getHashCount() {
+        return hashCount;
+    }
+
+    /**
+     * @return false if the triple has definitely not been added to the filter, otherwise true
+     */
+    public boolean mightContain(final Resource subject, final IRI predicate, final Value object) {
+        long h1 = hash(subject, predicate, object);
+        long h2 = mix(h1);
+        for (int i = 1; i <= hashCount; i++) {
+            long index = index(h1 + i * h2);
+            if (0 == (bits.get((int) (index >>> 6)) & (1L << index))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void add(final Resource subject, final IRI predicate, final Value object) {
+        long h1 = hash(subject, predicate, object);
+        long h2 = mix(h1);
+        for (int i = 1; i <= hashCount; i++) {
+            long index = index(h1 + i * h2);
+            int word = (int) (index >>> 6);
+            long mask = 1L << index;
+            long current;
+            do {
+                current = bits.get(word);
+            } while (0 == (current & mask) && !bits.compareAndSet(word, current, current | mask));
+        }
+    }
+
+    public void writeTo(final DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(hashCount);
+        out.writeInt(bits.length());
+        for (int i = 0; i < bits.length(); i++) {
+            out.writeLong(bits.get(i));
+        }
+    }
+
+    public static BloomFilter readFrom(final DataInputStream in) throws IOException {
+        if (MAGIC != in.readInt()) {
+            throw new IOException("not a Bloom filter");
+        }
+
+        int hashCount = in.readInt();
+        int words = in.readInt();
+        AtomicLongArray bits = new AtomicLongArray(words);
+        for (int i = 0; i < words; i++) {
+            bits.set(i, in.readLong());
+        }
+        return new BloomFilter(bits, hashCount);
+    }
+
+    // Kirsch-Mitzenmacher double hashing: the i-th index is derived from h1 + i * h2
+    private long index(final long combinedHash) {
+        return (combinedHash & Long.MAX_VALUE) % bitCount;
+    }
+
+    // Note: only hash codes which are stable across JVM instances are used, so that a filter may be persisted
+    private static long hash(final Resource subject, final IRI predicate, final Value object) {
+        long h = mix(subject.hashCode());
+        h = mix(h ^ predicate.hashCode());
+        h = mix(h ^ object.hashCode());
+        if (object instanceof Literal) {
+            Literal l = (Literal) object;
+            h = mix(h ^ (l.getLanguage().isPresent()
+                    ? l.getLanguage().get().hashCode()
+                    : l.getDatatype().hashCode()));
+        }
+        return h;
+    }
+
+    // the finalization step of MurmurHash3
+    private static long mix(final long value) {
+        long h = value * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,28 @@
+package net.fortytwo.sesametools.deduplication;
+
+/**
+ * Determines which statements a <code>DeduplicationSail</code> considers to be duplicates
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public enum DeduplicationPolicy {
+    /**
+     * Only statements added without a context are deduplicated,
+     * and are not added if the same triple exists in any context.
+     * Statements added to named contexts are passed through unchanged.
+     */
+    DEFAULT_GRAPH,
+
+    /**
+     * A statement is not added to a context (or to the default graph) which already contains it,
+     * but the same triple may exist in any number of contexts.
+     */
+    QUAD,
+
+    /**
+     * Each triple exists at most once, in whichever context it was first added to.
+     * A triple which already exists in any context is not added again,
+     * and a new triple added to several contexts is added only to the first of them.
+     */
+    TRIPLE
+}
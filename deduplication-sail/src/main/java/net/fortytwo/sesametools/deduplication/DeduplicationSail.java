@@ -1,23 +1,223 @@
 package net.fortytwo.sesametools.deduplication;
 
+import net.fortytwo.sesametools.MetricsSource;
+import net.fortytwo.sesametools.SailMetrics;
+import org.eclipse.rdf4j.common.iteration.CloseableIteration;
+import org.eclipse.rdf4j.model.Statement;
 import org.eclipse.rdf4j.sail.Sail;
 import org.eclipse.rdf4j.sail.SailConnection;
 import org.eclipse.rdf4j.sail.SailException;
 import org.eclipse.rdf4j.sail.helpers.SailWrapper;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.LongAdder;
+
 /**
  * A <code>Sail</code> which avoids adding duplicate statements to a base <code>Sail</code>.
  * For use with <code>Sail</code> implementations in which duplicate statements are possible.
+ * Which statements count as duplicates is determined by a {@link DeduplicationPolicy}.
+ * Optionally, a {@link BloomFilter} of the statements in the base <code>Sail</code> is kept in memory,
+ * so that statements which are definitely new are added without first being looked up in the base <code>Sail</code>.
  *
  * @author Joshua Shinavier (http://fortytwo.net)
  */
-public class DeduplicationSail extends SailWrapper {
+public class DeduplicationSail extends SailWrapper implements MetricsSource {
+    private static final double DEFAULT_FALSE_POSITIVE_PROBABILITY = 0.01;
+
+    private final long expectedStatements;
+    private final double falsePositiveProbability;
+
+    private final LongAdder skippedCount = new LongAdder();
+    private final LongAdder avoidedLookupCount = new LongAdder();
+    private File filterFile;
+    private DeduplicationPolicy policy = DeduplicationPolicy.DEFAULT_GRAPH;
+    private int bufferSize = 0;
+
+    private BloomFilter filter;
+
     public DeduplicationSail(final Sail baseSail) {
+        this(baseSail, 0);
+    }
+
+    /**
+     * @param baseSail           the Sail to which statements are to be added
+     * @param expectedStatements the number of statements the base Sail is expected to hold,
+     *                           used to size a Bloom filter of statements.
+     *                           If not positive, no filter is used, and every statement is looked up before it is added.
+     */
+    public DeduplicationSail(final Sail baseSail, final long expectedStatements) {
+        this(baseSail, expectedStatements, DEFAULT_FALSE_POSITIVE_PROBABILITY);
+    }
+
+    public DeduplicationSail(final Sail baseSail,
+                             final long expectedStatements,
+                             final double falsePositiveProbability) {
         super(baseSail);
+        this.expectedStatements = expectedStatements;
+        this.falsePositiveProbability = falsePositiveProbability;
+    }
+
+    /**
+     * Sets a file in which to save the Bloom filter on shutdown, and from which to load it on initialization,
+     * sparing a scan of the base Sail.
+     * The file is deleted as soon as it has been loaded, so that if this Sail is not shut down cleanly,
+     * the filter is rebuilt from the base Sail rather than reloaded without the statements added since.
+     * Note: the file must be discarded if the base Sail is modified other than through this Sail.
+     * Must be called before this Sail is initialized.
+     *
+     * @param file the filter file, or null (the default) to build the filter from the base Sail on initialization
+     */
+    public void setFilterFile(final File file) {
+        this.filterFile = file;
+    }
+
+    public File getFilterFile() {
+        return filterFile;
+    }
+
+    /**
+     * @param policy the policy determining which statements are duplicates.
+     *               Applies to connections opened after the call.
+     */
+    public void setPolicy(final DeduplicationPolicy policy) {
+        this.policy = null == policy ? DeduplicationPolicy.DEFAULT_GRAPH : policy;
+    }
+
+    public DeduplicationPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Enables buffered mode, in which added statements are collected and checked against the base Sail in batches,
+     * rather than one at a time. This saves round trips to remote base Sails.
+     *
+     * @param bufferSize the maximum number of statements to buffer per connection, or 0 (the default)
+     *                   to check each statement as it is added.
+     *                   Applies to connections opened after the call.
+     */
+    public void setBufferSize(final int bufferSize) {
+        this.bufferSize = Math.max(0, bufferSize);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return the number of added statements which have been discarded as duplicates, over all connections
+     */
+    public long getSkippedCount() {
+        return skippedCount.sum();
+    }
+
+    /**
+     * @return the number of lookups in the base Sail which the Bloom filter has made unnecessary
+     */
+    public long getAvoidedLookupCount() {
+        return avoidedLookupCount.sum();
+    }
+
+    @Override
+    public void registerMetrics(final SailMetrics metrics) {
+        metrics.registerGauge("deduplication.skipped", this::getSkippedCount);
+        metrics.registerGauge("deduplication.avoidedLookups", this::getAvoidedLookupCount);
+    }
+
+    /**
+     * @return the Bloom filter of statements in the base Sail, or null if no filter is used
+     */
+    public BloomFilter getFilter() {
+        return filter;
+    }
+
+    @Override
+    public void initialize() throws SailException {
+        super.initialize();
+
+        if (expectedStatements > 0) {
+            filter = null != filterFile && filterFile.exists()
+                    ? loadFilter()
+                    : buildFilter();
+        }
+    }
+
+    @Override
+    public void shutDown() throws SailException {
+        if (null != filter && null != filterFile) {
+            saveFilter();
+        }
+        filter = null;
+
+        super.shutDown();
     }
 
     @Override
     public SailConnection getConnection() throws SailException {
-        return new DeduplicationSailConnection(this.getBaseSail().getConnection());
+        DeduplicationSailConnection sc = new DeduplicationSailConnection(
+                this.getBaseSail().getConnection(), filter, policy, bufferSize);
+        sc.setCounters(skippedCount, avoidedLookupCount);
+        return sc;
+    }
+
+    private BloomFilter buildFilter() throws SailException {
+        BloomFilter f = new BloomFilter(expectedStatements, falsePositiveProbability);
+
+        boolean includeInferred = false;
+        try (SailConnection sc = getBaseSail().getConnection()) {
+            try (CloseableIteration<? extends Statement, SailException> iter
+                         = sc.getStatements(null, null, null, includeInferred)) {
+                while (iter.hasNext()) {
+                    Statement st = iter.next();
+                    f.add(st.getSubject(), st.getPredicate(), st.getObject());
+                }
+            }
+        }
+
+        return f;
+    }
+
+    private BloomFilter loadFilter() throws SailException {
+        BloomFilter f;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filterFile)))) {
+            f = BloomFilter.readFrom(in);
+        } catch (IOException e) {
+            throw new SailException("failed to load Bloom filter from " + filterFile, e);
+        }
+
+        // From now on, the file lacks the statements added through this Sail, until it is saved again on shutdown
+        if (!filterFile.delete()) {
+            throw new SailException("failed to delete Bloom filter file " + filterFile + " after loading it");
+        }
+        return f;
+    }
+
+    // Writes to a temporary file which replaces the filter file only once complete,
+    // so that an interrupted shutdown cannot leave a truncated filter behind
+    private void saveFilter() throws SailException {
+        File tmpFile = new File(filterFile.getPath() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tmpFile)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            filter.writeTo(out);
+            out.flush();
+            fileOut.getFD().sync();
+        } catch (IOException e) {
+            throw new SailException("failed to save Bloom filter to " + filterFile, e);
+        }
+
+        try {
+            Files.move(tmpFile.toPath(), filterFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new SailException("failed to save Bloom filter to " + filterFile, e);
+        }
     }
 }
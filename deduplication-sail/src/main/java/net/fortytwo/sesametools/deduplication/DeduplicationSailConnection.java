@@ -1,20 +1,83 @@
 package net.fortytwo.sesametools.deduplication;
 
+import net.fortytwo.sesametools.StatementComparator;
 import org.eclipse.rdf4j.common.iteration.CloseableIteration;
 import org.eclipse.rdf4j.model.IRI;
 import org.eclipse.rdf4j.model.Resource;
 import org.eclipse.rdf4j.model.Statement;
 import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.Dataset;
+import org.eclipse.rdf4j.query.QueryEvaluationException;
+import org.eclipse.rdf4j.query.algebra.TupleExpr;
 import org.eclipse.rdf4j.sail.SailConnection;
 import org.eclipse.rdf4j.sail.SailException;
+import org.eclipse.rdf4j.sail.UpdateContext;
 import org.eclipse.rdf4j.sail.helpers.SailConnectionWrapper;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.LongAdder;
+
 /**
  * @author Joshua Shinavier (http://fortytwo.net)
  */
 public class DeduplicationSailConnection extends SailConnectionWrapper {
+    // The number of statements about a subject which may be read, per buffered triple with that subject,
+    // when all of them are probed with a single request.  Beyond this, the triples are probed one by one.
+    private static final int MAX_SCAN_PER_TRIPLE = 16;
+
+    private final BloomFilter filter;
+    private final DeduplicationPolicy policy;
+    private final int bufferSize;
+
+    // adds which have been accepted but not yet checked and forwarded, in order
+    private List<PendingAdd> buffer = new ArrayList<>();
+
+    private LongAdder skippedCounter = new LongAdder();
+    private LongAdder avoidedLookupCounter = new LongAdder();
+
     public DeduplicationSailConnection(final SailConnection baseSailConnection) {
+        this(baseSailConnection, null, DeduplicationPolicy.DEFAULT_GRAPH);
+    }
+
+    public DeduplicationSailConnection(final SailConnection baseSailConnection,
+                                       final BloomFilter filter,
+                                       final DeduplicationPolicy policy) {
+        this(baseSailConnection, filter, policy, 0);
+    }
+
+    /**
+     * @param baseSailConnection a connection to the base Sail
+     * @param filter             a Bloom filter of the statements in the base Sail, or null to look up every statement
+     * @param policy             the policy determining which statements are duplicates
+     * @param bufferSize         the number of added statements to buffer before checking and forwarding them
+     *                           as a batch, or 0 to check and forward each statement as it is added.
+     *                           Buffered statements are also forwarded before any read, removal or commit.
+     */
+    public DeduplicationSailConnection(final SailConnection baseSailConnection,
+                                       final BloomFilter filter,
+                                       final DeduplicationPolicy policy,
+                                       final int bufferSize) {
         super(baseSailConnection);
+        this.filter = filter;
+        this.policy = policy;
+        this.bufferSize = Math.max(0, bufferSize);
+    }
+
+    // allows the Sail to aggregate statistics over all of its connections
+    void setCounters(final LongAdder skippedCounter, final LongAdder avoidedLookupCounter) {
+        this.skippedCounter = skippedCounter;
+        this.avoidedLookupCounter = avoidedLookupCounter;
     }
 
     @Override
@@ -22,16 +85,353 @@ public class DeduplicationSailConnection extends SailConnectionWrapper {
                              final IRI predicate,
                              final Value object,
                              final Resource... contexts) throws SailException {
-        if (0 == contexts.length) {
-            boolean includeInferred = false;
-            try (CloseableIteration<? extends Statement, SailException> iter
-                         = this.getWrappedConnection().getStatements(subject, predicate, object, includeInferred)) {
-                if (iter.hasNext()) {
+        if (bufferSize > 0) {
+            buffer.add(new PendingAdd(subject, predicate, object, contexts));
+            if (buffer.size() >= bufferSize) {
+                flushBuffer();
+            }
+            return;
+        }
+
+        // Under the default graph policy, adds to named contexts are never looked up,
+        // so only the lookups which the filter actually saves are counted.
+        // The filter rules out duplicates for all policies, as it ignores contexts.
+        boolean needsLookup = DeduplicationPolicy.DEFAULT_GRAPH != policy || 0 == contexts.length;
+        boolean mightExist = needsLookup && (null == filter || filter.mightContain(subject, predicate, object));
+        if (needsLookup && !mightExist) {
+            avoidedLookupCounter.increment();
+        }
+
+        Resource[] targetContexts = contexts;
+        switch (policy) {
+            case DEFAULT_GRAPH:
+                if (0 == contexts.length && mightExist && exists(subject, predicate, object)) {
+                    skippedCounter.increment();
                     return;
                 }
+                break;
+            case QUAD:
+                if (mightExist) {
+                    targetContexts = missingContexts(subject, predicate, object, contexts);
+                    if (null == targetContexts) {
+                        skippedCounter.increment();
+                        return;
+                    }
+                }
+                break;
+            case TRIPLE:
+                if (mightExist && exists(subject, predicate, object)) {
+                    skippedCounter.increment();
+                    return;
+                }
+                if (contexts.length > 1) {
+                    targetContexts = new Resource[]{contexts[0]};
+                }
+                break;
+            default:
+                throw new IllegalStateException("unsupported policy: " + policy);
+        }
+
+        // Note: statements added in a transaction which is rolled back remain in the filter,
+        // which merely causes them to be looked up later
+        if (null != filter) {
+            filter.add(subject, predicate, object);
+        }
+
+        super.addStatement(subject, predicate, object, targetContexts);
+    }
+
+    @Override
+    public void flush() throws SailException {
+        flushBuffer();
+        super.flush();
+    }
+
+    @Override
+    public void prepare() throws SailException {
+        flushBuffer();
+        super.prepare();
+    }
+
+    @Override
+    public void commit() throws SailException {
+        flushBuffer();
+        super.commit();
+    }
+
+    @Override
+    public void rollback() throws SailException {
+        buffer.clear();
+        super.rollback();
+    }
+
+    @Override
+    public void close() throws SailException {
+        buffer.clear();
+        super.close();
+    }
+
+    @Override
+    public CloseableIteration<? extends Statement, SailException> getStatements(final Resource subj,
+                                                                              final IRI pred,
+                                                                              final Value obj,
+                                                                              final boolean includeInferred,
+                                                                              final Resource... contexts)
+            throws SailException {
+        flushBuffer();
+        return super.getStatements(subj, pred, obj, includeInferred, contexts);
+    }
+
+    @Override
+    public CloseableIteration<? extends BindingSet, QueryEvaluationException> evaluate(final TupleExpr tupleExpr,
+                                                                                     final Dataset dataset,
+                                                                                     final BindingSet bindings,
+                                                                                     final boolean includeInferred)
+            throws SailException {
+        flushBuffer();
+        return super.evaluate(tupleExpr, dataset, bindings, includeInferred);
+    }
+
+    @Override
+    public CloseableIteration<? extends Resource, SailException> getContextIDs() throws SailException {
+        flushBuffer();
+        return super.getContextIDs();
+    }
+
+    @Override
+    public long size(final Resource... contexts) throws SailException {
+        flushBuffer();
+        return super.size(contexts);
+    }
+
+    @Override
+    public long size(final Resource context) throws SailException {
+        flushBuffer();
+        return super.size(context);
+    }
+
+    @Override
+    public void removeStatements(final Resource subj,
+                                 final IRI pred,
+                                 final Value obj,
+                                 final Resource... contexts) throws SailException {
+        flushBuffer();
+        super.removeStatements(subj, pred, obj, contexts);
+    }
+
+    @Override
+    public void startUpdate(final UpdateContext op) throws SailException {
+        flushBuffer();
+        super.startUpdate(op);
+    }
+
+    @Override
+    public void clear(final Resource... contexts) throws SailException {
+        flushBuffer();
+        super.clear(contexts);
+    }
+
+    // Checks all buffered adds against the base Sail at once, then forwards those which are not duplicates.
+    // The buffer is also deduplicated internally, as later adds see the outcome of earlier ones.
+    private void flushBuffer() throws SailException {
+        if (buffer.isEmpty()) {
+            return;
+        }
+
+        List<PendingAdd> adds = buffer;
+        buffer = new ArrayList<>();
+
+        Set<Statement> toProbe = new TreeSet<>(StatementComparator.getInstance());
+        for (PendingAdd add : adds) {
+            boolean needsLookup = DeduplicationPolicy.DEFAULT_GRAPH != policy || 0 == add.contexts.length;
+            if (needsLookup) {
+                if (null == filter || filter.mightContain(add.subject, add.predicate, add.object)) {
+                    toProbe.add(add.triple());
+                } else {
+                    avoidedLookupCounter.increment();
+                }
+            }
+        }
+
+        // the contexts in which each triple is known to exist, with null for the default graph
+        Map<Statement, Set<Resource>> existing = probe(toProbe);
+
+        for (PendingAdd add : adds) {
+            Statement triple = add.triple();
+            Set<Resource> present = existing.get(triple);
+            Resource[] targetContexts = chooseTargetContexts(add.contexts, present);
+            if (null == targetContexts) {
+                skippedCounter.increment();
+                continue;
+            }
+
+            if (null != filter) {
+                filter.add(add.subject, add.predicate, add.object);
+            }
+            super.addStatement(add.subject, add.predicate, add.object, targetContexts);
+
+            if (null == present) {
+                present = new HashSet<>();
+                existing.put(triple, present);
+            }
+            if (0 == targetContexts.length) {
+                present.add(null);
+            } else {
+                present.addAll(Arrays.asList(targetContexts));
+            }
+        }
+    }
+
+    // Finds the contexts of the given triples in the base Sail, sweeping through them in sorted order.
+    // Triples which share a subject are retrieved with a single request, unless the subject has too many
+    // statements for this to be cheaper than retrieving the triples one by one.
+    private Map<Statement, Set<Resource>> probe(final Set<Statement> triples) throws SailException {
+        Map<Statement, Set<Resource>> existing = new TreeMap<>(StatementComparator.getInstance());
+
+        List<Statement> group = new ArrayList<>();
+        Iterator<Statement> iter = triples.iterator();
+        while (iter.hasNext() || !group.isEmpty()) {
+            Statement next = iter.hasNext() ? iter.next() : null;
+            if (null != next && (group.isEmpty() || group.get(0).getSubject().equals(next.getSubject()))) {
+                group.add(next);
+                continue;
+            }
+
+            if (1 == group.size() || !probeSubject(group, triples, existing)) {
+                for (Statement triple : group) {
+                    probeTriple(triple, existing);
+                }
+            }
+
+            group.clear();
+            if (null != next) {
+                group.add(next);
+            }
+        }
+
+        return existing;
+    }
+
+    // Retrieves all statements about the common subject of a group of triples.
+    // Returns false if the subject has too many statements, in which case the triples must be probed individually.
+    private boolean probeSubject(final List<Statement> group,
+                                 final Set<Statement> triples,
+                                 final Map<Statement, Set<Resource>> existing) throws SailException {
+        long maxScan = (long) group.size() * MAX_SCAN_PER_TRIPLE;
+        long scanned = 0;
+        try (CloseableIteration<? extends Statement, SailException> stmts
+                     = getWrappedConnection().getStatements(group.get(0).getSubject(), null, null, false)) {
+            while (stmts.hasNext()) {
+                if (++scanned > maxScan) {
+                    return false;
+                }
+
+                Statement st = stmts.next();
+                Statement triple = SimpleValueFactory.getInstance().createStatement(
+                        st.getSubject(), st.getPredicate(), st.getObject());
+                if (triples.contains(triple)) {
+                    existing.computeIfAbsent(triple, t -> new HashSet<>()).add(st.getContext());
+                }
+            }
+        }
+        return true;
+    }
+
+    private void probeTriple(final Statement triple,
+                             final Map<Statement, Set<Resource>> existing) throws SailException {
+        try (CloseableIteration<? extends Statement, SailException> stmts = getWrappedConnection().getStatements(
+                triple.getSubject(), triple.getPredicate(), triple.getObject(), false)) {
+            while (stmts.hasNext()) {
+                existing.computeIfAbsent(triple, t -> new HashSet<>()).add(stmts.next().getContext());
             }
         }
+    }
+
+    // Decides to which contexts a statement is to be added, given the contexts in which it already exists
+    // (null if it does not exist at all). Returns null if the statement is not to be added.
+    private Resource[] chooseTargetContexts(final Resource[] contexts, final Set<Resource> present) {
+        switch (policy) {
+            case DEFAULT_GRAPH:
+                return 0 == contexts.length && null != present ? null : contexts;
+            case QUAD:
+                if (null == present) {
+                    return contexts;
+                }
+                if (0 == contexts.length) {
+                    return present.contains(null) ? null : contexts;
+                }
+                List<Resource> missing = new LinkedList<>();
+                for (Resource context : contexts) {
+                    if (!present.contains(context)) {
+                        missing.add(context);
+                    }
+                }
+                return missing.isEmpty() ? null : missing.toArray(new Resource[missing.size()]);
+            case TRIPLE:
+                if (null != present) {
+                    return null;
+                }
+                return contexts.length > 1 ? new Resource[]{contexts[0]} : contexts;
+            default:
+                throw new IllegalStateException("unsupported policy: " + policy);
+        }
+    }
 
-        super.addStatement(subject, predicate, object, contexts);
+    // whether the triple exists in any context
+    private boolean exists(final Resource subject, final IRI predicate, final Value object) throws SailException {
+        boolean includeInferred = false;
+        try (CloseableIteration<? extends Statement, SailException> iter
+                     = this.getWrappedConnection().getStatements(subject, predicate, object, includeInferred)) {
+            return iter.hasNext();
+        }
+    }
+
+    // Finds the contexts which do not yet contain the triple, probing all given contexts at once.
+    // An empty array of contexts stands for the default graph.
+    // Returns null if the triple already exists in all of the contexts.
+    private Resource[] missingContexts(final Resource subject,
+                                       final IRI predicate,
+                                       final Value object,
+                                       final Resource... contexts) throws SailException {
+        Resource[] probed = 0 == contexts.length ? new Resource[]{null} : contexts;
+
+        Set<Resource> present = new HashSet<>();
+        boolean includeInferred = false;
+        try (CloseableIteration<? extends Statement, SailException> iter = this.getWrappedConnection()
+                .getStatements(subject, predicate, object, includeInferred, probed)) {
+            while (iter.hasNext()) {
+                present.add(iter.next().getContext());
+            }
+        }
+
+        if (present.isEmpty()) {
+            return contexts;
+        }
+
+        List<Resource> missing = new LinkedList<>();
+        for (Resource context : probed) {
+            if (!present.contains(context)) {
+                missing.add(context);
+            }
+        }
+        return missing.isEmpty() ? null : missing.toArray(new Resource[missing.size()]);
+    }
+
+    private static class PendingAdd {
+        private final Resource subject;
+        private final IRI predicate;
+        private final Value object;
+        private final Resource[] contexts;
+
+        private PendingAdd(final Resource subject, final IRI predicate, final Value object, final Resource[] contexts) {
+            this.subject = subject;
+            this.predicate = predicate;
+            this.object = object;
+            this.contexts = contexts;
+        }
+
+        private Statement triple() {
+            return SimpleValueFactory.getInstance().createStatement(subject, predicate, object);
+        }
     }
 }
@@ -0,0 +1,303 @@
+package net.fortytwo.sesametools.deduplication;
+
+import net.fortytwo.sesametools.StatementComparator;
+import org.eclipse.rdf4j.common.iteration.CloseableIteration;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.rio.RDFHandlerException;
+import org.eclipse.rdf4j.rio.helpers.AbstractRDFHandler;
+import org.eclipse.rdf4j.sail.Sail;
+import org.eclipse.rdf4j.sail.SailConnection;
+import org.eclipse.rdf4j.sail.SailException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Removes surplus copies of duplicate statements from a live store.
+ * The store is scanned and sorted once, as by {@link DuplicateStatementFinder},
+ * after which the copies of each duplicated triple are reduced to those which a {@link DeduplicationPolicy} allows.
+ * Changes are committed in small transactions, optionally with a pause between them,
+ * and progress may be recorded in a checkpoint file, so that an interrupted compaction can be resumed.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class DuplicateCompactor {
+    private static final ValueFactory valueFactory = SimpleValueFactory.getInstance();
+
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+    private static final int DEFAULT_RUN_SIZE = 1000000;
+
+    private final Sail sail;
+    private final DeduplicationPolicy policy;
+
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private long pauseBetweenBatches = 0;
+    private int runSize = DEFAULT_RUN_SIZE;
+    private File tempDir;
+    private File checkpointFile;
+
+    /**
+     * @param sail   the store to compact
+     * @param policy the policy determining which copies of a triple are surplus
+     */
+    public DuplicateCompactor(final Sail sail, final DeduplicationPolicy policy) {
+        this.sail = sail;
+        this.policy = policy;
+    }
+
+    /**
+     * @param batchSize the maximum number of duplicated triples to clean up in a single transaction
+     */
+    public void setBatchSize(final int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batch size must be positive");
+        }
+
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param millis the time to wait after each transaction, limiting the load placed on the store
+     */
+    public void setPauseBetweenBatches(final long millis) {
+        this.pauseBetweenBatches = Math.max(0, millis);
+    }
+
+    /**
+     * @param runSize the maximum number of statements to sort in memory at a time
+     * @param tempDir the directory in which to spill sorted runs, or null for the default temporary directory
+     */
+    public void setSortParameters(final int runSize, final File tempDir) {
+        this.runSize = runSize;
+        this.tempDir = tempDir;
+    }
+
+    /**
+     * @param file a file in which to record the last triple cleaned up, after each transaction.
+     *             If the file exists when compaction starts, triples up to and including the recorded one are skipped.
+     *             The file is deleted once compaction is complete.
+     */
+    public void setCheckpointFile(final File file) {
+        this.checkpointFile = file;
+    }
+
+    /**
+     * Removes surplus copies of all duplicated triples in the store
+     *
+     * @return the number of statements removed
+     * @throws SailException if the store cannot be read or modified
+     */
+    public long compact() throws SailException {
+        Statement checkpoint = readCheckpoint();
+
+        boolean includeInferred = false;
+        try (ExternalStatementSorter sorter = new ExternalStatementSorter(runSize, tempDir)) {
+            try (SailConnection sc = sail.getConnection()) {
+                try (CloseableIteration<? extends Statement, SailException> stmts
+                             = sc.getStatements(null, null, null, includeInferred)) {
+                    while (stmts.hasNext()) {
+                        sorter.add(stmts.next());
+                    }
+                }
+            }
+
+            try (SailConnection sc = sail.getConnection()) {
+                GroupHandler handler = new GroupHandler(sc, checkpoint);
+                sorter.emitSorted(handler);
+                if (null != checkpointFile) {
+                    checkpointFile.delete();
+                }
+                return handler.removed;
+            }
+        } catch (IOException e) {
+            throw new SailException(e);
+        }
+    }
+
+    // Chooses which copies of a triple to keep, given the contexts of all copies in sorted order,
+    // with null standing for the default graph
+    private List<Resource> chooseCopiesToKeep(final List<Resource> copies) {
+        List<Resource> keep = new ArrayList<>();
+        switch (policy) {
+            case TRIPLE:
+                keep.add(copies.get(0));
+                break;
+            case QUAD:
+                keep.addAll(new LinkedHashSet<>(copies));
+                break;
+            case DEFAULT_GRAPH:
+                // a copy in the default graph is surplus if the triple also exists in a named context
+                Set<Resource> distinct = new LinkedHashSet<>(copies);
+                if (distinct.size() > 1) {
+                    distinct.remove(null);
+                }
+                keep.addAll(distinct);
+                break;
+            default:
+                throw new IllegalStateException("unsupported policy: " + policy);
+        }
+        return keep;
+    }
+
+    private Statement readCheckpoint() throws SailException {
+        if (null == checkpointFile || !checkpointFile.exists()) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpointFile)))) {
+            Resource subj = (Resource) ExternalStatementSorter.readValue(in);
+            IRI pred = (IRI) ExternalStatementSorter.readValue(in);
+            Value obj = ExternalStatementSorter.readValue(in);
+            return valueFactory.createStatement(subj, pred, obj);
+        } catch (IOException e) {
+            throw new SailException("failed to read checkpoint from " + checkpointFile, e);
+        }
+    }
+
+    private void writeCheckpoint(final Statement last) throws SailException {
+        File tmp = new File(checkpointFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            ExternalStatementSorter.writeValue(last.getSubject(), out);
+            ExternalStatementSorter.writeValue(last.getPredicate(), out);
+            ExternalStatementSorter.writeValue(last.getObject(), out);
+        } catch (IOException e) {
+            throw new SailException("failed to write checkpoint to " + checkpointFile, e);
+        }
+
+        try {
+            Files.move(tmp.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new SailException("failed to write checkpoint to " + checkpointFile, e);
+        }
+    }
+
+    // Receives all statements in sorted order, collecting the contexts of each triple in turn
+    private class GroupHandler extends AbstractRDFHandler {
+        private final SailConnection sc;
+        private final Statement checkpoint;
+
+        private Statement triple = null;
+        private final List<Resource> copies = new ArrayList<>();
+
+        private Statement lastChanged = null;
+        private int changesInBatch = 0;
+        private long removed = 0;
+
+        private GroupHandler(final SailConnection sc, final Statement checkpoint) {
+            this.sc = sc;
+            this.checkpoint = checkpoint;
+        }
+
+        @Override
+        public void handleStatement(final Statement st) throws RDFHandlerException {
+            if (null != triple && triple.getSubject().equals(st.getSubject())
+                    && triple.getPredicate().equals(st.getPredicate())
+                    && triple.getObject().equals(st.getObject())) {
+                copies.add(st.getContext());
+            } else {
+                processGroup();
+                triple = valueFactory.createStatement(st.getSubject(), st.getPredicate(), st.getObject());
+                copies.clear();
+                copies.add(st.getContext());
+            }
+        }
+
+        @Override
+        public void endRDF() throws RDFHandlerException {
+            processGroup();
+            commitBatch();
+        }
+
+        private void processGroup() {
+            if (null == triple || copies.size() < 2
+                    || (null != checkpoint && StatementComparator.getInstance().compare(triple, checkpoint) <= 0)) {
+                return;
+            }
+
+            List<Resource> keep = chooseCopiesToKeep(copies);
+            if (keep.size() == copies.size()) {
+                return;
+            }
+
+            if (0 == changesInBatch) {
+                sc.begin();
+            }
+
+            for (Resource context : new LinkedHashSet<>(copies)) {
+                // Note: the store may have changed since it was scanned,
+                // so a kept copy is restored only if the triple is still present in the context
+                boolean present;
+                boolean includeInferred = false;
+                try (CloseableIteration<? extends Statement, SailException> iter = sc.getStatements(
+                        triple.getSubject(), triple.getPredicate(), triple.getObject(), includeInferred, context)) {
+                    present = iter.hasNext();
+                }
+
+                int occurrences = count(copies, context);
+                boolean kept = keep.contains(context);
+                if (present && (!kept || occurrences > 1)) {
+                    sc.removeStatements(triple.getSubject(), triple.getPredicate(), triple.getObject(), context);
+                    if (kept) {
+                        sc.addStatement(triple.getSubject(), triple.getPredicate(), triple.getObject(), context);
+                        removed += occurrences - 1;
+                    } else {
+                        removed += occurrences;
+                    }
+                }
+            }
+
+            lastChanged = triple;
+            if (++changesInBatch >= batchSize) {
+                commitBatch();
+            }
+        }
+
+        private void commitBatch() {
+            if (0 == changesInBatch) {
+                return;
+            }
+
+            sc.commit();
+            changesInBatch = 0;
+            if (null != checkpointFile) {
+                writeCheckpoint(lastChanged);
+            }
+
+            if (pauseBetweenBatches > 0) {
+                try {
+                    Thread.sleep(pauseBetweenBatches);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SailException(e);
+                }
+            }
+        }
+
+        private int count(final List<Resource> contexts, final Resource context) {
+            int count = 0;
+            for (Resource c : contexts) {
+                if (null == c ? null == context : c.equals(context)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+}
@@ -5,22 +5,150 @@ import org.eclipse.rdf4j.model.Resource;
 import org.eclipse.rdf4j.model.Statement;
 import org.eclipse.rdf4j.model.ValueFactory;
 import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.rio.RDFHandler;
+import org.eclipse.rdf4j.rio.RDFHandlerException;
+import org.eclipse.rdf4j.rio.helpers.AbstractRDFHandler;
+import org.eclipse.rdf4j.sail.Sail;
 import org.eclipse.rdf4j.sail.SailConnection;
 import org.eclipse.rdf4j.sail.SailException;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @author Joshua Shinavier (http://fortytwo.net)
  */
 public class DuplicateStatementFinder {
     private static final ValueFactory valueFactory = SimpleValueFactory.getInstance();
+
+    private static final int DEFAULT_RUN_SIZE = 1000000;
+    private static final int BATCH_SIZE = 1000;
     
     private DuplicateStatementFinder() {
         
     }
 
+    /**
+     * Finds triples which occur more than once in a store, in any combination of contexts,
+     * by means of a single sequential scan followed by an external sort.
+     * Memory use is bounded regardless of the size of the store, so this method is suitable for large stores.
+     *
+     * @param sc      a connection to the store
+     * @param handler a handler which receives each duplicated triple once, without a context
+     * @throws SailException if the store cannot be read, or sorted runs cannot be spilled to disk
+     */
+    public static void findDuplicateStatements(final SailConnection sc,
+                                               final RDFHandler handler) throws SailException {
+        findDuplicateStatements(sc, handler, DEFAULT_RUN_SIZE, null);
+    }
+
+    /**
+     * Finds triples which occur more than once in a store, in any combination of contexts,
+     * by means of a single sequential scan followed by an external sort.
+     *
+     * @param sc      a connection to the store
+     * @param handler a handler which receives each duplicated triple once, without a context
+     * @param runSize the maximum number of statements to sort in memory at a time
+     * @param tempDir the directory in which to spill sorted runs, or null for the default temporary directory
+     * @throws SailException if the store cannot be read, or sorted runs cannot be spilled to disk
+     */
+    public static void findDuplicateStatements(final SailConnection sc,
+                                               final RDFHandler handler,
+                                               final int runSize,
+                                               final File tempDir) throws SailException {
+        boolean includeInferred = false;
+
+        try (ExternalStatementSorter sorter = new ExternalStatementSorter(runSize, tempDir)) {
+            try (CloseableIteration<? extends Statement, SailException> stmts
+                         = sc.getStatements(null, null, null, includeInferred)) {
+                while (stmts.hasNext()) {
+                    sorter.add(stmts.next());
+                }
+            }
+
+            sorter.emitSorted(new DuplicateDetector(handler));
+        } catch (IOException e) {
+            throw new SailException(e);
+        }
+    }
+
+    /**
+     * Finds triples which occur more than once in a store, using several threads.
+     * Contexts (including the default graph) are scanned concurrently, each with its own connection,
+     * and statements are partitioned by subject, so that all copies of a triple fall into the same partition.
+     * Partitions are then sorted and searched for duplicates concurrently.
+     *
+     * @param sail    the store
+     * @param handler a handler which receives each duplicated triple once, without a context.
+     *                The handler is called from multiple threads, though never concurrently.
+     * @param threads the number of worker threads, and of partitions
+     * @param runSize the maximum number of statements to sort in memory at a time, per partition
+     * @param tempDir the directory in which to spill sorted runs, or null for the default temporary directory
+     * @throws SailException if the store cannot be read, or sorted runs cannot be spilled to disk
+     */
+    public static void findDuplicateStatements(final Sail sail,
+                                               final RDFHandler handler,
+                                               final int threads,
+                                               final int runSize,
+                                               final File tempDir) throws SailException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("at least one thread is required");
+        }
+
+        List<Resource> contexts = new LinkedList<>();
+        contexts.add(null);
+        try (SailConnection sc = sail.getConnection()) {
+            try (CloseableIteration<? extends Resource, SailException> iter = sc.getContextIDs()) {
+                while (iter.hasNext()) {
+                    contexts.add(iter.next());
+                }
+            }
+        }
+
+        List<ExternalStatementSorter> partitions = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            partitions.add(new ExternalStatementSorter(runSize, tempDir));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> scans = new LinkedList<>();
+            for (Resource context : contexts) {
+                scans.add(executor.submit(() -> {
+                    scanContext(sail, context, partitions);
+                    return null;
+                }));
+            }
+            awaitAll(scans);
+
+            handler.startRDF();
+            RDFHandler partitionHandler = new PartitionHandler(handler);
+            List<Future<?>> searches = new LinkedList<>();
+            for (ExternalStatementSorter partition : partitions) {
+                searches.add(executor.submit(() -> {
+                    partition.emitSorted(new DuplicateDetector(partitionHandler));
+                    return null;
+                }));
+            }
+            awaitAll(searches);
+            handler.endRDF();
+        } finally {
+            executor.shutdownNow();
+            for (ExternalStatementSorter partition : partitions) {
+                partition.close();
+            }
+        }
+    }
+
     public static Set<Statement> findDuplicateStatements(final SailConnection sc) throws SailException {
         boolean includeInferred = false;
 
@@ -61,4 +189,115 @@ public class DuplicateStatementFinder {
 
         return results;
     }
+
+    private static void scanContext(final Sail sail,
+                                    final Resource context,
+                                    final List<ExternalStatementSorter> partitions) throws IOException {
+        boolean includeInferred = false;
+
+        // statements are passed to the shared partitions in batches, to reduce contention
+        List<List<Statement>> batches = new ArrayList<>(partitions.size());
+        for (int i = 0; i < partitions.size(); i++) {
+            batches.add(new ArrayList<>(BATCH_SIZE));
+        }
+
+        try (SailConnection sc = sail.getConnection()) {
+            try (CloseableIteration<? extends Statement, SailException> stmts
+                         = sc.getStatements(null, null, null, includeInferred, context)) {
+                while (stmts.hasNext()) {
+                    Statement st = stmts.next();
+                    int i = Math.floorMod(st.getSubject().hashCode(), partitions.size());
+                    List<Statement> batch = batches.get(i);
+                    batch.add(st);
+                    if (batch.size() >= BATCH_SIZE) {
+                        flush(batch, partitions.get(i));
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < partitions.size(); i++) {
+            flush(batches.get(i), partitions.get(i));
+        }
+    }
+
+    private static void flush(final List<Statement> batch,
+                              final ExternalStatementSorter partition) throws IOException {
+        synchronized (partition) {
+            for (Statement st : batch) {
+                partition.add(st);
+            }
+        }
+        batch.clear();
+    }
+
+    private static void awaitAll(final List<Future<?>> futures) throws SailException {
+        try {
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SailException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else {
+                throw new SailException(e.getCause());
+            }
+        }
+    }
+
+    // Passes duplicates of a single partition on to a handler shared by all partitions
+    private static class PartitionHandler extends AbstractRDFHandler {
+        private final RDFHandler handler;
+
+        private PartitionHandler(final RDFHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void handleStatement(final Statement st) throws RDFHandlerException {
+            synchronized (handler) {
+                handler.handleStatement(st);
+            }
+        }
+    }
+
+    // Passes on each triple which occurs in more than one statement of a sorted stream.
+    // Statements with the same triple are adjacent in the stream, differing only in their contexts.
+    private static class DuplicateDetector extends AbstractRDFHandler {
+        private final RDFHandler handler;
+        private Statement previous = null;
+        private int count = 0;
+
+        private DuplicateDetector(final RDFHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void startRDF() throws RDFHandlerException {
+            handler.startRDF();
+        }
+
+        @Override
+        public void endRDF() throws RDFHandlerException {
+            handler.endRDF();
+        }
+
+        @Override
+        public void handleStatement(final Statement st) throws RDFHandlerException {
+            if (null != previous && previous.getSubject().equals(st.getSubject())
+                    && previous.getPredicate().equals(st.getPredicate())
+                    && previous.getObject().equals(st.getObject())) {
+                if (2 == ++count) {
+                    handler.handleStatement(
+                            valueFactory.createStatement(st.getSubject(), st.getPredicate(), st.getObject()));
+                }
+            } else {
+                previous = st;
+                count = 1;
+            }
+        }
+    }
 }
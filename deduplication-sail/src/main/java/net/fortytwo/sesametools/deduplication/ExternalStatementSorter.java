@@ -0,0 +1,272 @@
+package net.fortytwo.sesametools.deduplication;
+
+import net.fortytwo.sesametools.StatementComparator;
+import org.eclipse.rdf4j.model.BNode;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Literal;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.rio.RDFHandler;
+import org.eclipse.rdf4j.rio.RDFHandlerException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts an arbitrary number of statements using a bounded amount of memory.
+ * Statements are collected into runs of a fixed size, each of which is sorted in memory
+ * and, if there is more than one run, spilled to a temporary file.
+ * The runs are then merged into a single stream, in the order of {@link StatementComparator}.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class ExternalStatementSorter implements Closeable {
+    private static final ValueFactory valueFactory = SimpleValueFactory.getInstance();
+
+    private static final byte
+            NO_VALUE = 0,
+            IRI_VALUE = 1,
+            BNODE_VALUE = 2,
+            LANGUAGE_LITERAL_VALUE = 3,
+            TYPED_LITERAL_VALUE = 4;
+
+    private final Comparator<Statement> comparator = StatementComparator.getInstance();
+    private final int runSize;
+    private final File tempDir;
+
+    private final List<File> runFiles = new LinkedList<>();
+    private List<Statement> buffer;
+
+    /**
+     * @param runSize the maximum number of statements to hold in memory at a time
+     * @param tempDir the directory in which to create run files, or null for the default temporary directory
+     */
+    public ExternalStatementSorter(final int runSize, final File tempDir) {
+        if (runSize <= 0) {
+            throw new IllegalArgumentException("run size must be positive");
+        }
+
+        this.runSize = runSize;
+        this.tempDir = tempDir;
+        this.buffer = new ArrayList<>(Math.min(runSize, 1 << 16));
+    }
+
+    public void add(final Statement st) throws IOException {
+        buffer.add(st);
+        if (buffer.size() >= runSize) {
+            spill();
+        }
+    }
+
+    /**
+     * @return the number of runs which have been spilled to disk so far
+     */
+    public int getSpilledRunCount() {
+        return runFiles.size();
+    }
+
+    /**
+     * Passes all statements added so far to a handler, in sorted order.
+     * Duplicate statements are passed as often as they were added.
+     *
+     * @param handler a handler for the sorted statements
+     * @throws IOException          if a run file cannot be read or written
+     * @throws RDFHandlerException if the handler throws an exception
+     */
+    public void emitSorted(final RDFHandler handler) throws IOException, RDFHandlerException {
+        handler.startRDF();
+
+        buffer.sort(comparator);
+        if (runFiles.isEmpty()) {
+            for (Statement st : buffer) {
+                handler.handleStatement(st);
+            }
+        } else {
+            merge(handler);
+        }
+
+        handler.endRDF();
+    }
+
+    /**
+     * Deletes any run files
+     */
+    @Override
+    public void close() {
+        for (File f : runFiles) {
+            f.delete();
+        }
+        runFiles.clear();
+        buffer.clear();
+    }
+
+    private void spill() throws IOException {
+        buffer.sort(comparator);
+
+        File f = File.createTempFile("statements", ".run", tempDir);
+        runFiles.add(f);
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)))) {
+            for (Statement st : buffer) {
+                writeValue(st.getSubject(), out);
+                writeValue(st.getPredicate(), out);
+                writeValue(st.getObject(), out);
+                writeValue(st.getContext(), out);
+            }
+        }
+
+        buffer = new ArrayList<>(Math.min(runSize, 1 << 16));
+    }
+
+    private void merge(final RDFHandler handler) throws IOException {
+        List<RunReader> readers = new LinkedList<>();
+        PriorityQueue<RunReader> queue = new PriorityQueue<>(
+                (first, second) -> comparator.compare(first.current, second.current));
+        try {
+            for (File f : runFiles) {
+                RunReader r = new RunReader(new DataInputStream(new BufferedInputStream(new FileInputStream(f))));
+                readers.add(r);
+                if (r.advance()) {
+                    queue.add(r);
+                }
+            }
+
+            // the unspilled remainder takes part in the merge as an in-memory run
+            RunReader remainder = new RunReader(buffer);
+            if (remainder.advance()) {
+                queue.add(remainder);
+            }
+
+            while (!queue.isEmpty()) {
+                RunReader r = queue.poll();
+                handler.handleStatement(r.current);
+                if (r.advance()) {
+                    queue.add(r);
+                }
+            }
+        } finally {
+            for (RunReader r : readers) {
+                r.close();
+            }
+        }
+    }
+
+    // also used for the checkpoints of DuplicateCompactor
+    static void writeValue(final Value value, final DataOutputStream out) throws IOException {
+        if (null == value) {
+            out.writeByte(NO_VALUE);
+        } else if (value instanceof IRI) {
+            out.writeByte(IRI_VALUE);
+            writeString(value.stringValue(), out);
+        } else if (value instanceof BNode) {
+            out.writeByte(BNODE_VALUE);
+            writeString(((BNode) value).getID(), out);
+        } else {
+            Literal literal = (Literal) value;
+            if (literal.getLanguage().isPresent()) {
+                out.writeByte(LANGUAGE_LITERAL_VALUE);
+                writeString(literal.getLabel(), out);
+                writeString(literal.getLanguage().get(), out);
+            } else {
+                out.writeByte(TYPED_LITERAL_VALUE);
+                writeString(literal.getLabel(), out);
+                writeString(literal.getDatatype().stringValue(), out);
+            }
+        }
+    }
+
+    static Value readValue(final DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case NO_VALUE:
+                return null;
+            case IRI_VALUE:
+                return valueFactory.createIRI(readString(in));
+            case BNODE_VALUE:
+                return valueFactory.createBNode(readString(in));
+            case LANGUAGE_LITERAL_VALUE:
+                return valueFactory.createLiteral(readString(in), readString(in));
+            case TYPED_LITERAL_VALUE:
+                return valueFactory.createLiteral(readString(in), valueFactory.createIRI(readString(in)));
+            default:
+                throw new IOException("corrupt run file: unknown value type " + type);
+        }
+    }
+
+    // Note: DataOutput.writeUTF is not used, as it is limited to strings of 64KB
+    private static void writeString(final String s, final DataOutputStream out) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // a sorted run, either in a file or in memory
+    private static class RunReader {
+        private final DataInputStream in;
+        private final Iterator<Statement> iter;
+        private Statement current;
+
+        private RunReader(final DataInputStream in) {
+            this.in = in;
+            this.iter = null;
+        }
+
+        private RunReader(final List<Statement> statements) {
+            this.in = null;
+            this.iter = statements.iterator();
+        }
+
+        private boolean advance() throws IOException {
+            if (null != iter) {
+                current = iter.hasNext() ? iter.next() : null;
+                return null != current;
+            }
+
+            Value subj;
+            try {
+                subj = readValue(in);
+            } catch (EOFException e) {
+                current = null;
+                return false;
+            }
+
+            IRI pred = (IRI) readValue(in);
+            Value obj = readValue(in);
+            Resource context = (Resource) readValue(in);
+            current = null == context
+                    ? valueFactory.createStatement((Resource) subj, pred, obj)
+                    : valueFactory.createStatement((Resource) subj, pred, obj, context);
+            return true;
+        }
+
+        private void close() throws IOException {
+            if (null != in) {
+                in.close();
+            }
+        }
+    }
+}
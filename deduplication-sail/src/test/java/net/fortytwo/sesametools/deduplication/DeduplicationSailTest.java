@@ -0,0 +1,314 @@
+package net.fortytwo.sesametools.deduplication;
+
+import junit.framework.TestCase;
+import net.fortytwo.sesametools.MultiStackableSail;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.vocabulary.RDF;
+import org.eclipse.rdf4j.model.vocabulary.RDFS;
+import org.eclipse.rdf4j.sail.Sail;
+import org.eclipse.rdf4j.sail.SailConnection;
+import org.eclipse.rdf4j.sail.memory.MemoryStore;
+
+import java.io.File;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class DeduplicationSailTest extends TestCase {
+    private static final String NS = "http://example.org/test/";
+
+    private Sail baseSail;
+    private ValueFactory valueFactory;
+    private IRI ctx1;
+
+    public void setUp() throws Exception {
+        baseSail = new MemoryStore();
+        baseSail.initialize();
+        valueFactory = baseSail.getValueFactory();
+        ctx1 = valueFactory.createIRI(NS + "ctx1");
+
+        try (SailConnection sc = baseSail.getConnection()) {
+            sc.begin();
+            sc.addStatement(RDF.TYPE, RDF.TYPE, RDF.PROPERTY, ctx1);
+            sc.commit();
+        }
+    }
+
+    public void tearDown() throws Exception {
+        baseSail.shutDown();
+    }
+
+    public void testWithoutFilter() throws Exception {
+        DeduplicationSail sail = new DeduplicationSail(baseSail);
+        assertNull(sail.getFilter());
+        addStatements(sail);
+    }
+
+    public void testWithFilter() throws Exception {
+        DeduplicationSail sail = new DeduplicationSail(new MultiStackableSail(baseSail), 1000);
+        sail.initialize();
+        // the existing statement was read into the filter
+        assertTrue(sail.getFilter().mightContain(RDF.TYPE, RDF.TYPE, RDF.PROPERTY));
+        assertFalse(sail.getFilter().mightContain(RDF.NIL, RDF.TYPE, RDF.LIST));
+        addStatements(sail);
+        assertTrue(sail.getFilter().mightContain(RDF.PROPERTY, RDF.TYPE, RDFS.CLASS));
+    }
+
+    public void testPersistentFilter() throws Exception {
+        File file = File.createTempFile("dedup", ".filter");
+        file.delete();
+        try {
+            DeduplicationSail sail = new DeduplicationSail(new MultiStackableSail(baseSail), 1000);
+            sail.setFilterFile(file);
+            sail.initialize();
+            try (SailConnection sc = sail.getConnection()) {
+                sc.begin();
+                sc.addStatement(RDF.NIL, RDF.TYPE, RDF.LIST);
+                sc.commit();
+            }
+            sail.shutDown();
+            assertTrue(file.exists());
+
+            // the reloaded filter includes the statement added through the Sail
+            sail = new DeduplicationSail(new MultiStackableSail(baseSail), 1000);
+            sail.setFilterFile(file);
+            sail.initialize();
+            assertTrue(sail.getFilter().mightContain(RDF.NIL, RDF.TYPE, RDF.LIST));
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testPersistentFilterAfterCrash() throws Exception {
+        File file = File.createTempFile("dedup", ".filter");
+        file.delete();
+        try {
+            DeduplicationSail sail = new DeduplicationSail(new MultiStackableSail(baseSail), 1000);
+            sail.setFilterFile(file);
+            sail.initialize();
+            sail.shutDown();
+            assertTrue(file.exists());
+
+            sail = new DeduplicationSail(new MultiStackableSail(baseSail), 1000);
+            sail.setFilterFile(file);
+            sail.initialize();
+            // the loaded file is no longer valid once statements are added
+            assertFalse(file.exists());
+            try (SailConnection sc = sail.getConnection()) {
+                sc.begin();
+                sc.addStatement(RDF.NIL, RDF.TYPE, RDF.LIST);
+                sc.commit();
+            }
+            // no shutDown, as if the process had been killed
+
+            sail = new DeduplicationSail(new MultiStackableSail(baseSail), 1000);
+            sail.setFilterFile(file);
+            sail.initialize();
+            // the filter is rebuilt from the base Sail, and includes the statement added before the crash
+            assertTrue(sail.getFilter().mightContain(RDF.NIL, RDF.TYPE, RDF.LIST));
+            try (SailConnection sc = sail.getConnection()) {
+                sc.begin();
+                long size = sc.size();
+                sc.addStatement(RDF.NIL, RDF.TYPE, RDF.LIST);
+                assertEquals(size, sc.size());
+                sc.commit();
+            }
+            assertEquals(1, sail.getSkippedCount());
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testAvoidedLookups() throws Exception {
+        for (int bufferSize : new int[]{0, 10}) {
+            DeduplicationSail sail = new DeduplicationSail(new MultiStackableSail(baseSail), 1000);
+            sail.setBufferSize(bufferSize);
+            sail.initialize();
+            try (SailConnection sc = sail.getConnection()) {
+                sc.begin();
+                // under the default graph policy, adds to named contexts need no lookup, so none is avoided
+                sc.addStatement(RDF.NIL, RDF.TYPE, RDF.LIST, ctx1);
+                sc.commit();
+                assertEquals(0, sail.getAvoidedLookupCount());
+
+                sc.begin();
+                sc.addStatement(RDF.PROPERTY, RDF.TYPE, RDFS.CLASS);
+                sc.commit();
+                assertEquals(1, sail.getAvoidedLookupCount());
+
+                sc.begin();
+                sc.removeStatements(RDF.NIL, RDF.TYPE, RDF.LIST, ctx1);
+                sc.removeStatements(RDF.PROPERTY, RDF.TYPE, RDFS.CLASS);
+                sc.commit();
+            }
+            sail.shutDown();
+        }
+    }
+
+    public void testQuadPolicy() throws Exception {
+        IRI ctx2 = valueFactory.createIRI(NS + "ctx2");
+        DeduplicationSail sail = new DeduplicationSail(new MultiStackableSail(baseSail), 1000);
+        sail.setPolicy(DeduplicationPolicy.QUAD);
+        sail.initialize();
+        try (SailConnection sc = sail.getConnection()) {
+            sc.begin();
+            // Only the context which does not yet contain the statement is added to.
+            sc.addStatement(RDF.TYPE, RDF.TYPE, RDF.PROPERTY, ctx1, ctx2);
+            assertEquals(2, sc.size());
+            assertEquals(1, sc.size(ctx2));
+            sc.addStatement(RDF.TYPE, RDF.TYPE, RDF.PROPERTY, ctx1, ctx2);
+            assertEquals(2, sc.size());
+            // The default graph is a context of its own.
+            sc.addStatement(RDF.TYPE, RDF.TYPE, RDF.PROPERTY);
+            assertEquals(3, sc.size());
+            sc.addStatement(RDF.TYPE, RDF.TYPE, RDF.PROPERTY);
+            assertEquals(3, sc.size());
+            sc.commit();
+        }
+    }
+
+    public void testTriplePolicy() throws Exception {
+        IRI ctx2 = valueFactory.createIRI(NS + "ctx2");
+        DeduplicationSail sail = new DeduplicationSail(baseSail);
+        sail.setPolicy(DeduplicationPolicy.TRIPLE);
+        try (SailConnection sc = sail.getConnection()) {
+            sc.begin();
+            // The triple already exists in another context.
+            sc.addStatement(RDF.TYPE, RDF.TYPE, RDF.PROPERTY, ctx2);
+            assertEquals(1, sc.size());
+            // A new triple is added to the first context only.
+            sc.addStatement(RDF.NIL, RDF.TYPE, RDF.LIST, ctx2, ctx1);
+            assertEquals(2, sc.size());
+            assertEquals(1, sc.size(ctx2));
+            sc.addStatement(RDF.NIL, RDF.TYPE, RDF.LIST);
+            assertEquals(2, sc.size());
+            sc.commit();
+        }
+    }
+
+    public void testBufferedAdds() throws Exception {
+        IRI ctx2 = valueFactory.createIRI(NS + "ctx2");
+        DeduplicationSail sail = new DeduplicationSail(new MultiStackableSail(baseSail), 1000);
+        sail.setPolicy(DeduplicationPolicy.QUAD);
+        sail.setBufferSize(100);
+        sail.initialize();
+        try (SailConnection sc = sail.getConnection()) {
+            sc.begin();
+            // Duplicates of a stored statement, and of each other, are detected together.
+            sc.addStatement(RDF.TYPE, RDF.TYPE, RDF.PROPERTY, ctx1, ctx2);
+            sc.addStatement(RDF.TYPE, RDF.TYPE, RDF.PROPERTY, ctx2);
+            sc.addStatement(RDF.TYPE, RDF.TYPE, RDF.PROPERTY);
+            sc.addStatement(RDF.TYPE, RDF.TYPE, RDF.PROPERTY);
+            sc.addStatement(RDF.TYPE, RDFS.DOMAIN, RDFS.RESOURCE, ctx1);
+            sc.addStatement(RDF.NIL, RDF.TYPE, RDF.LIST);
+            sc.addStatement(RDF.NIL, RDF.TYPE, RDF.LIST);
+            // Buffered statements are written before they are read.
+            assertEquals(5, sc.size());
+            assertEquals(1, sc.size(ctx2));
+            assertEquals(2, sc.size((Resource) null));
+            sc.commit();
+        }
+
+        try (SailConnection sc = sail.getConnection()) {
+            sc.begin();
+            sc.addStatement(RDF.NIL, RDF.TYPE, RDF.LIST);
+            sc.addStatement(RDFS.CLASS, RDF.TYPE, RDFS.CLASS);
+            sc.commit();
+            assertEquals(6, sc.size());
+        }
+        assertEquals(4, sail.getSkippedCount());
+    }
+
+    public void testBufferedAddsAboutLargeSubject() throws Exception {
+        try (SailConnection sc = baseSail.getConnection()) {
+            sc.begin();
+            for (int i = 0; i < 100; i++) {
+                sc.addStatement(RDF.TYPE, RDF.VALUE, valueFactory.createLiteral(i), ctx1);
+            }
+            sc.commit();
+        }
+
+        DeduplicationSail sail = new DeduplicationSail(new MultiStackableSail(baseSail), 1000);
+        sail.setBufferSize(100);
+        sail.initialize();
+        try (SailConnection sc = sail.getConnection()) {
+            sc.begin();
+            // The subject has too many statements to be retrieved as a whole, so the triples are probed one by one.
+            sc.addStatement(RDF.TYPE, RDF.VALUE, valueFactory.createLiteral(7));
+            sc.addStatement(RDF.TYPE, RDF.VALUE, valueFactory.createLiteral(42));
+            sc.addStatement(RDF.TYPE, RDF.VALUE, valueFactory.createLiteral(100));
+            sc.commit();
+            assertEquals(102, sc.size());
+        }
+        assertEquals(2, sail.getSkippedCount());
+    }
+
+    public void testCompaction() throws Exception {
+        IRI ctx2 = valueFactory.createIRI(NS + "ctx2");
+        try (SailConnection sc = baseSail.getConnection()) {
+            sc.begin();
+            sc.addStatement(RDF.TYPE, RDF.TYPE, RDF.PROPERTY);
+            sc.addStatement(RDF.TYPE, RDF.TYPE, RDF.PROPERTY, ctx2);
+            sc.addStatement(RDF.NIL, RDF.TYPE, RDF.LIST);
+            sc.addStatement(RDF.PROPERTY, RDF.TYPE, RDFS.CLASS, ctx1);
+            sc.addStatement(RDF.PROPERTY, RDF.TYPE, RDFS.CLASS);
+            sc.commit();
+        }
+
+        File checkpoint = File.createTempFile("dedup", ".checkpoint");
+        checkpoint.delete();
+
+        // Copies in the default graph are removed where a named context has the same triple.
+        DuplicateCompactor compactor = new DuplicateCompactor(baseSail, DeduplicationPolicy.DEFAULT_GRAPH);
+        compactor.setBatchSize(1);
+        compactor.setCheckpointFile(checkpoint);
+        assertEquals(2, compactor.compact());
+        assertFalse(checkpoint.exists());
+        try (SailConnection sc = baseSail.getConnection()) {
+            assertEquals(4, sc.size());
+            assertEquals(1, sc.size((Resource) null));
+        }
+
+        // Only one copy of each triple is kept.
+        compactor = new DuplicateCompactor(baseSail, DeduplicationPolicy.TRIPLE);
+        assertEquals(1, compactor.compact());
+        try (SailConnection sc = baseSail.getConnection()) {
+            assertEquals(3, sc.size());
+        }
+        assertEquals(0, compactor.compact());
+    }
+
+    public void testNoFalseNegatives() throws Exception {
+        BloomFilter filter = new BloomFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            filter.add(RDF.NIL, RDF.VALUE, valueFactory.createLiteral(i));
+        }
+
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(filter.mightContain(RDF.NIL, RDF.VALUE, valueFactory.createLiteral(i)));
+            if (filter.mightContain(RDF.NIL, RDF.VALUE, valueFactory.createLiteral("" + i))) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 500);
+    }
+
+    private void addStatements(final Sail sail) throws Exception {
+        try (SailConnection sc = sail.getConnection()) {
+            sc.begin();
+            // Duplicate of a statement in a named graph.
+            sc.addStatement(RDF.TYPE, RDF.TYPE, RDF.PROPERTY);
+            assertEquals(1, sc.size());
+            // New statement.
+            sc.addStatement(RDF.PROPERTY, RDF.TYPE, RDFS.CLASS);
+            assertEquals(2, sc.size());
+            // Duplicate of the new statement.
+            sc.addStatement(RDF.PROPERTY, RDF.TYPE, RDFS.CLASS);
+            assertEquals(2, sc.size());
+            sc.commit();
+        }
+    }
+}
@@ -6,10 +6,13 @@ import org.eclipse.rdf4j.model.IRI;
 import org.eclipse.rdf4j.model.ValueFactory;
 import org.eclipse.rdf4j.model.vocabulary.RDF;
 import org.eclipse.rdf4j.model.vocabulary.RDFS;
+import org.eclipse.rdf4j.rio.helpers.StatementCollector;
 import org.eclipse.rdf4j.sail.Sail;
 import org.eclipse.rdf4j.sail.SailConnection;
+import org.eclipse.rdf4j.sail.SailException;
 import org.eclipse.rdf4j.sail.memory.MemoryStore;
 
+import java.util.HashSet;
 import java.util.Set;
 
 /**
@@ -56,4 +59,49 @@ public class DuplicateStatementFinderTest extends TestCase {
         sc.rollback();
         sc.close();
     }
+
+    public void testExternalSort() throws Exception {
+        SailConnection sc = sail.getConnection();
+        sc.begin();
+
+        addStatementsWithDuplicates(sc);
+
+        // small runs force the statements to be spilled to disk and merged
+        StatementCollector collector = new StatementCollector();
+        DuplicateStatementFinder.findDuplicateStatements(sc, collector, 64, null);
+        assertEquals(100, collector.getStatements().size());
+        assertEquals(DuplicateStatementFinder.findDuplicateStatements(sc),
+                new HashSet<>(collector.getStatements()));
+
+        sc.rollback();
+        sc.close();
+    }
+
+    public void testParallel() throws Exception {
+        SailConnection sc = sail.getConnection();
+        sc.begin();
+        addStatementsWithDuplicates(sc);
+        sc.commit();
+
+        StatementCollector collector = new StatementCollector();
+        DuplicateStatementFinder.findDuplicateStatements(sail, collector, 4, 64, null);
+        assertEquals(100, collector.getStatements().size());
+        assertEquals(DuplicateStatementFinder.findDuplicateStatements(sc),
+                new HashSet<>(collector.getStatements()));
+        sc.close();
+    }
+
+    // adds 1000 distinct triples, every tenth of which is duplicated in another context
+    private void addStatementsWithDuplicates(final SailConnection sc) throws SailException {
+        IRI ctx1 = valueFactory.createIRI(NS + "ctx1");
+        IRI ctx2 = valueFactory.createIRI(NS + "ctx2");
+
+        for (int i = 0; i < 1000; i++) {
+            IRI subject = valueFactory.createIRI(NS + "s" + (i % 37));
+            sc.addStatement(subject, RDF.VALUE, valueFactory.createLiteral(i), ctx1);
+            if (0 == i % 10) {
+                sc.addStatement(subject, RDF.VALUE, valueFactory.createLiteral(i), 0 == i % 20 ? ctx2 : null);
+            }
+        }
+    }
 }
@@ -54,12 +54,13 @@ public class ReadOnlySailConnection extends AbstractSailConnection {
         return baseSailConnection.size(contexts);
     }
 
+    // Nothing has been written, but the transaction begun on the base connection must still be ended
     protected void commitInternal() throws SailException {
-        // Do nothing.
+        baseSailConnection.rollback();
     }
 
     protected void rollbackInternal() throws SailException {
-        // Do nothing.
+        baseSailConnection.rollback();
     }
 
     protected void addStatementInternal(final Resource subject,
@@ -1,7 +1,11 @@
 package net.fortytwo.sesametools.sesamize;
 
 import com.google.common.base.Preconditions;
+import org.eclipse.rdf4j.rio.RDFFormat;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -49,6 +53,24 @@ public abstract class Command {
         return args.getOption(DEFAULT_BASEURI, "b", "baseuri");
     }
 
+    /**
+     * @return the output stream of a command, compressed according to the "compression" option.
+     * The stream must be closed to complete the output.
+     */
+    protected static OutputStream getCompressedOutput(final SesamizeArgs args) throws IOException {
+        return Compression.forName(args.getOption("none", "c", "compression")).compress(args.getOutput());
+    }
+
+    protected static FileQueryEvaluator getQueryEvaluator(final SesamizeArgs args,
+                                                          final File inputFile,
+                                                          final RDFFormat inputFormat) {
+        FileQueryEvaluator evaluator = new FileQueryEvaluator(inputFile, inputFormat, getBaseURI(args));
+        evaluator.setStrategy(FileQueryEvaluator.Strategy.valueOf(
+                args.getOption("auto", "e", "evaluation").toUpperCase()));
+        evaluator.setGroupedBySubject(args.getBooleanOption(false, "g", "grouped"));
+        return evaluator;
+    }
+
     public static class Parameter<T> {
         private final String name;
         private final String shortName;
@@ -0,0 +1,186 @@
+package net.fortytwo.sesametools.sesamize;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorInputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorOutputStream;
+import org.apache.commons.io.FilenameUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The compression formats which sesamize reads and writes transparently.
+ * Compressed input is recognized by its leading bytes, regardless of the file name,
+ * while compressed output is chosen by file extension or by option.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public enum Compression {
+    NONE(null, new int[]{}),
+    GZIP("gz", new int[]{0x1f, 0x8b}),
+    BZIP2("bz2", new int[]{'B', 'Z', 'h'}),
+    ZSTD("zst", new int[]{0x28, 0xb5, 0x2f, 0xfd});
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // a bzip2 stream begins with "BZh", a block size digit, and the magic number of either a block or,
+    // for an empty stream, the end of the stream
+    private static final int[] BZIP2_BLOCK_MAGIC = {0x31, 0x41, 0x59, 0x26, 0x53, 0x59};
+    private static final int[] BZIP2_END_MAGIC = {0x17, 0x72, 0x45, 0x38, 0x50, 0x90};
+    private static final int HEADER_LENGTH = 10;
+
+    private final String extension;
+    private final int[] magic;
+
+    Compression(final String extension, final int[] magic) {
+        this.extension = extension;
+        this.magic = magic;
+    }
+
+    /**
+     * @return the file extension of this format, e.g. "gz", or null for uncompressed files
+     */
+    public String getExtension() {
+        return extension;
+    }
+
+    public InputStream decompress(final InputStream in) throws IOException {
+        switch (this) {
+            case NONE:
+                return in;
+            case GZIP:
+                return new GZIPInputStream(in, BUFFER_SIZE);
+            case BZIP2:
+                // concatenated streams, as written by parallel compressors, are read as one
+                return new BZip2CompressorInputStream(in, true);
+            case ZSTD:
+                return new ZstdCompressorInputStream(in);
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * @param out a stream to which to write compressed data. It is closed when the returned stream is closed.
+     * @return a stream for uncompressed data, which must be closed to complete the output
+     */
+    public OutputStream compress(final OutputStream out) throws IOException {
+        switch (this) {
+            case NONE:
+                return new BufferedOutputStream(out, BUFFER_SIZE);
+            case GZIP:
+                return new GZIPOutputStream(new BufferedOutputStream(out, BUFFER_SIZE), BUFFER_SIZE);
+            case BZIP2:
+                return new BZip2CompressorOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+            case ZSTD:
+                return new ZstdCompressorOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * @param name a name such as "gzip" or "gz", or "none"
+     */
+    public static Compression forName(final String name) {
+        for (Compression c : values()) {
+            if (c.name().equalsIgnoreCase(name) || name.equalsIgnoreCase(c.extension)) {
+                return c;
+            }
+        }
+
+        throw new IllegalArgumentException("no such compression format: " + name
+                + " (supported formats are: none, gzip, bzip2, zstd)");
+    }
+
+    /**
+     * @return the compression format indicated by the extension of a file name, or NONE
+     */
+    public static Compression forFileName(final String fileName) {
+        String ext = FilenameUtils.getExtension(fileName);
+        for (Compression c : values()) {
+            if (ext.equalsIgnoreCase(c.extension)) {
+                return c;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * @return the file name without any compression extension, e.g. "data.nt" for "data.nt.gz"
+     */
+    public static String stripExtension(final String fileName) {
+        return NONE == forFileName(fileName) ? fileName : FilenameUtils.removeExtension(fileName);
+    }
+
+    /**
+     * @param in a stream which supports mark and reset
+     * @return the compression format of the stream, judging by its first few bytes
+     */
+    public static Compression detect(final InputStream in) throws IOException {
+        in.mark(HEADER_LENGTH);
+        int[] head = new int[HEADER_LENGTH];
+        int n = 0;
+        for (; n < head.length; n++) {
+            int b = in.read();
+            if (b < 0) {
+                break;
+            }
+            head[n] = b;
+        }
+        in.reset();
+
+        for (Compression c : values()) {
+            if (NONE != c && c.magic.length <= n && startsWith(head, 0, c.magic)
+                    && (BZIP2 != c || isBzip2Header(head, n))) {
+                return c;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Opens a file for reading, decompressing it if necessary
+     */
+    public static InputStream openInput(final File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        try {
+            Compression c = detect(in);
+            return NONE == c ? in : new BufferedInputStream(c.decompress(in), BUFFER_SIZE);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a file for writing, compressing it according to its extension
+     */
+    public static OutputStream openOutput(final File file) throws IOException {
+        return forFileName(file.getName()).compress(new FileOutputStream(file));
+    }
+
+    // so that text which happens to begin with "BZh" is not taken for bzip2
+    private static boolean isBzip2Header(final int[] head, final int n) {
+        return HEADER_LENGTH == n && head[3] >= '1' && head[3] <= '9'
+                && (startsWith(head, 4, BZIP2_BLOCK_MAGIC) || startsWith(head, 4, BZIP2_END_MAGIC));
+    }
+
+    private static boolean startsWith(final int[] head, final int offset, final int[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (head[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,454 @@
+package net.fortytwo.sesametools.sesamize;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.rdf4j.IsolationLevels;
+import org.eclipse.rdf4j.common.iteration.CloseableIteration;
+import org.eclipse.rdf4j.common.iteration.CloseableIteratorIteration;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Model;
+import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.LinkedHashModel;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.QueryEvaluationException;
+import org.eclipse.rdf4j.query.TupleQueryResultHandler;
+import org.eclipse.rdf4j.query.algebra.Extension;
+import org.eclipse.rdf4j.query.algebra.Filter;
+import org.eclipse.rdf4j.query.algebra.Join;
+import org.eclipse.rdf4j.query.algebra.MultiProjection;
+import org.eclipse.rdf4j.query.algebra.Projection;
+import org.eclipse.rdf4j.query.algebra.QueryModelNode;
+import org.eclipse.rdf4j.query.algebra.QueryRoot;
+import org.eclipse.rdf4j.query.algebra.Reduced;
+import org.eclipse.rdf4j.query.algebra.StatementPattern;
+import org.eclipse.rdf4j.query.algebra.SubQueryValueOperator;
+import org.eclipse.rdf4j.query.algebra.TupleExpr;
+import org.eclipse.rdf4j.query.algebra.evaluation.EvaluationStrategy;
+import org.eclipse.rdf4j.query.algebra.evaluation.TripleSource;
+import org.eclipse.rdf4j.query.algebra.evaluation.impl.StrictEvaluationStrategy;
+import org.eclipse.rdf4j.query.algebra.helpers.AbstractQueryModelVisitor;
+import org.eclipse.rdf4j.query.impl.EmptyBindingSet;
+import org.eclipse.rdf4j.query.parser.ParsedGraphQuery;
+import org.eclipse.rdf4j.query.parser.ParsedQuery;
+import org.eclipse.rdf4j.query.parser.ParsedTupleQuery;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.sail.SailRepository;
+import org.eclipse.rdf4j.rio.RDFFormat;
+import org.eclipse.rdf4j.rio.RDFHandler;
+import org.eclipse.rdf4j.rio.RDFHandlerException;
+import org.eclipse.rdf4j.rio.RDFParser;
+import org.eclipse.rdf4j.rio.Rio;
+import org.eclipse.rdf4j.rio.helpers.AbstractRDFHandler;
+import org.eclipse.rdf4j.sail.Sail;
+import org.eclipse.rdf4j.sail.SailConnection;
+import org.eclipse.rdf4j.sail.nativerdf.NativeStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * An evaluator of SPARQL queries against the contents of an RDF file.
+ * Queries are evaluated in one of three ways:
+ * <ul>
+ * <li>streaming: the file is parsed once, and the query is evaluated against a small window of statements at a time.
+ * This is possible for queries whose WHERE clause is a single statement pattern, with any number of filters and
+ * BINDs, or a star of statement patterns around a common subject, provided that all statements about any
+ * one subject are adjacent in the input (as in a file sorted by subject).
+ * Like a store, a window holds distinct statements only, but duplicate statements in different windows
+ * will produce duplicate solutions</li>
+ * <li>memory: the file is loaded into a MemoryStore</li>
+ * <li>native: the file is loaded into a NativeStore in a temporary directory, which is deleted afterwards</li>
+ * </ul>
+ * By default, a query is streamed if its shape permits it, and otherwise loaded into memory or onto disk,
+ * depending on the size of the file relative to the available heap.
+ * To evaluate many queries against the same file, {@link #loadInput()} loads it only once.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class FileQueryEvaluator {
+    private final static Logger logger = LoggerFactory.getLogger(FileQueryEvaluator.class);
+
+    public enum Strategy {AUTO, STREAMING, MEMORY, NATIVE}
+
+    // the number of statements per window, for queries over a single statement pattern
+    private static final int WINDOW_SIZE = 1000;
+
+    // a rough ratio of MemoryStore heap usage to the size of the serialized input
+    private static final long MEMORY_STORE_EXPANSION = 10;
+
+    // a rough compression ratio, for estimating the size of compressed input
+    private static final long COMPRESSION_RATIO = 5;
+
+    private final File inputFile;
+    private final RDFFormat format;
+    private final String baseURI;
+
+    private Strategy strategy = Strategy.AUTO;
+    private boolean groupedBySubject = false;
+    private long maxMemoryInput = Runtime.getRuntime().maxMemory() / MEMORY_STORE_EXPANSION;
+
+    public FileQueryEvaluator(final File inputFile,
+                              final RDFFormat format,
+                              final String baseURI) {
+        this.inputFile = inputFile;
+        this.format = format;
+        this.baseURI = baseURI;
+    }
+
+    /**
+     * @param strategy how to evaluate queries. The default is AUTO.
+     */
+    public void setStrategy(final Strategy strategy) {
+        this.strategy = strategy;
+    }
+
+    /**
+     * @param groupedBySubject whether all statements about any one subject are adjacent in the input file.
+     *                         Star-shaped queries can only be streamed if this is the case.
+     */
+    public void setGroupedBySubject(final boolean groupedBySubject) {
+        this.groupedBySubject = groupedBySubject;
+    }
+
+    /**
+     * @param maxMemoryInput the size, in bytes, of the largest input file which will automatically be loaded
+     *                       into memory rather than onto disk
+     */
+    public void setMaxMemoryInput(final long maxMemoryInput) {
+        this.maxMemoryInput = maxMemoryInput;
+    }
+
+    public void evaluateGraphQuery(final String query,
+                                   final RDFHandler handler) throws Exception {
+        ParsedQuery parsed = StoreCache.getParsedQuery(query, baseURI);
+        if (!(parsed instanceof ParsedGraphQuery)) {
+            throw new IllegalArgumentException("not a CONSTRUCT or DESCRIBE query");
+        }
+
+        Strategy chosen = chooseStrategy(parsed);
+        ValueFactory vf = SimpleValueFactory.getInstance();
+        handler.startRDF();
+        for (Map.Entry<String, String> e : ((ParsedGraphQuery) parsed).getQueryNamespaces().entrySet()) {
+            handler.handleNamespace(e.getKey(), e.getValue());
+        }
+        evaluate(parsed, chosen, solution -> {
+            Statement st = toStatement(solution, vf);
+            if (null != st) {
+                handler.handleStatement(st);
+            }
+        });
+        handler.endRDF();
+    }
+
+    public void evaluateTupleQuery(final String query,
+                                   final TupleQueryResultHandler handler) throws Exception {
+        ParsedQuery parsed = StoreCache.getParsedQuery(query, baseURI);
+        if (!(parsed instanceof ParsedTupleQuery)) {
+            throw new IllegalArgumentException("not a SELECT query");
+        }
+
+        Strategy chosen = chooseStrategy(parsed);
+        handler.startQueryResult(new ArrayList<>(parsed.getTupleExpr().getBindingNames()));
+        evaluate(parsed, chosen, handler::handleSolution);
+        handler.endQueryResult();
+    }
+
+    /**
+     * Loads the input into a store once, for the evaluation of any number of queries.
+     * The store is chosen as for any query which cannot be streamed, according to the size of the input.
+     *
+     * @return the loaded input, which must be closed when it is no longer needed
+     */
+    public LoadedInput loadInput() throws Exception {
+        Strategy chosen;
+        switch (strategy) {
+            case AUTO:
+                chosen = estimateInputSize() <= maxMemoryInput ? Strategy.MEMORY : Strategy.NATIVE;
+                logger.info("loading input with strategy " + chosen);
+                break;
+            case STREAMING:
+                throw new IllegalArgumentException("input must be loaded into a store in order to be shared by queries");
+            default:
+                chosen = strategy;
+        }
+
+        return loadInput(chosen);
+    }
+
+    private void evaluate(final ParsedQuery query,
+                          final Strategy chosen,
+                          final Consumer<BindingSet> solutions) throws Exception {
+        if (Strategy.STREAMING == chosen) {
+            stream(query, solutions);
+        } else {
+            try (LoadedInput input = loadInput(chosen)) {
+                input.evaluate(query, solutions);
+            }
+        }
+    }
+
+    private Strategy chooseStrategy(final ParsedQuery query) {
+        Shape shape = getShape(query);
+
+        switch (strategy) {
+            case AUTO:
+                Strategy chosen = Shape.PATTERN == shape || (Shape.STAR == shape && groupedBySubject)
+                        ? Strategy.STREAMING
+                        : estimateInputSize() <= maxMemoryInput ? Strategy.MEMORY : Strategy.NATIVE;
+                logger.info("evaluating query with strategy " + chosen);
+                return chosen;
+            case STREAMING:
+                if (Shape.OTHER == shape) {
+                    throw new IllegalArgumentException("query cannot be streamed;"
+                            + " only a single statement pattern, or a star of patterns around one subject, can be");
+                }
+                return strategy;
+            default:
+                return strategy;
+        }
+    }
+
+    private long estimateInputSize() {
+        return Compression.NONE == Compression.forFileName(inputFile.getName())
+                ? inputFile.length()
+                : inputFile.length() * COMPRESSION_RATIO;
+    }
+
+    private LoadedInput loadInput(final Strategy chosen) throws Exception {
+        if (Strategy.MEMORY == chosen) {
+            // the store is kept for later queries, if sesamize is running as a server
+            Sail sail = StoreCache.getMemoryStore(inputFile, format, baseURI, this::load);
+            return new LoadedInput(sail, null);
+        }
+
+        File dir = Files.createTempDirectory("sesamize").toFile();
+        Sail sail = new NativeStore(dir);
+        sail.initialize();
+
+        try {
+            load(sail);
+        } catch (Exception e) {
+            sail.shutDown();
+            FileUtils.deleteDirectory(dir);
+            throw e;
+        }
+        return new LoadedInput(sail, dir);
+    }
+
+    private void load(final Sail sail) throws IOException {
+        try (RepositoryConnection rc = new SailRepository(sail).getConnection();
+             InputStream in = Compression.openInput(inputFile)) {
+            // nothing else can see the store while it is being loaded
+            rc.begin(IsolationLevels.NONE);
+            rc.add(in, baseURI, format);
+            rc.commit();
+        }
+    }
+
+    // Parses the input once, evaluating the query against each window of statements in turn
+    private void stream(final ParsedQuery query,
+                        final Consumer<BindingSet> solutions) throws Exception {
+        TupleExpr expr = query.getTupleExpr();
+        boolean perSubject = Shape.STAR == getShape(query);
+
+        Model window = new LinkedHashModel();
+        EvaluationStrategy evaluationStrategy = new StrictEvaluationStrategy(new ModelTripleSource(window), null);
+
+        RDFParser parser = Rio.createParser(format);
+        parser.setRDFHandler(new AbstractRDFHandler() {
+            private Resource currentSubject = null;
+
+            @Override
+            public void handleStatement(final Statement st) throws RDFHandlerException {
+                if (perSubject ? !st.getSubject().equals(currentSubject) : window.size() >= WINDOW_SIZE) {
+                    evaluateWindow();
+                    currentSubject = st.getSubject();
+                }
+                window.add(st);
+            }
+
+            @Override
+            public void endRDF() throws RDFHandlerException {
+                evaluateWindow();
+            }
+
+            private void evaluateWindow() {
+                if (window.isEmpty()) {
+                    return;
+                }
+
+                try (CloseableIteration<BindingSet, QueryEvaluationException> iter
+                             = evaluationStrategy.evaluate(expr, EmptyBindingSet.getInstance())) {
+                    while (iter.hasNext()) {
+                        solutions.accept(iter.next());
+                    }
+                }
+                window.clear();
+            }
+        });
+
+        try (InputStream in = Compression.openInput(inputFile)) {
+            parser.parse(in, baseURI);
+        }
+    }
+
+    // Converts a solution of a CONSTRUCT query into a statement, as a store would
+    private static Statement toStatement(final BindingSet solution,
+                                         final ValueFactory vf) {
+        Value subject = solution.getValue("subject");
+        Value predicate = solution.getValue("predicate");
+        Value object = solution.getValue("object");
+        Value context = solution.getValue("context");
+
+        if (!(subject instanceof Resource) || !(predicate instanceof IRI) || null == object
+                || (null != context && !(context instanceof Resource))) {
+            return null;
+        }
+
+        return null == context
+                ? vf.createStatement((Resource) subject, (IRI) predicate, object)
+                : vf.createStatement((Resource) subject, (IRI) predicate, object, (Resource) context);
+    }
+
+    enum Shape {PATTERN, STAR, OTHER}
+
+    static Shape getShape(final ParsedQuery query) {
+        if (null != query.getDataset()) {
+            return Shape.OTHER;
+        }
+
+        ShapeVisitor visitor = new ShapeVisitor();
+        query.getTupleExpr().visit(visitor);
+        if (!visitor.streamable || visitor.patterns.isEmpty()) {
+            return Shape.OTHER;
+        }
+        if (1 == visitor.patterns.size()) {
+            return Shape.PATTERN;
+        }
+
+        Set<String> subjects = new HashSet<>();
+        for (StatementPattern p : visitor.patterns) {
+            subjects.add(p.getSubjectVar().getName());
+        }
+        return 1 == subjects.size() ? Shape.STAR : Shape.OTHER;
+    }
+
+    // Note: operators such as DISTINCT, ORDER BY, LIMIT and GROUP BY need to see all solutions at once,
+    // so any operator not listed here makes a query unstreamable
+    private static class ShapeVisitor extends AbstractQueryModelVisitor<RuntimeException> {
+        private final List<StatementPattern> patterns = new LinkedList<>();
+        private boolean streamable = true;
+
+        @Override
+        protected void meetNode(final QueryModelNode node) throws RuntimeException {
+            if (node instanceof SubQueryValueOperator) {
+                streamable = false;
+            } else if (node instanceof TupleExpr
+                    && !(node instanceof QueryRoot
+                    || node instanceof Projection
+                    || node instanceof MultiProjection
+                    || node instanceof Reduced
+                    || node instanceof Extension
+                    || node instanceof Filter
+                    || node instanceof Join)) {
+                streamable = false;
+            }
+
+            super.meetNode(node);
+        }
+
+        @Override
+        public void meet(final StatementPattern node) throws RuntimeException {
+            patterns.add(node);
+        }
+    }
+
+    private static class ModelTripleSource implements TripleSource {
+        private final Model model;
+
+        private ModelTripleSource(final Model model) {
+            this.model = model;
+        }
+
+        @Override
+        public CloseableIteration<? extends Statement, QueryEvaluationException> getStatements(
+                final Resource subj, final IRI pred, final Value obj, final Resource... contexts)
+                throws QueryEvaluationException {
+            return new CloseableIteratorIteration<>(model.filter(subj, pred, obj, contexts).iterator());
+        }
+
+        @Override
+        public ValueFactory getValueFactory() {
+            return SimpleValueFactory.getInstance();
+        }
+    }
+
+    /**
+     * The input of a {@link FileQueryEvaluator}, loaded into a store.
+     * Queries may be evaluated concurrently, each using its own connection to the store.
+     */
+    public class LoadedInput implements AutoCloseable {
+        private final Sail sail;
+        private final File tempDirectory;
+
+        private LoadedInput(final Sail sail,
+                            final File tempDirectory) {
+            this.sail = sail;
+            this.tempDirectory = tempDirectory;
+        }
+
+        /**
+         * @param query   a SPARQL SELECT query
+         * @param handler a handler for the results of the query
+         */
+        public void evaluateTupleQuery(final String query,
+                                       final TupleQueryResultHandler handler) throws Exception {
+            ParsedQuery parsed = StoreCache.getParsedQuery(query, baseURI);
+            if (!(parsed instanceof ParsedTupleQuery)) {
+                throw new IllegalArgumentException("not a SELECT query");
+            }
+
+            handler.startQueryResult(new ArrayList<>(parsed.getTupleExpr().getBindingNames()));
+            evaluate(parsed, handler::handleSolution);
+            handler.endQueryResult();
+        }
+
+        private void evaluate(final ParsedQuery query,
+                              final Consumer<BindingSet> solutions) throws Exception {
+            try (SailConnection sc = sail.getConnection()) {
+                // Note: the store evaluates a copy of the query, leaving the parsed query unchanged
+                try (CloseableIteration<? extends BindingSet, QueryEvaluationException> iter = sc.evaluate(
+                        query.getTupleExpr(), query.getDataset(), EmptyBindingSet.getInstance(), false)) {
+                    while (iter.hasNext()) {
+                        solutions.accept(iter.next());
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            // a cached MemoryStore stays open; a temporary NativeStore is removed
+            if (null != tempDirectory || !StoreCache.isEnabled()) {
+                sail.shutDown();
+            }
+            if (null != tempDirectory) {
+                FileUtils.deleteDirectory(tempDirectory);
+            }
+        }
+    }
+}
@@ -6,6 +6,7 @@ import net.fortytwo.sesametools.sesamize.commands.Dump;
 import net.fortytwo.sesametools.sesamize.commands.Import;
 import net.fortytwo.sesametools.sesamize.commands.Random;
 import net.fortytwo.sesametools.sesamize.commands.Select;
+import net.fortytwo.sesametools.sesamize.commands.Serve;
 import net.fortytwo.sesametools.sesamize.commands.Translate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,6 +45,8 @@ public class Sesamize {
         StringBuilder sb = new StringBuilder();
         printSubcommands(sb);
         System.err.print(sb);
+        System.err.println("If the " + SesamizeClient.SERVER_VARIABLE + " environment variable is set,"
+                + " commands are sent to a running 'sesamize serve'.");
         System.err.println("E.g.");
         System.err.println("  sesamize translate -i trig -o nq mydata.trig > mydata.nq");
         System.err.println("For more information, please see:\n"
@@ -84,8 +87,16 @@ public class Sesamize {
         if (null == c) {
             printUsageAndExit(1, "no such command: " + args[0]);
         } else {
+            String server = System.getenv(SesamizeClient.SERVER_VARIABLE);
             try {
-                c.execute(a);
+                if (null != server && !(c instanceof Serve)) {
+                    int exitCode = new SesamizeClient(server).run(c, args, System.out, System.err);
+                    if (0 != exitCode) {
+                        System.exit(exitCode);
+                    }
+                } else {
+                    c.execute(a);
+                }
             } catch (Exception e) {
                 logger.error("Exited with error", e);
                 System.err.println(e.getMessage());
@@ -96,11 +107,20 @@ public class Sesamize {
 
     private static void constructSubcommands() {
         for (Command command : new Command[]{
-                new Construct(), new Dump(), new Import(), new Random(), new Select(), new Translate()}) {
+                new Construct(), new Dump(), new Import(), new Random(), new Select(), new Serve(),
+                new Translate()}) {
             subcommands.put(command.getName(), command);
         }
     }
 
+    /**
+     * @param name the name of a subcommand
+     * @return the subcommand, or null if there is no such subcommand
+     */
+    public static Command getSubcommand(final String name) {
+        return subcommands.get(name);
+    }
+
     private static void printSubcommands(final StringBuilder out) {
         List<String> commandNames = new LinkedList<>();
         commandNames.addAll(subcommands.keySet());
@@ -1,10 +1,16 @@
 package net.fortytwo.sesametools.sesamize;
 
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
 import org.eclipse.rdf4j.rio.RDFFormat;
 import org.eclipse.rdf4j.rio.RDFParserRegistry;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -12,6 +18,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * @author Joshua Shinavier (http://fortytwo.net).
@@ -21,9 +29,27 @@ public class SesamizeArgs {
     public final Map<String, String> pairs;
     public final List<String> nonOptions;
 
+    private OutputStream output = System.out;
+
     private static final Map<String, RDFFormat> formatsByFileExtension;
     private static final Map<String, RDFFormat> formatsByName;
 
+    // extensions which are shared by several formats, or which say nothing about the format
+    private static final Set<String> AMBIGUOUS_EXTENSIONS
+            = new HashSet<>(Arrays.asList("", "xml", "txt", "json", "dat"));
+
+    private static final int SNIFF_LENGTH = 4096;
+    private static final String BINARY_RDF_MAGIC = "BRDF";
+
+    private static final String TERM = "(?:<[^>]*>|_:\\S+|\"(?:[^\"\\\\]|\\\\.)*\"(?:@[A-Za-z0-9-]+|\\^\\^<[^>]*>)?)";
+    private static final Pattern STATEMENT_LINE = Pattern.compile(
+            "(" + TERM + ")\\s*(" + TERM + ")\\s*(" + TERM + ")\\s*(" + TERM + ")?\\s*\\.(?:\\s*#.*)?");
+    private static final Pattern XML_TAG = Pattern.compile("<[A-Za-z_][\\w.-]*(?::[\\w.-]+)?[\\s>/]");
+    private static final Pattern TURTLE_START
+            = Pattern.compile("(?i)(?:@prefix|@base|prefix\\s|base\\s|graph\\s|[<_\\[(:{\\w])");
+    private static final Pattern GRAPH_BLOCK = Pattern.compile("(?:^|>|\\w|\\])\\s*\\{");
+    private static final Pattern JSON_START = Pattern.compile("\\{\\s*(?:\"|})");
+
     static {
         formatsByFileExtension = new HashMap<>();
         formatsByName = new HashMap<>();
@@ -33,6 +59,7 @@ public class SesamizeArgs {
             }
             formatsByName.put(format.getName().toLowerCase(), format);
         }
+        formatsByName.put("binary", RDFFormat.BINARY);
     }
 
     public SesamizeArgs(final String[] args) {
@@ -64,6 +91,18 @@ public class SesamizeArgs {
         }
     }
 
+    /**
+     * @return the stream to which a command writes its results. This is standard output,
+     * unless the command is being run by a server on behalf of a client.
+     */
+    public OutputStream getOutput() {
+        return output;
+    }
+
+    public void setOutput(final OutputStream output) {
+        this.output = output;
+    }
+
     public String getOption(final String defaultValue,
                             final String... alternatives) {
         for (String s : alternatives) {
@@ -80,6 +119,25 @@ public class SesamizeArgs {
         return defaultValue;
     }
 
+    /**
+     * @return the value of a boolean option: true if the option is given without a value, or with the value "true",
+     * false if it is given with the value "false", and the default value if it is not given
+     */
+    public boolean getBooleanOption(final boolean defaultValue,
+                                    final String... alternatives) {
+        String s = getOption(null, alternatives);
+        if (null == s) {
+            return defaultValue;
+        } else if (s.equalsIgnoreCase("true")) {
+            return true;
+        } else if (s.equalsIgnoreCase("false")) {
+            return false;
+        } else {
+            throw new IllegalArgumentException("expected 'true' or 'false' for option "
+                    + alternatives[alternatives.length - 1] + ", found '" + s + "'");
+        }
+    }
+
     public SparqlResultFormat getSparqlResultFormat(final SparqlResultFormat defaultValue,
                                                     final String... alternatives) {
         String s = getOption(null, alternatives);
@@ -103,22 +161,75 @@ public class SesamizeArgs {
                                   final RDFFormat defaultValue,
                                   final String... alternatives) {
         String s = getOption(null, alternatives);
-        RDFFormat format;
 
         // If they specified an option, try to find it out of the non-standard
         // list of descriptors in Sesamize.rdfFormatByName
         if (null != s) {
-            format = findRDFFormat(s);
-        } else {
-            // otherwise try to find the format based on the file name extension,
-            // using the specified default value as a fallback
-            String ext = FilenameUtils.getExtension(file.getName());
-            return formatsByFileExtension.get(ext);
-            //Optional<RDFFormat> f = RDFFormat.matchFileName(file.getName(), );
-            //format = f.isPresent() ? f.get() : defaultValue;
+            return findRDFFormat(s);
+        }
+
+        // otherwise try to find the format based on the file name extension, ignoring any compression extension,
+        // then based on the content of the file, using the specified default value as a fallback
+        String ext = FilenameUtils.getExtension(Compression.stripExtension(file.getName())).toLowerCase();
+        RDFFormat format = AMBIGUOUS_EXTENSIONS.contains(ext) ? null : formatsByFileExtension.get(ext);
+        if (null == format && file.isFile()) {
+            try {
+                format = sniffRDFFormat(file);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("could not read " + file, e);
+            }
+        }
+
+        return null == format ? defaultValue : format;
+    }
+
+    // Guesses the format of a file from its first few kilobytes, or returns null if there is no good guess
+    static RDFFormat sniffRDFFormat(final File file) throws IOException {
+        byte[] bytes = new byte[SNIFF_LENGTH];
+        int n;
+        try (InputStream in = Compression.openInput(file)) {
+            n = IOUtils.read(in, bytes);
+        }
+
+        if (n >= BINARY_RDF_MAGIC.length() && BINARY_RDF_MAGIC.equals(
+                new String(bytes, 0, BINARY_RDF_MAGIC.length(), StandardCharsets.US_ASCII))) {
+            return RDFFormat.BINARY;
+        }
+
+        String head = new String(bytes, 0, n, StandardCharsets.UTF_8).replace("\uFEFF", "");
+        List<String> lines = new LinkedList<>();
+        for (String line : head.split("\\r?\\n")) {
+            String trimmed = line.trim();
+            if (!trimmed.isEmpty() && !trimmed.startsWith("#")) {
+                lines.add(trimmed);
+            }
+        }
+        if (lines.isEmpty()) {
+            return null;
+        }
+        String firstLine = lines.get(0);
+
+        if (STATEMENT_LINE.matcher(firstLine).matches()) {
+            // N-Quads may begin with triples in the default graph, so look for a quad in all complete lines
+            if (lines.size() > 1 && n == bytes.length) {
+                lines.remove(lines.size() - 1);
+            }
+            for (String line : lines) {
+                Matcher m = STATEMENT_LINE.matcher(line);
+                if (m.matches() && null != m.group(4)) {
+                    return RDFFormat.NQUADS;
+                }
+            }
+            return RDFFormat.NTRIPLES;
+        } else if (firstLine.startsWith("<?xml") || XML_TAG.matcher(firstLine).lookingAt()) {
+            return head.contains("<TriX") ? RDFFormat.TRIX : RDFFormat.RDFXML;
+        } else if (JSON_START.matcher(head.trim()).lookingAt()) {
+            return RDFFormat.RDFJSON;
+        } else if (TURTLE_START.matcher(firstLine).lookingAt()) {
+            return GRAPH_BLOCK.matcher(head).find() ? RDFFormat.TRIG : RDFFormat.TURTLE;
         }
 
-        return format;
+        return null;
     }
 
     private RDFFormat findRDFFormat(final String s) {
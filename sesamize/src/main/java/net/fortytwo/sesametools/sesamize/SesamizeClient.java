@@ -0,0 +1,156 @@
+package net.fortytwo.sesametools.sesamize;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * A thin client which passes a command to a {@link SesamizeServer} and copies the command's output
+ * to standard output.
+ * The server is used in place of running the command locally whenever the environment variable
+ * {@link #SERVER_VARIABLE} is set, to a port or to a host and port.
+ * The client authenticates itself with the token which the server has written to its token file,
+ * so only the user who started the server may send it commands.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class SesamizeClient {
+    public static final String SERVER_VARIABLE = "SESAMIZE_SERVER";
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final URL url;
+    private final String token;
+
+    /**
+     * @param server a port, or a host and port separated by a colon
+     */
+    public SesamizeClient(final String server) throws IOException {
+        this.url = new URL("http://" + (server.contains(":") ? server : "localhost:" + server)
+                + SesamizeServer.RUN_PATH);
+
+        File tokenFile = SesamizeServer.getTokenFile(url.getPort());
+        if (!tokenFile.exists()) {
+            throw new IOException("no token file for a server on port " + url.getPort() + " (" + tokenFile + ")");
+        }
+        this.token = new String(Files.readAllBytes(tokenFile.toPath()), StandardCharsets.US_ASCII).trim();
+    }
+
+    /**
+     * @param command the command to run
+     * @param args    the command-line arguments, beginning with the name of the command
+     * @param out     a stream to which to copy the output of the command
+     * @param err     a stream to which to write any error message
+     * @return the exit code of the command
+     */
+    public int run(final Command command,
+                   final String[] args,
+                   final OutputStream out,
+                   final PrintStream err) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", SesamizeServer.CONTENT_TYPE);
+        conn.setRequestProperty(SesamizeServer.TOKEN_HEADER, token);
+
+        String[] resolved = resolveFiles(command, args);
+        try (DataOutputStream body = new DataOutputStream(conn.getOutputStream())) {
+            body.writeInt(resolved.length);
+            for (String arg : resolved) {
+                body.writeUTF(arg);
+            }
+        }
+
+        if (200 != conn.getResponseCode()) {
+            throw new IOException("server responded with " + conn.getResponseCode() + " " + conn.getResponseMessage());
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(conn.getInputStream(), BUFFER_SIZE))) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    throw new IOException("connection to server lost before the end of the output");
+                }
+
+                if (SesamizeServer.END_OF_OUTPUT == length) {
+                    out.flush();
+                    return 0;
+                } else if (SesamizeServer.ERROR == length) {
+                    out.flush();
+                    err.println(in.readUTF());
+                    return 1;
+                }
+
+                if (length > buffer.length) {
+                    buffer = new byte[length];
+                }
+                in.readFully(buffer, 0, length);
+                out.write(buffer, 0, length);
+            }
+        }
+    }
+
+    // The server does not share the working directory of the client, so relative paths are made absolute.
+    // These are the values of any parameter declared as a file, and any positional argument naming an existing file.
+    private static String[] resolveFiles(final Command command, final String[] args) {
+        String[] resolved = args.clone();
+
+        boolean inOption = false;
+        int position = 0;
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            if (a.startsWith("-")) {
+                inOption = true;
+            } else if (inOption) {
+                Command.Parameter param = findNamedParameter(command, args[i - 1].replaceFirst("^--?", ""));
+                if (null != param && File.class.equals(param.getValueClass())) {
+                    resolved[i] = resolveFileList(a);
+                }
+                inOption = false;
+            } else {
+                // position 0 is the name of the command itself
+                boolean declaredAsFile = position > 0 && position <= command.getAnonymousParameters().size()
+                        && File.class.equals(command.getAnonymousParameters().get(position - 1).getValueClass());
+                if (position > 0 && (declaredAsFile || new File(a).exists())) {
+                    resolved[i] = new File(a).getAbsolutePath();
+                }
+                position++;
+            }
+        }
+
+        return resolved;
+    }
+
+    // some file options, such as the query of the select command, accept a comma-separated list of files
+    private static String resolveFileList(final String files) {
+        StringBuilder sb = new StringBuilder();
+        for (String file : files.split(",")) {
+            if (sb.length() > 0) {
+                sb.append(",");
+            }
+            sb.append(new File(file.trim()).getAbsolutePath());
+        }
+        return sb.toString();
+    }
+
+    private static Command.Parameter findNamedParameter(final Command command, final String name) {
+        for (Command.Parameter param : command.getNamedParameters().values()) {
+            if (name.equals(param.getName()) || name.equals(param.getShortName())) {
+                return param;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,279 @@
+package net.fortytwo.sesametools.sesamize;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import net.fortytwo.sesametools.sesamize.commands.Serve;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A server which runs sesamize commands on behalf of clients, keeping stores and parsed queries open
+ * between commands (see {@link StoreCache}), so that the cost of starting a JVM and opening a store
+ * is paid once rather than once per command.
+ * <p>
+ * The server accepts HTTP requests on the loopback interface only, and only from clients which present
+ * the random token which the server writes, readable by its owner only, to {@link #getTokenFile(int)} at startup.
+ * Requests with an Origin header, i.e. requests made by web pages, are refused.
+ * A command is POSTed to {@link #RUN_PATH} as a body of type {@link #CONTENT_TYPE}: an int count of
+ * command-line arguments, followed by each argument in modified UTF-8 (as written by DataOutputStream.writeUTF).
+ * The body of the response is the output of the command, in frames: an int length followed by that many bytes.
+ * A frame of length {@link #END_OF_OUTPUT} ends the output of a successful command,
+ * and a frame of length {@link #ERROR}, followed by a UTF-encoded message, ends the output of a failed one.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class SesamizeServer {
+    private final static Logger logger = LoggerFactory.getLogger(SesamizeServer.class);
+
+    public static final String RUN_PATH = "/run";
+    public static final String CONTENT_TYPE = "application/x-sesamize-args";
+    public static final String TOKEN_HEADER = "X-Sesamize-Token";
+
+    public static final int END_OF_OUTPUT = 0;
+    public static final int ERROR = -1;
+
+    private static final int FRAME_SIZE = 1 << 16;
+    private static final int STOP_DELAY_SECONDS = 1;
+    private static final int TOKEN_BYTES = 32;
+    private static final int MAX_ARGS = 1 << 12;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private final File tokenFile;
+    private final byte[] token;
+
+    /**
+     * @param port    a local port on which to listen
+     * @param threads the number of commands which may run at the same time
+     */
+    public SesamizeServer(final int port, final int threads) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.createContext(RUN_PATH, this::handleRun);
+
+        tokenFile = getTokenFile(server.getAddress().getPort());
+        token = createToken();
+    }
+
+    /**
+     * @param port the port of a server
+     * @return the file in which the server keeps the token which clients must present
+     */
+    public static File getTokenFile(final int port) {
+        return new File(new File(System.getProperty("user.home"), ".sesamize"), "server-" + port + ".token");
+    }
+
+    public void start() throws IOException {
+        writeToken();
+        StoreCache.setEnabled(true);
+        server.start();
+        logger.info("listening on " + server.getAddress());
+    }
+
+    /**
+     * Stops accepting commands, and shuts down all open stores
+     */
+    public void stop() {
+        server.stop(STOP_DELAY_SECONDS);
+        executor.shutdownNow();
+        StoreCache.clear();
+        StoreCache.setEnabled(false);
+        if (tokenFile.exists() && !tokenFile.delete()) {
+            logger.warn("could not delete token file " + tokenFile);
+        }
+        stopped.countDown();
+    }
+
+    public void awaitStop() throws InterruptedException {
+        stopped.await();
+    }
+
+    private void handleRun(final HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            // a browser adds an Origin header to any cross-site request, which a command-line client never does
+            if (exchange.getRequestHeaders().containsKey("Origin") || !hasToken(exchange)) {
+                logger.warn("refused request from " + exchange.getRemoteAddress());
+                exchange.sendResponseHeaders(403, -1);
+                return;
+            }
+            if (!CONTENT_TYPE.equals(exchange.getRequestHeaders().getFirst("Content-Type"))) {
+                exchange.sendResponseHeaders(415, -1);
+                return;
+            }
+
+            String[] args;
+            try {
+                args = readArgs(exchange);
+            } catch (IOException e) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.sendResponseHeaders(200, 0);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(exchange.getResponseBody()));
+            FramedOutputStream framed = new FramedOutputStream(out);
+
+            try {
+                Command command = 0 == args.length ? null : Sesamize.getSubcommand(args[0]);
+                if (null == command || command instanceof Serve) {
+                    throw new IllegalArgumentException("no such command: " + (0 == args.length ? "" : args[0]));
+                }
+
+                logger.info("running " + String.join(" ", args));
+                SesamizeArgs a = new SesamizeArgs(args);
+                a.setOutput(framed);
+                command.execute(a);
+
+                framed.flush();
+                out.writeInt(END_OF_OUTPUT);
+            } catch (Exception e) {
+                logger.error("command failed", e);
+                framed.flush();
+                out.writeInt(ERROR);
+                out.writeUTF(null == e.getMessage() ? e.toString() : e.getMessage());
+            }
+            out.flush();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private boolean hasToken(final HttpExchange exchange) {
+        String presented = exchange.getRequestHeaders().getFirst(TOKEN_HEADER);
+        // compared in constant time, so as not to leak the token a byte at a time
+        return null != presented
+                && MessageDigest.isEqual(token, presented.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static String[] readArgs(final HttpExchange exchange) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(exchange.getRequestBody()));
+        int count = in.readInt();
+        if (count < 0 || count > MAX_ARGS) {
+            throw new IOException("bad argument count: " + count);
+        }
+
+        String[] args = new String[count];
+        for (int i = 0; i < count; i++) {
+            args[i] = in.readUTF();
+        }
+        return args;
+    }
+
+    private static byte[] createToken() {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Writes the token to a file which only the owner of the server can read.
+    // Any stale file is replaced by a new one, which is created with restricted permissions from the start.
+    private void writeToken() throws IOException {
+        Path dir = tokenFile.getParentFile().toPath();
+        Path path = tokenFile.toPath();
+        boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+
+        if (posix) {
+            if (!Files.isDirectory(dir)) {
+                Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(
+                        PosixFilePermissions.fromString("rwx------")));
+            }
+            Files.deleteIfExists(path);
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else {
+            Files.createDirectories(dir);
+            Files.deleteIfExists(path);
+            Files.createFile(path);
+            File file = path.toFile();
+            if (!(file.setReadable(false, false) && file.setReadable(true, true)
+                    && file.setWritable(false, false) && file.setWritable(true, true))) {
+                throw new IOException("could not restrict permissions of token file " + tokenFile);
+            }
+        }
+
+        Files.write(path, token);
+    }
+
+    // Buffers the output of a command, writing it as a series of length-prefixed frames.
+    // Closing the stream only flushes it, as the end of the output is marked separately.
+    private static class FramedOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final byte[] buffer = new byte[FRAME_SIZE];
+        private int count = 0;
+
+        private FramedOutputStream(final DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (count == buffer.length) {
+                writeFrame();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            int written = 0;
+            while (written < len) {
+                if (count == buffer.length) {
+                    writeFrame();
+                }
+                int n = Math.min(len - written, buffer.length - count);
+                System.arraycopy(b, off + written, buffer, count, n);
+                count += n;
+                written += n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writeFrame();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+        private void writeFrame() throws IOException {
+            if (count > 0) {
+                out.writeInt(count);
+                out.write(buffer, 0, count);
+                count = 0;
+            }
+        }
+    }
+}
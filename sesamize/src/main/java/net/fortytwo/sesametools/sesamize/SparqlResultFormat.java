@@ -23,6 +23,13 @@ public enum SparqlResultFormat {
         return mediaType;
     }
 
+    /**
+     * @return the usual file extension of this format, e.g. "xml"
+     */
+    public String getFileExtension() {
+        return nicknames[0];
+    }
+
     public static SparqlResultFormat lookup(final String mediaType) {
         for (SparqlResultFormat f : SparqlResultFormat.values()) {
             if (f.mediaType.equals(mediaType)) {
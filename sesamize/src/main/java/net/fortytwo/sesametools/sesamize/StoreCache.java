@@ -0,0 +1,285 @@
+package net.fortytwo.sesametools.sesamize;
+
+import org.eclipse.rdf4j.query.QueryLanguage;
+import org.eclipse.rdf4j.query.parser.ParsedQuery;
+import org.eclipse.rdf4j.query.parser.QueryParserUtil;
+import org.eclipse.rdf4j.rio.RDFFormat;
+import org.eclipse.rdf4j.sail.Sail;
+import org.eclipse.rdf4j.sail.memory.MemoryStore;
+import org.eclipse.rdf4j.sail.nativerdf.NativeStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Stores and parsed queries which are kept open between commands, when sesamize is running as a server.
+ * When the cache is disabled, as it is for a single command, stores are opened for each use
+ * and shut down afterwards, and queries are parsed each time they are evaluated.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class StoreCache {
+    private final static Logger logger = LoggerFactory.getLogger(StoreCache.class);
+
+    private static final int MAX_PARSED_QUERIES = 1000;
+    private static final int MAX_MEMORY_STORES = 16;
+
+    private static boolean enabled = false;
+
+    private static final Map<File, NativeStore> nativeStores = new HashMap<>();
+    // the number of commands currently using each cached NativeStore.
+    // A store which is no longer cached is shut down when its last user releases it.
+    private static final Map<Sail, Integer> nativeStoreUsers = new IdentityHashMap<>();
+    // directories whose stores are being evicted, and which may not be acquired until eviction is complete
+    private static final Set<File> evicting = new HashSet<>();
+
+    // Note: a MemoryStore without a data directory holds no resources apart from memory,
+    // so an evicted store need not be shut down, and may still be in use by a running command
+    private static final Map<String, Sail> memoryStores
+            = new LinkedHashMap<String, Sail>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Sail> eldest) {
+            return size() > MAX_MEMORY_STORES;
+        }
+    };
+
+    // MemoryStores which are being loaded, so that concurrent requests for the same file load it only once
+    private static final Map<String, FutureTask<Sail>> loadingMemoryStores = new HashMap<>();
+
+    private static final Map<String, ParsedQuery> parsedQueries
+            = new LinkedHashMap<String, ParsedQuery>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, ParsedQuery> eldest) {
+            return size() > MAX_PARSED_QUERIES;
+        }
+    };
+
+    /**
+     * A procedure which fills a newly initialized store
+     */
+    public interface Loader {
+        void load(Sail sail) throws IOException;
+    }
+
+    public static synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    public static synchronized void setEnabled(final boolean enabled) {
+        StoreCache.enabled = enabled;
+    }
+
+    /**
+     * @param dir the data directory of a NativeStore
+     * @return an initialized store, which is to be passed to {@link #release} when no longer needed
+     */
+    public static synchronized Sail acquireNativeStore(final File dir) {
+        File key = dir.getAbsoluteFile();
+        while (evicting.contains(key)) {
+            waitForRelease(key);
+        }
+
+        NativeStore sail = enabled ? nativeStores.get(key) : null;
+        if (null == sail) {
+            sail = new NativeStore(dir);
+            sail.initialize();
+            if (enabled) {
+                nativeStores.put(key, sail);
+            }
+        }
+
+        if (enabled) {
+            Integer users = nativeStoreUsers.get(sail);
+            nativeStoreUsers.put(sail, null == users ? 1 : users + 1);
+        }
+
+        return sail;
+    }
+
+    /**
+     * Shuts down a store obtained from {@link #acquireNativeStore}, unless it is being kept open
+     */
+    public static synchronized void release(final Sail sail) {
+        Integer users = nativeStoreUsers.get(sail);
+        if (null != users && users > 1) {
+            nativeStoreUsers.put(sail, users - 1);
+            return;
+        }
+
+        nativeStoreUsers.remove(sail);
+        if (!nativeStores.containsValue(sail)) {
+            sail.shutDown();
+        }
+        StoreCache.class.notifyAll();
+    }
+
+    /**
+     * Shuts down any cached NativeStore for the given directory, e.g. so that it can be opened
+     * with different settings.
+     * If the store is in use, waits until it has been released by all commands using it.
+     */
+    public static synchronized void evictNativeStore(final File dir) {
+        File key = dir.getAbsoluteFile();
+        while (evicting.contains(key)) {
+            waitForRelease(key);
+        }
+
+        Sail sail = nativeStores.remove(key);
+        if (null == sail) {
+            return;
+        }
+
+        if (!nativeStoreUsers.containsKey(sail)) {
+            sail.shutDown();
+            return;
+        }
+
+        // the store is shut down by its last user
+        evicting.add(key);
+        try {
+            while (nativeStoreUsers.containsKey(sail)) {
+                waitForRelease(key);
+            }
+        } finally {
+            evicting.remove(key);
+            StoreCache.class.notifyAll();
+        }
+    }
+
+    /**
+     * @param file    an RDF file
+     * @param format  the format of the file
+     * @param baseURI the base URI of the file
+     * @param loader  a procedure which loads the file into a new store
+     * @return a MemoryStore containing the file. The store is reused for as long as the file is unchanged,
+     * and is loaded only once, even if requested by several commands at the same time.
+     */
+    public static Sail getMemoryStore(final File file,
+                                      final RDFFormat format,
+                                      final String baseURI,
+                                      final Loader loader) throws IOException {
+        String key = file.getAbsolutePath() + "\t" + file.length() + "\t" + file.lastModified()
+                + "\t" + format.getName() + "\t" + baseURI;
+
+        FutureTask<Sail> task;
+        boolean loading;
+        synchronized (StoreCache.class) {
+            Sail sail = enabled ? memoryStores.get(key) : null;
+            if (null != sail) {
+                return sail;
+            }
+
+            task = enabled ? loadingMemoryStores.get(key) : null;
+            loading = null == task;
+            if (loading) {
+                task = new FutureTask<>(() -> {
+                    Sail s = new MemoryStore();
+                    s.initialize();
+                    loader.load(s);
+                    return s;
+                });
+                if (enabled) {
+                    loadingMemoryStores.put(key, task);
+                }
+            }
+        }
+
+        if (loading) {
+            task.run();
+        }
+
+        try {
+            Sail sail = task.get();
+            if (loading) {
+                synchronized (StoreCache.class) {
+                    if (enabled) {
+                        memoryStores.put(key, sail);
+                    }
+                }
+            }
+            return sail;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for " + file + " to be loaded", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new IOException(cause);
+            }
+        } finally {
+            // removed only after a successfully loaded store has been cached, so that it is never loaded twice
+            if (loading) {
+                synchronized (StoreCache.class) {
+                    loadingMemoryStores.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param query   a SPARQL query
+     * @param baseURI the base URI of the query
+     * @return the parsed query. The same parsed query may be returned to concurrent callers,
+     * which must not modify it.
+     */
+    public static ParsedQuery getParsedQuery(final String query,
+                                             final String baseURI) {
+        String key = baseURI + "\t" + query;
+
+        synchronized (StoreCache.class) {
+            ParsedQuery parsed = parsedQueries.get(key);
+            if (null != parsed) {
+                return parsed;
+            }
+        }
+
+        ParsedQuery parsed = QueryParserUtil.parseQuery(QueryLanguage.SPARQL, query, baseURI);
+
+        synchronized (StoreCache.class) {
+            if (enabled) {
+                parsedQueries.put(key, parsed);
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Shuts down all cached stores and forgets all parsed queries
+     */
+    public static synchronized void clear() {
+        for (Map.Entry<File, NativeStore> e : nativeStores.entrySet()) {
+            // a store which is still in use is shut down when it is released
+            if (!nativeStoreUsers.containsKey(e.getValue())) {
+                logger.info("shutting down store at " + e.getKey());
+                e.getValue().shutDown();
+            }
+        }
+        nativeStores.clear();
+        memoryStores.clear();
+        parsedQueries.clear();
+    }
+
+    private static void waitForRelease(final File dir) {
+        try {
+            StoreCache.class.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for the store at " + dir
+                    + " to be released", e);
+        }
+    }
+}
@@ -3,25 +3,12 @@ package net.fortytwo.sesametools.sesamize.commands;
 import net.fortytwo.sesametools.sesamize.SesamizeArgs;
 import net.fortytwo.sesametools.sesamize.Command;
 import org.apache.commons.io.IOUtils;
-import org.eclipse.rdf4j.query.MalformedQueryException;
-import org.eclipse.rdf4j.query.QueryEvaluationException;
-import org.eclipse.rdf4j.query.QueryLanguage;
-import org.eclipse.rdf4j.repository.Repository;
-import org.eclipse.rdf4j.repository.RepositoryConnection;
-import org.eclipse.rdf4j.repository.RepositoryException;
-import org.eclipse.rdf4j.repository.sail.SailRepository;
 import org.eclipse.rdf4j.rio.RDFFormat;
-import org.eclipse.rdf4j.rio.RDFHandlerException;
-import org.eclipse.rdf4j.rio.RDFParseException;
 import org.eclipse.rdf4j.rio.RDFWriter;
 import org.eclipse.rdf4j.rio.Rio;
-import org.eclipse.rdf4j.sail.Sail;
-import org.eclipse.rdf4j.sail.SailException;
-import org.eclipse.rdf4j.sail.memory.MemoryStore;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
@@ -39,10 +26,19 @@ public class Construct extends Command {
         addParameter(new Parameter<>(
                 "outputFormat", "o", true, RDFFormat.class, RDFFormat.RDFXML,
                 "output RDF format (e.g. 'N-Triples')"));
+        addParameter(new Parameter<>(
+                "evaluation", "e", false, String.class, "auto",
+                "query evaluation strategy: 'auto', 'streaming', 'memory' or 'native'"));
+        addParameter(new Parameter<>(
+                "grouped", "g", false, Boolean.class, false,
+                "all statements about any one subject are adjacent in the input, e.g. sorted by subject"));
+        addParameter(new Parameter<>(
+                "compression", "c", false, String.class, "none",
+                "output compression: 'none', 'gzip', 'bzip2' or 'zstd'. Compressed input is detected automatically"));
     }
 
     @Override
-    public void execute(SesamizeArgs args) throws IOException {
+    public void execute(SesamizeArgs args) throws Exception {
         File inputFile = new File(args.nonOptions.get(1));
 
         RDFFormat inputFormat = args.getRDFFormat(inputFile, RDFFormat.RDFXML, "i", "inputFormat");
@@ -50,39 +46,13 @@ public class Construct extends Command {
 
         String qFile = args.getOption(null, "query");
 
-        try (InputStream fileInput = new FileInputStream(qFile)) {
+        try (InputStream fileInput = new FileInputStream(qFile);
+             OutputStream out = getCompressedOutput(args)) {
 
             String query = IOUtils.toString(fileInput, "UTF-8");
 
-            translateRDFDocumentUseingConstructQuery(
-                    query, inputFile, System.out, inputFormat, outputFormat, getBaseURI(args));
-        }
-    }
-
-    private static void translateRDFDocumentUseingConstructQuery(final String query,
-                                                                 final File inputFile,
-                                                                 final OutputStream out,
-                                                                 final RDFFormat inFormat,
-                                                                 final RDFFormat outFormat,
-                                                                 final String baseURI)
-            throws SailException, IOException, RDFHandlerException, RDFParseException, RepositoryException,
-            MalformedQueryException, QueryEvaluationException {
-
-        Sail sail = new MemoryStore();
-        sail.initialize();
-
-        try {
-            Repository repo = new SailRepository(sail);
-            try (RepositoryConnection rc = repo.getConnection()) {
-                rc.add(inputFile, baseURI, inFormat);
-                rc.commit();
-
-                RDFWriter w = Rio.createWriter(outFormat, out);
-
-                rc.prepareGraphQuery(QueryLanguage.SPARQL, query).evaluate(w);
-            }
-        } finally {
-            sail.shutDown();
+            RDFWriter w = Rio.createWriter(outputFormat, out);
+            getQueryEvaluator(args, inputFile, inputFormat).evaluateGraphQuery(query, w);
         }
     }
 }
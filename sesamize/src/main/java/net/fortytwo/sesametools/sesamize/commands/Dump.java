@@ -1,8 +1,12 @@
 package net.fortytwo.sesametools.sesamize.commands;
 
 import net.fortytwo.sesametools.sesamize.SesamizeArgs;
+import net.fortytwo.sesametools.sesamize.StoreCache;
 import net.fortytwo.sesametools.sesamize.Command;
+import net.fortytwo.sesametools.sesamize.Compression;
+import org.eclipse.rdf4j.common.iteration.CloseableIteration;
 import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Statement;
 import org.eclipse.rdf4j.repository.Repository;
 import org.eclipse.rdf4j.repository.RepositoryConnection;
 import org.eclipse.rdf4j.repository.RepositoryException;
@@ -10,21 +14,50 @@ import org.eclipse.rdf4j.repository.sail.SailRepository;
 import org.eclipse.rdf4j.rio.RDFFormat;
 import org.eclipse.rdf4j.rio.RDFHandler;
 import org.eclipse.rdf4j.rio.RDFHandlerException;
+import org.eclipse.rdf4j.rio.RDFWriter;
 import org.eclipse.rdf4j.rio.Rio;
+import org.eclipse.rdf4j.rio.ntriples.NTriplesUtil;
 import org.eclipse.rdf4j.sail.Sail;
+import org.eclipse.rdf4j.sail.SailConnection;
 import org.eclipse.rdf4j.sail.SailException;
-import org.eclipse.rdf4j.sail.nativerdf.NativeStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
 
 public class Dump extends Command {
     private final static Logger logger = LoggerFactory.getLogger(Dump.class);
 
+    private static final long DEFAULT_SHARD_SIZE = 10000000L;
+
+    // the number of statements serialized and compressed by a worker at a time
+    private static final int CHUNK_SIZE = 50000;
+
+    private static final String MANIFEST_FILE = "manifest.tsv";
+    private static final long REPORT_INTERVAL_SECONDS = 10;
+
     public Dump() {
         super("dump");
 
@@ -35,6 +68,14 @@ public class Dump extends Command {
         addParameter(new Parameter<>(
                 "outputFormat", "o", true, RDFFormat.class, RDFFormat.RDFXML,
                 "output RDF format (e.g. 'N-Triples')"));
+        addParameter(new Parameter<>(
+                "threads", "t", false, Integer.class, 1,
+                "number of threads. With more than one, the output location is a directory,"
+                        + " to which gzipped N-Quads shards and a manifest are written,"
+                        + " and any output format other than N-Quads is an error"));
+        addParameter(new Parameter<>(
+                "shardSize", "n", false, Long.class, DEFAULT_SHARD_SIZE,
+                "approximate number of statements per shard, in a parallel dump"));
     }
 
     @Override
@@ -43,8 +84,27 @@ public class Dump extends Command {
         File file = new File(args.nonOptions.get(2));
 
         RDFFormat outputFormat = args.getRDFFormat(RDFFormat.RDFXML, "o", "outputFormat");
+        int threads = Integer.valueOf(args.getOption("1", "t", "threads"));
+        long shardSize = Long.valueOf(args.getOption("" + DEFAULT_SHARD_SIZE, "n", "shardSize"));
 
-        dumpNativeStoreToRDFDocument(dir, file, outputFormat);
+        if (threads < 1 || shardSize < 1) {
+            throw new IllegalArgumentException("number of threads and shard size must be positive");
+        }
+
+        if (1 == threads) {
+            dumpNativeStoreToRDFDocument(dir, file, outputFormat);
+        } else {
+            // shards are always N-Quads, so a different format is not silently ignored
+            if (null != args.getOption(null, "o", "outputFormat") && !RDFFormat.NQUADS.equals(outputFormat)) {
+                throw new IllegalArgumentException("a parallel dump writes N-Quads shards, not "
+                        + outputFormat.getName() + "; use a single thread for other formats");
+            }
+            if (file.isFile()) {
+                throw new IllegalArgumentException("a parallel dump writes to a directory, but " + file
+                        + " is a file");
+            }
+            new ParallelDump(dir, file, threads, shardSize).dump();
+        }
     }
 
     private void dumpNativeStoreToRDFDocument(final File nativeStoreDirectory,
@@ -55,20 +115,264 @@ public class Dump extends Command {
 
         logger.info("dumping store at " + nativeStoreDirectory + " to file " + dumpFile);
 
-        Sail sail = new NativeStore(nativeStoreDirectory);
-        sail.initialize();
+        Sail sail = StoreCache.acquireNativeStore(nativeStoreDirectory);
 
         try {
             Repository repo = new SailRepository(sail);
 
             try (RepositoryConnection rc = repo.getConnection()) {
-                try (OutputStream out = new FileOutputStream(dumpFile)) {
+                // the output is compressed if the file name ends with e.g. ".gz"
+                try (OutputStream out = Compression.openOutput(dumpFile)) {
                     RDFHandler h = Rio.createWriter(format, out);
                     rc.export(h, contexts);
                 }
             }
         } finally {
-            sail.shutDown();
+            StoreCache.release(sail);
+        }
+    }
+
+    // Reads the store with one connection per partition, and serializes and compresses chunks of statements
+    // on a separate pool of workers. Each chunk becomes a gzip member of its own; a shard file is a concatenation
+    // of members, and is itself a valid gzip file.
+    private static class ParallelDump {
+        private final File storeDirectory;
+        private final File outputDirectory;
+        private final int threads;
+        private final long shardSize;
+
+        private final LongAdder statementsWritten = new LongAdder();
+        private final List<String> manifest = Collections.synchronizedList(new LinkedList<>());
+
+        private ParallelDump(final File storeDirectory,
+                             final File outputDirectory,
+                             final int threads,
+                             final long shardSize) {
+            this.storeDirectory = storeDirectory;
+            this.outputDirectory = outputDirectory;
+            this.threads = threads;
+            this.shardSize = shardSize;
+        }
+
+        private void dump() throws Exception {
+            if (!outputDirectory.exists() && !outputDirectory.mkdirs()) {
+                throw new IOException("could not create directory " + outputDirectory);
+            }
+
+            logger.info("dumping store at " + storeDirectory + " to directory " + outputDirectory
+                    + " with " + threads + " threads");
+            long startTime = System.currentTimeMillis();
+
+            Sail sail = StoreCache.acquireNativeStore(storeDirectory);
+
+            ExecutorService readers = Executors.newFixedThreadPool(threads);
+            ExecutorService compressors = Executors.newFixedThreadPool(threads);
+            ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+            try {
+                reporter.scheduleAtFixedRate(() -> reportThroughput(startTime),
+                        REPORT_INTERVAL_SECONDS, REPORT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+                List<Future<?>> futures = new LinkedList<>();
+                int partition = 0;
+                for (Resource[] contexts : getPartitions(sail)) {
+                    final int p = partition++;
+                    futures.add(readers.submit(() -> {
+                        dumpPartition(sail, p, contexts, compressors);
+                        return null;
+                    }));
+                }
+
+                for (Future<?> f : futures) {
+                    awaitResult(f);
+                }
+            } finally {
+                reporter.shutdownNow();
+                readers.shutdownNow();
+                compressors.shutdownNow();
+                StoreCache.release(sail);
+            }
+
+            writeManifest();
+            reportThroughput(startTime);
+        }
+
+        // Partitions by context only if some index leads with the context; otherwise, reading a single context
+        // would mean scanning the entire store, so the store is read in a single pass.
+        // Named contexts are dealt round-robin into about as many partitions as there are threads,
+        // so that a store with many small contexts does not produce a partition, and shard files, per context.
+        // The default graph cannot be divided by context, and is a partition of its own.
+        private List<Resource[]> getPartitions(final Sail sail) throws IOException {
+            List<Resource[]> partitions = new LinkedList<>();
+
+            if (hasContextIndex()) {
+                partitions.add(new Resource[]{null});
+
+                List<List<Resource>> buckets = new ArrayList<>(threads);
+                try (SailConnection sc = sail.getConnection()) {
+                    try (CloseableIteration<? extends Resource, SailException> iter = sc.getContextIDs()) {
+                        int i = 0;
+                        while (iter.hasNext()) {
+                            if (buckets.size() < threads) {
+                                buckets.add(new LinkedList<>());
+                            }
+                            buckets.get(i++ % threads).add(iter.next());
+                        }
+                    }
+                }
+
+                for (List<Resource> bucket : buckets) {
+                    partitions.add(bucket.toArray(new Resource[bucket.size()]));
+                }
+            } else {
+                logger.warn("store has no context index, so it is read by a single thread;"
+                        + " only serialization and compression use the " + threads + " threads");
+                partitions.add(new Resource[]{});
+            }
+
+            return partitions;
+        }
+
+        private boolean hasContextIndex() throws IOException {
+            File propFile = new File(storeDirectory, "triples.prop");
+            if (!propFile.exists()) {
+                return false;
+            }
+
+            Properties props = new Properties();
+            try (InputStream in = new FileInputStream(propFile)) {
+                props.load(in);
+            }
+
+            String indexes = props.getProperty("triple-indexes", "");
+            for (String index : indexes.split(",")) {
+                if (index.trim().startsWith("c")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void dumpPartition(final Sail sail,
+                                   final int partition,
+                                   final Resource[] contexts,
+                                   final ExecutorService compressors) throws Exception {
+            String contextLabel = 0 == contexts.length ? "*"
+                    : contexts.length > 1 ? contexts.length + " contexts"
+                    : null == contexts[0] ? "default" : NTriplesUtil.toNTriplesString(contexts[0]);
+
+            Deque<Future<CompressedChunk>> inFlight = new LinkedList<>();
+            ShardWriter writer = new ShardWriter(partition, contextLabel);
+            try (SailConnection sc = sail.getConnection()) {
+                try (CloseableIteration<? extends Statement, SailException> iter
+                             = sc.getStatements(null, null, null, false, contexts)) {
+                    while (iter.hasNext()) {
+                        List<Statement> chunk = new ArrayList<>(CHUNK_SIZE);
+                        while (chunk.size() < CHUNK_SIZE && iter.hasNext()) {
+                            chunk.add(iter.next());
+                        }
+
+                        if (inFlight.size() >= 2 * threads) {
+                            writer.write(awaitResult(inFlight.removeFirst()));
+                        }
+                        inFlight.addLast(compressors.submit(() -> compress(chunk)));
+                    }
+                }
+
+                while (!inFlight.isEmpty()) {
+                    writer.write(awaitResult(inFlight.removeFirst()));
+                }
+            } finally {
+                writer.close();
+            }
+        }
+
+        private CompressedChunk compress(final List<Statement> chunk) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (OutputStream out = new GZIPOutputStream(bytes)) {
+                RDFWriter w = Rio.createWriter(RDFFormat.NQUADS, out);
+                w.startRDF();
+                for (Statement st : chunk) {
+                    w.handleStatement(st);
+                }
+                w.endRDF();
+            }
+            return new CompressedChunk(bytes.toByteArray(), chunk.size());
+        }
+
+        private void writeManifest() throws IOException {
+            List<String> lines = new ArrayList<>(manifest);
+            Collections.sort(lines);
+            lines.add(0, "file\tcontext\tstatements\tbytes");
+            Files.write(new File(outputDirectory, MANIFEST_FILE).toPath(), lines, StandardCharsets.UTF_8);
+        }
+
+        private void reportThroughput(final long startTime) {
+            long written = statementsWritten.sum();
+            long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+            logger.info("dumped " + written + " statements (" + (1000 * written / elapsed) + " statements/s)");
+        }
+
+        // Writes compressed chunks to a series of shard files, starting a new shard once the current one
+        // holds at least the configured number of statements
+        private class ShardWriter {
+            private final int partition;
+            private final String contextLabel;
+
+            private int shard = 0;
+            private File file = null;
+            private OutputStream out = null;
+            private long statements = 0;
+            private long bytes = 0;
+
+            private ShardWriter(final int partition, final String contextLabel) {
+                this.partition = partition;
+                this.contextLabel = contextLabel;
+            }
+
+            private void write(final CompressedChunk chunk) throws IOException {
+                if (null == out) {
+                    file = new File(outputDirectory, String.format("part-%05d-%05d.nq.gz", partition, shard++));
+                    out = new FileOutputStream(file);
+                }
+
+                out.write(chunk.bytes);
+                bytes += chunk.bytes.length;
+                statements += chunk.statements;
+                statementsWritten.add(chunk.statements);
+
+                if (statements >= shardSize) {
+                    close();
+                }
+            }
+
+            private void close() throws IOException {
+                if (null != out) {
+                    out.close();
+                    out = null;
+                    manifest.add(file.getName() + "\t" + contextLabel + "\t" + statements + "\t" + bytes);
+                    statements = 0;
+                    bytes = 0;
+                }
+            }
+        }
+    }
+
+    private static class CompressedChunk {
+        private final byte[] bytes;
+        private final int statements;
+
+        private CompressedChunk(final byte[] bytes, final int statements) {
+            this.bytes = bytes;
+            this.statements = statements;
+        }
+    }
+
+    private static <T> T awaitResult(final Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
         }
     }
 }
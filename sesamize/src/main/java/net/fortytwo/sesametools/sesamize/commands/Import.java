@@ -1,15 +1,28 @@
 package net.fortytwo.sesametools.sesamize.commands;
 
 import net.fortytwo.sesametools.sesamize.SesamizeArgs;
+import net.fortytwo.sesametools.sesamize.StoreCache;
 import net.fortytwo.sesametools.sesamize.Command;
+import net.fortytwo.sesametools.sesamize.Compression;
+import org.eclipse.rdf4j.IsolationLevels;
+import org.eclipse.rdf4j.model.BNode;
 import org.eclipse.rdf4j.model.Resource;
+import org.eclipse.rdf4j.model.Statement;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.ValueFactory;
 import org.eclipse.rdf4j.repository.Repository;
 import org.eclipse.rdf4j.repository.RepositoryConnection;
 import org.eclipse.rdf4j.repository.RepositoryException;
 import org.eclipse.rdf4j.repository.sail.SailRepository;
 import org.eclipse.rdf4j.rio.RDFFormat;
+import org.eclipse.rdf4j.rio.RDFHandlerException;
 import org.eclipse.rdf4j.rio.RDFParseException;
+import org.eclipse.rdf4j.rio.RDFParser;
+import org.eclipse.rdf4j.rio.Rio;
+import org.eclipse.rdf4j.rio.helpers.AbstractRDFHandler;
+import org.eclipse.rdf4j.rio.helpers.BasicParserSettings;
 import org.eclipse.rdf4j.sail.Sail;
+import org.eclipse.rdf4j.sail.SailConnection;
 import org.eclipse.rdf4j.sail.SailException;
 import org.eclipse.rdf4j.sail.nativerdf.NativeStore;
 import org.slf4j.Logger;
@@ -17,12 +30,22 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
 
 import static net.fortytwo.sesametools.sesamize.Sesamize.DEFAULT_BASEURI;
 
 public class Import extends Command {
     private final static Logger logger = LoggerFactory.getLogger(Import.class);
 
+    private static final String PROGRESS_FILE = "sesamize-import.progress";
+
     public Import() {
         super("import");
 
@@ -33,6 +56,12 @@ public class Import extends Command {
         addParameter(new Parameter<>(
                 "inputFormat", "i", true, RDFFormat.class, RDFFormat.RDFXML,
                 "input RDF format (e.g. 'N-Triples')"));
+        addParameter(new Parameter<>(
+                "batchSize", "n", false, Long.class, null,
+                "bulk load, committing and syncing to disk after each batch of this many statements"));
+        addParameter(new Parameter<>(
+                "resume", "r", false, Boolean.class, false,
+                "in a bulk load, skip the statements committed by an earlier, interrupted load of the same file"));
     }
 
     @Override
@@ -41,8 +70,14 @@ public class Import extends Command {
             File file = new File(args.nonOptions.get(2));
 
             RDFFormat inputFormat = args.getRDFFormat(file, RDFFormat.RDFXML, "i", "inputFormat");
+            String batchSize = args.getOption(null, "n", "batchSize");
+            boolean resume = args.getBooleanOption(false, "r", "resume");
 
-            importRDFDocumentIntoNativeStore(dir, file, inputFormat);
+            if (null == batchSize) {
+                importRDFDocumentIntoNativeStore(dir, file, inputFormat);
+            } else {
+                bulkLoadRDFDocumentIntoNativeStore(dir, file, inputFormat, Long.valueOf(batchSize), resume);
+            }
     }
 
     private void importRDFDocumentIntoNativeStore(final File nativeStoreDirectory,
@@ -52,18 +87,200 @@ public class Import extends Command {
             throws SailException, RepositoryException, IOException, RDFParseException {
 
         logger.info("importing file " + dumpFile + " into store at " + nativeStoreDirectory);
-        Sail sail = new NativeStore(nativeStoreDirectory);
-        sail.initialize();
+        Sail sail = StoreCache.acquireNativeStore(nativeStoreDirectory);
 
         try {
             Repository repo = new SailRepository(sail);
 
-            try (RepositoryConnection rc = repo.getConnection()) {
-                rc.add(dumpFile, DEFAULT_BASEURI, format, contexts);
+            try (RepositoryConnection rc = repo.getConnection();
+                 InputStream in = Compression.openInput(dumpFile)) {
+                rc.add(in, DEFAULT_BASEURI, format, contexts);
                 rc.commit();
             }
+        } finally {
+            StoreCache.release(sail);
+        }
+    }
+
+    // Streams the parsed statements into a series of transactions, rather than a single one.
+    // After each durable commit, the number of statements committed so far is durably recorded
+    // in the store directory, so that an interrupted load can be resumed, even after a system crash.
+    private void bulkLoadRDFDocumentIntoNativeStore(final File nativeStoreDirectory,
+                                                    final File dumpFile,
+                                                    final RDFFormat format,
+                                                    final long batchSize,
+                                                    final boolean resume)
+            throws SailException, IOException, RDFParseException {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batch size must be positive");
+        }
+
+        File progressFile = new File(nativeStoreDirectory, PROGRESS_FILE);
+        long alreadyCommitted = resume ? readProgress(progressFile, dumpFile) : 0;
+
+        logger.info("bulk loading file " + dumpFile + " into store at " + nativeStoreDirectory
+                + (alreadyCommitted > 0 ? ", resuming after " + alreadyCommitted + " statements" : ""));
+
+        // the store is opened with its own settings, so any store kept open by a server is closed first
+        StoreCache.evictNativeStore(nativeStoreDirectory);
+        NativeStore sail = new NativeStore(nativeStoreDirectory);
+        // Each batch is synced to disk before it is recorded as committed, so that a resumed load
+        // never skips statements which were lost in a crash. The cost of syncing is amortized over the batch.
+        sail.setForceSync(true);
+        sail.initialize();
+
+        try (SailConnection sc = sail.getConnection()) {
+            BatchHandler handler = new BatchHandler(
+                    sc, sail.getValueFactory(), batchSize, alreadyCommitted, progressFile, dumpFile);
+
+            RDFParser parser = Rio.createParser(format, sail.getValueFactory());
+            // Blank nodes must be labeled consistently across an interrupted and a resumed load.
+            // The handler prefixes the preserved labels with a salt derived from the file,
+            // so that blank nodes from different files are never merged.
+            parser.getParserConfig().set(BasicParserSettings.PRESERVE_BNODE_IDS, true);
+            parser.setRDFHandler(handler);
+
+            try (InputStream in = Compression.openInput(dumpFile)) {
+                parser.parse(in, DEFAULT_BASEURI);
+            }
+
+            logger.info("loaded " + handler.committed + " statements");
         } finally {
             sail.shutDown();
         }
+
+        progressFile.delete();
+    }
+
+    private long readProgress(final File progressFile, final File dumpFile) throws IOException {
+        if (!progressFile.exists()) {
+            return 0;
+        }
+
+        String[] fields = new String(Files.readAllBytes(progressFile.toPath()), StandardCharsets.UTF_8)
+                .trim().split("\t");
+        if (2 != fields.length || !fields[0].equals(dumpFile.getAbsolutePath())) {
+            throw new IllegalArgumentException("cannot resume: the interrupted load was of a different file ("
+                    + fields[0] + ")");
+        }
+
+        return Long.valueOf(fields[1]);
+    }
+
+    private void writeProgress(final File progressFile, final File dumpFile, final long committed) {
+        File tmp = new File(progressFile.getPath() + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                channel.write(ByteBuffer.wrap(
+                        (dumpFile.getAbsolutePath() + "\t" + committed + "\n").getBytes(StandardCharsets.UTF_8)));
+                channel.force(true);
+            }
+            Files.move(tmp.toPath(), progressFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            syncDirectory(progressFile.getParentFile());
+        } catch (IOException e) {
+            throw new RDFHandlerException("failed to record progress in " + progressFile, e);
+        }
+    }
+
+    // Makes a rename durable. Not all platforms allow a directory to be opened for syncing,
+    // in which case the rename is left to the file system.
+    private void syncDirectory(final File dir) {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            logger.debug("could not sync directory " + dir, e);
+        }
+    }
+
+    // A fixed-length label prefix which is the same for every load of the given file, and distinct for distinct files
+    private static String getBNodeSalt(final File dumpFile) {
+        UUID uuid = UUID.nameUUIDFromBytes(dumpFile.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+        return uuid.toString().replace("-", "");
+    }
+
+    private class BatchHandler extends AbstractRDFHandler {
+        private final SailConnection sc;
+        private final ValueFactory vf;
+        private final String bnodeSalt;
+        private final long batchSize;
+        private final long skip;
+        private final File progressFile;
+        private final File dumpFile;
+
+        private final long startTime = System.currentTimeMillis();
+        private long seen = 0;
+        private long inBatch = 0;
+        private long committed;
+
+        private BatchHandler(final SailConnection sc,
+                             final ValueFactory vf,
+                             final long batchSize,
+                             final long skip,
+                             final File progressFile,
+                             final File dumpFile) {
+            this.sc = sc;
+            this.vf = vf;
+            this.bnodeSalt = getBNodeSalt(dumpFile);
+            this.batchSize = batchSize;
+            this.skip = skip;
+            this.progressFile = progressFile;
+            this.dumpFile = dumpFile;
+            this.committed = skip;
+        }
+
+        @Override
+        public void handleNamespace(final String prefix, final String uri) throws RDFHandlerException {
+            if (0 == inBatch) {
+                // Note: isolation is not needed, as nothing else is reading the store
+                sc.begin(IsolationLevels.NONE);
+            }
+            sc.setNamespace(prefix, uri);
+            inBatch++;
+        }
+
+        @Override
+        public void handleStatement(final Statement st) throws RDFHandlerException {
+            if (seen++ < skip) {
+                return;
+            }
+
+            if (0 == inBatch) {
+                sc.begin(IsolationLevels.NONE);
+            }
+
+            sc.addStatement((Resource) salt(st.getSubject()), st.getPredicate(), salt(st.getObject()),
+                    (Resource) salt(st.getContext()));
+            committed++;
+            if (++inBatch >= batchSize) {
+                commitBatch();
+            }
+        }
+
+        @Override
+        public void endRDF() throws RDFHandlerException {
+            commitBatch();
+        }
+
+        private Value salt(final Value value) {
+            return value instanceof BNode
+                    ? vf.createBNode(bnodeSalt + ((BNode) value).getID())
+                    : value;
+        }
+
+        private void commitBatch() {
+            if (0 == inBatch) {
+                return;
+            }
+
+            sc.commit();
+            inBatch = 0;
+            writeProgress(progressFile, dumpFile, committed);
+
+            long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+            logger.info("committed " + committed + " statements ("
+                    + (1000 * (committed - skip) / elapsed) + " statements/s)");
+        }
     }
 }
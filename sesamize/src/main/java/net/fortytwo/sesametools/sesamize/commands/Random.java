@@ -3,16 +3,37 @@ package net.fortytwo.sesametools.sesamize.commands;
 import net.fortytwo.sesametools.RandomValueFactory;
 import net.fortytwo.sesametools.sesamize.SesamizeArgs;
 import net.fortytwo.sesametools.sesamize.Command;
-import org.eclipse.rdf4j.model.Statement;
+import net.fortytwo.sesametools.sesamize.Compression;
 import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
 import org.eclipse.rdf4j.rio.RDFFormat;
 import org.eclipse.rdf4j.rio.RDFWriter;
 import org.eclipse.rdf4j.rio.Rio;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class Random extends Command {
+    // Statements are generated in blocks of this size, each block from its own seed,
+    // so that the statements generated for a given seed do not depend on the number of threads.
+    // A block is also the unit of work of a worker, when writing to a single stream.
+    static final int BLOCK_SIZE = 10000;
+    private static final int QUEUE_CAPACITY = 64;
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    // the prefix of the IRIs of a block, given the seed and the index of the block
+    private static final String IRI_PREFIX = "urn:random:%016x:%d:";
 
     public Random() {
         super("random");
@@ -22,26 +43,198 @@ public class Random extends Command {
         addParameter(new Parameter<>(
                 "outputFormat", "o", true, RDFFormat.class, RDFFormat.RDFXML,
                 "output RDF format (e.g. 'N-Triples')"));
+        addParameter(new Parameter<>(
+                "threads", "t", false, Integer.class, 1,
+                "number of generator threads"));
+        addParameter(new Parameter<>(
+                "seed", "s", false, Long.class, null,
+                "random seed, for reproducible output"));
+        addParameter(new Parameter<>(
+                "outputDir", "d", false, File.class, null,
+                "write one file per thread to this directory, instead of a single stream to standard output"));
+        addParameter(new Parameter<>(
+                "gzip", "z", false, Boolean.class, false,
+                "compress output with gzip; shorthand for '--compression gzip'"));
+        addParameter(new Parameter<>(
+                "compression", "c", false, String.class, "none",
+                "output compression: 'none', 'gzip', 'bzip2' or 'zstd'"));
     }
 
     @Override
     public void execute(SesamizeArgs args) throws Exception {
-            Long totalTriples = Long.valueOf(args.nonOptions.get(1));
-            RDFFormat outputFormat = args.getRDFFormat(RDFFormat.RDFXML, "o", "outputFormat");
+        long totalTriples = Long.valueOf(args.nonOptions.get(1));
+        RDFFormat outputFormat = args.getRDFFormat(RDFFormat.RDFXML, "o", "outputFormat");
+        int threads = Integer.valueOf(args.getOption("1", "t", "threads"));
+        String seedOption = args.getOption(null, "s", "seed");
+        long seed = null == seedOption ? new java.util.Random().nextLong() : Long.valueOf(seedOption);
+        String outputDir = args.getOption(null, "d", "outputDir");
+        Compression compression = getCompression(args);
+
+        if (threads < 1) {
+            throw new IllegalArgumentException("number of threads must be positive");
+        }
 
-            OutputStream os = System.out;
+        if (null != outputDir) {
+            generateShards(totalTriples, outputFormat, threads, seed, new File(outputDir), compression);
+        } else {
+            try (OutputStream os = compression.compress(args.getOutput())) {
+                if (1 == threads) {
+                    generate(0, totalTriples, outputFormat, seed, os);
+                } else {
+                    generateInParallel(totalTriples, outputFormat, threads, seed, os);
+                }
+            }
+        }
+    }
 
-            RandomValueFactory rvf = new RandomValueFactory(
-                    SimpleValueFactory.getInstance());
+    // --gzip is an alias for --compression gzip, and may not contradict it
+    private static Compression getCompression(final SesamizeArgs args) {
+        String name = args.getOption(null, "c", "compression");
+        Compression compression = Compression.forName(null == name ? "none" : name);
 
-            RDFWriter writer = Rio.createWriter(outputFormat, os);
-            writer.startRDF();
-            for (long l = 0L; l < totalTriples; l++) {
-                Statement st = rvf.randomStatement();
-                writer.handleStatement(st);
+        if (null != args.getOption(null, "z", "gzip")) {
+            boolean gzip = args.getBooleanOption(false, "z", "gzip");
+            if (null != name && gzip != (Compression.GZIP == compression)) {
+                throw new IllegalArgumentException("--gzip " + gzip + " conflicts with --compression " + name);
             }
-            writer.endRDF();
+            if (null == name) {
+                compression = gzip ? Compression.GZIP : Compression.NONE;
+            }
+        }
+
+        return compression;
+    }
+
+    // Generates the statements with the given indexes, where the first index is at the start of a block
+    private void generate(final long from,
+                          final long to,
+                          final RDFFormat format,
+                          final long seed,
+                          final OutputStream os) {
+        RDFWriter writer = Rio.createWriter(format, os);
+        writer.startRDF();
+        RandomValueFactory rvf = null;
+        for (long i = from; i < to; i++) {
+            if (0 == i % BLOCK_SIZE) {
+                long block = i / BLOCK_SIZE;
+                // IRIs are numbered within their block, so that they are unique however many blocks there are
+                rvf = new RandomValueFactory(SimpleValueFactory.getInstance(), blockSeed(seed, block),
+                        String.format(IRI_PREFIX, seed, block));
+            }
+            writer.handleStatement(rvf.randomStatement());
+        }
+        writer.endRDF();
+    }
+
+    // Each thread generates one partition of the blocks into its own file
+    private void generateShards(final long totalTriples,
+                                final RDFFormat format,
+                                final int threads,
+                                final long seed,
+                                final File dir,
+                                final Compression compression) throws Exception {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("could not create directory " + dir);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new LinkedList<>();
+            for (int i = 0; i < threads; i++) {
+                final int partition = i;
+                final File file = new File(dir, String.format("part-%05d.%s%s", partition,
+                        format.getDefaultFileExtension(),
+                        Compression.NONE == compression ? "" : "." + compression.getExtension()));
+                futures.add(executor.submit(() -> {
+                    try (OutputStream os = compression.compress(new FileOutputStream(file))) {
+                        generate(partitionStart(totalTriples, threads, partition),
+                                partitionStart(totalTriples, threads, partition + 1), format, seed, os);
+                    }
+                    return null;
+                }));
+            }
+
+            for (Future<?> f : futures) {
+                awaitResult(f);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Workers serialize chunks of statements independently, and a single writer concatenates them.
+    // This requires a line-based format, in which any concatenation of documents is itself a valid document.
+    private void generateInParallel(final long totalTriples,
+                                    final RDFFormat format,
+                                    final int threads,
+                                    final long seed,
+                                    final OutputStream os) throws Exception {
+        if (!RDFFormat.NTRIPLES.equals(format) && !RDFFormat.NQUADS.equals(format)) {
+            throw new IllegalArgumentException("parallel output to a single stream requires N-Triples or N-Quads;"
+                    + " use --outputDir to write " + format.getName() + " in parallel");
+        }
+
+        BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new LinkedList<>();
+            long expectedChunks = (totalTriples + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            for (int i = 0; i < threads; i++) {
+                final long from = partitionStart(totalTriples, threads, i);
+                final long to = partitionStart(totalTriples, threads, i + 1);
+                futures.add(executor.submit(() -> {
+                    for (long start = from; start < to; start += BLOCK_SIZE) {
+                        ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+                        generate(start, Math.min(to, start + BLOCK_SIZE), format, seed, chunk);
+                        queue.put(chunk.toByteArray());
+                    }
+                    return null;
+                }));
+            }
+
+            for (long written = 0; written < expectedChunks; ) {
+                byte[] chunk = queue.poll(1, TimeUnit.SECONDS);
+                if (null == chunk) {
+                    // a failed worker will never deliver its remaining chunks
+                    for (Future<?> f : futures) {
+                        if (f.isDone()) {
+                            awaitResult(f);
+                        }
+                    }
+                } else {
+                    os.write(chunk);
+                    written++;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // the index of the first statement of a partition, where partitions consist of whole blocks
+    static long partitionStart(final long total, final int partitions, final int partition) {
+        long blocks = (total + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        return Math.min(total, blocks * partition / partitions * BLOCK_SIZE);
+    }
+
+    // Derives the seed of a block with the splitmix64 mixing function, so that the blocks of different seeds
+    // are unrelated, rather than the blocks of one seed being shifted copies of those of neighboring seeds
+    private static long blockSeed(final long seed, final long block) {
+        return mix64(mix64(seed) + GOLDEN_GAMMA * (block + 1));
+    }
+
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
 
-            os.close();
+    private static void awaitResult(final Future<?> future) throws Exception {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
     }
 }
@@ -1,33 +1,39 @@
 package net.fortytwo.sesametools.sesamize.commands;
 
+import net.fortytwo.sesametools.sesamize.Compression;
+import net.fortytwo.sesametools.sesamize.FileQueryEvaluator;
 import net.fortytwo.sesametools.sesamize.SesamizeArgs;
 import net.fortytwo.sesametools.sesamize.SparqlResultFormat;
 import net.fortytwo.sesametools.sesamize.Command;
+import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
-import org.eclipse.rdf4j.query.BindingSet;
-import org.eclipse.rdf4j.query.QueryLanguage;
-import org.eclipse.rdf4j.query.TupleQuery;
-import org.eclipse.rdf4j.query.TupleQueryResult;
 import org.eclipse.rdf4j.query.resultio.TupleQueryResultWriter;
 import org.eclipse.rdf4j.query.resultio.sparqljson.SPARQLResultsJSONWriter;
 import org.eclipse.rdf4j.query.resultio.sparqlxml.SPARQLResultsXMLWriter;
 import org.eclipse.rdf4j.query.resultio.text.csv.SPARQLResultsCSVWriter;
 import org.eclipse.rdf4j.query.resultio.text.tsv.SPARQLResultsTSVWriter;
-import org.eclipse.rdf4j.repository.Repository;
-import org.eclipse.rdf4j.repository.RepositoryConnection;
-import org.eclipse.rdf4j.repository.sail.SailRepository;
 import org.eclipse.rdf4j.rio.RDFFormat;
-import org.eclipse.rdf4j.sail.Sail;
-import org.eclipse.rdf4j.sail.memory.MemoryStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class Select extends Command {
+    private final static Logger logger = LoggerFactory.getLogger(Select.class);
+
+    private static final String[] QUERY_EXTENSIONS = {"rq", "sparql"};
 
     public Select() {
         super("select");
@@ -42,7 +48,24 @@ public class Select extends Command {
                 "output SPARQL format (e.g. 'XML')"));
         addParameter(new Parameter<>(
                 "query", null, true, File.class, null,
-                "file with SPARQL SELECT query"));
+                "file with SPARQL SELECT query, or a directory or comma-separated list of such files."
+                        + " Multiple queries share a single load of the input"));
+        addParameter(new Parameter<>(
+                "outputDir", "d", false, File.class, null,
+                "directory in which to write the results of each query to its own file,"
+                        + " named after the query file. Required for multiple queries"));
+        addParameter(new Parameter<>(
+                "compression", "c", false, String.class, "none",
+                "output compression: 'none', 'gzip', 'bzip2' or 'zstd'"));
+        addParameter(new Parameter<>(
+                "threads", "t", false, Integer.class, null,
+                "number of queries to evaluate at the same time (default: number of processors)"));
+        addParameter(new Parameter<>(
+                "evaluation", "e", false, String.class, "auto",
+                "query evaluation strategy: 'auto', 'streaming', 'memory' or 'native'"));
+        addParameter(new Parameter<>(
+                "grouped", "g", false, Boolean.class, false,
+                "all statements about any one subject are adjacent in the input, e.g. sorted by subject"));
     }
 
     @Override
@@ -51,69 +74,157 @@ public class Select extends Command {
 
         RDFFormat inputFormat = args.getRDFFormat(inputFile, RDFFormat.RDFXML, "i", "inputFormat");
         SparqlResultFormat outputFormat = args.getSparqlResultFormat(SparqlResultFormat.XML, "o", "outputFormat");
-        String qFile = args.getOption(null, "query");
+        List<File> queryFiles = findQueryFiles(args.getOption(null, "query"));
+        String outputDir = args.getOption(null, "d", "outputDir");
 
-        try (InputStream fileInput = new FileInputStream(qFile)) {
-            String query = IOUtils.toString(fileInput, "UTF-8");
+        if (null == outputDir) {
+            if (1 != queryFiles.size()) {
+                throw new IllegalArgumentException("an output directory is required for multiple queries");
+            }
+
+            String query = readQuery(queryFiles.get(0));
+            try (OutputStream out = getCompressedOutput(args)) {
+                executeSparqlSelectQuery(query, out, outputFormat, getQueryEvaluator(args, inputFile, inputFormat));
+            }
+        } else {
+            int threads = Integer.valueOf(args.getOption(
+                    "" + Runtime.getRuntime().availableProcessors(), "t", "threads"));
+            if (threads < 1) {
+                throw new IllegalArgumentException("number of threads must be positive");
+            }
+
+            Compression compression = Compression.forName(args.getOption("none", "c", "compression"));
+            executeBatch(queryFiles, new File(outputDir), outputFormat, compression, threads,
+                    getQueryEvaluator(args, inputFile, inputFormat));
+        }
+    }
+
+    // Loads the input once, then evaluates each query against the loaded store, writing its results to its own file.
+    // A failed query does not prevent the others from completing.
+    private void executeBatch(final List<File> queryFiles,
+                              final File outputDir,
+                              final SparqlResultFormat outFormat,
+                              final Compression compression,
+                              final int threads,
+                              final FileQueryEvaluator evaluator) throws Exception {
+        Map<File, File> outputFiles = new HashMap<>();
+        Map<String, File> queryFilesByName = new HashMap<>();
+        for (File queryFile : queryFiles) {
+            String name = FilenameUtils.getBaseName(queryFile.getName());
+            File other = queryFilesByName.put(name, queryFile);
+            if (null != other) {
+                throw new IllegalArgumentException("queries " + other + " and " + queryFile
+                        + " would write to the same output file");
+            }
+            outputFiles.put(queryFile, new File(outputDir, name + "." + outFormat.getFileExtension()
+                    + (Compression.NONE == compression ? "" : "." + compression.getExtension())));
+        }
+
+        if (!outputDir.exists() && !outputDir.mkdirs()) {
+            throw new IOException("could not create output directory " + outputDir);
+        }
+
+        long startTime = System.currentTimeMillis();
+        int failures = 0;
+        try (FileQueryEvaluator.LoadedInput input = evaluator.loadInput()) {
+            logger.info("loaded input in " + (System.currentTimeMillis() - startTime) + "ms; evaluating "
+                    + queryFiles.size() + " queries with " + threads + " threads");
+
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                Map<File, Future<?>> futures = new HashMap<>();
+                for (File queryFile : queryFiles) {
+                    futures.put(queryFile, executor.submit(() -> {
+                        executeQuery(queryFile, outputFiles.get(queryFile), outFormat, input);
+                        return null;
+                    }));
+                }
+
+                for (File queryFile : queryFiles) {
+                    try {
+                        futures.get(queryFile).get();
+                    } catch (Exception e) {
+                        logger.error("query " + queryFile + " failed", null == e.getCause() ? e : e.getCause());
+                        failures++;
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
 
-            executeSparqlSelectQuery(query, inputFile, System.out, inputFormat, outputFormat, getBaseURI(args));
+        logger.info("evaluated " + queryFiles.size() + " queries in "
+                + (System.currentTimeMillis() - startTime) + "ms");
+        if (failures > 0) {
+            throw new IllegalStateException(failures + " of " + queryFiles.size() + " queries failed");
+        }
+    }
+
+    private void executeQuery(final File queryFile,
+                              final File outputFile,
+                              final SparqlResultFormat outFormat,
+                              final FileQueryEvaluator.LoadedInput input) throws Exception {
+        long startTime = System.currentTimeMillis();
+        String query = readQuery(queryFile);
+
+        // compressed according to the extension of the file
+        try (OutputStream out = Compression.openOutput(outputFile)) {
+            input.evaluateTupleQuery(query, createWriter(outFormat, out));
+        } catch (Exception e) {
+            // leave no partial results behind
+            outputFile.delete();
+            throw e;
+        }
+
+        logger.info("wrote results of " + queryFile + " to " + outputFile
+                + " in " + (System.currentTimeMillis() - startTime) + "ms");
+    }
+
+    private static List<File> findQueryFiles(final String query) {
+        List<File> files = new LinkedList<>();
+        for (String name : query.split(",")) {
+            File file = new File(name.trim());
+            if (file.isDirectory()) {
+                File[] children = file.listFiles((dir, child) ->
+                        Arrays.asList(QUERY_EXTENSIONS).contains(FilenameUtils.getExtension(child).toLowerCase()));
+                if (null == children || 0 == children.length) {
+                    throw new IllegalArgumentException("no query files (*.rq, *.sparql) in directory " + file);
+                }
+                Arrays.sort(children);
+                files.addAll(Arrays.asList(children));
+            } else {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    private static String readQuery(final File queryFile) throws IOException {
+        try (InputStream fileInput = new FileInputStream(queryFile)) {
+            return IOUtils.toString(fileInput, "UTF-8");
         }
     }
 
     private void executeSparqlSelectQuery(final String query,
-                                          final File inputFile,
                                           final OutputStream out,
-                                          final RDFFormat inFormat,
                                           final SparqlResultFormat outFormat,
-                                          final String baseURI) throws Exception {
-        TupleQueryResultWriter w;
+                                          final FileQueryEvaluator evaluator) throws Exception {
+        evaluator.evaluateTupleQuery(query, createWriter(outFormat, out));
+    }
 
+    private static TupleQueryResultWriter createWriter(final SparqlResultFormat outFormat,
+                                                       final OutputStream out) {
         switch (outFormat) {
             case CSV:
-                w = new SPARQLResultsCSVWriter(out);
-                break;
+                return new SPARQLResultsCSVWriter(out);
             case JSON:
-                w = new SPARQLResultsJSONWriter(out);
-                break;
+                return new SPARQLResultsJSONWriter(out);
             case XML:
-                w = new SPARQLResultsXMLWriter(out);
-                break;
+                return new SPARQLResultsXMLWriter(out);
             case TAB:
-                w = new SPARQLResultsTSVWriter(out);
-                break;
+                return new SPARQLResultsTSVWriter(out);
             default:
                 throw new IllegalArgumentException("bad query result format: " + outFormat);
         }
-
-        Sail sail = new MemoryStore();
-        sail.initialize();
-
-        try {
-            Repository repo = new SailRepository(sail);
-            try (RepositoryConnection rc = repo.getConnection()) {
-                rc.add(inputFile, baseURI, inFormat);
-                rc.commit();
-
-                TupleQuery tq = rc.prepareTupleQuery(QueryLanguage.SPARQL, query);
-                List<String> columnHeaders = new LinkedList<>();
-                columnHeaders.addAll(tq.getBindings().getBindingNames());
-
-                w.startQueryResult(columnHeaders);
-
-                // Evaluate the first query to get all names
-                try (TupleQueryResult result = tq.evaluate()) {
-                    // Loop over all names, and retrieve the corresponding e-mail address.
-                    while (result.hasNext()) {
-                        BindingSet b = result.next();
-
-                        w.handleSolution(b);
-                    }
-                }
-
-                w.endQueryResult();
-            }
-        } finally {
-            sail.shutDown();
-        }
     }
 }
@@ -0,0 +1,39 @@
+package net.fortytwo.sesametools.sesamize.commands;
+
+import net.fortytwo.sesametools.sesamize.Command;
+import net.fortytwo.sesametools.sesamize.SesamizeArgs;
+import net.fortytwo.sesametools.sesamize.SesamizeClient;
+import net.fortytwo.sesametools.sesamize.SesamizeServer;
+
+public class Serve extends Command {
+    public static final int DEFAULT_PORT = 8701;
+
+    public Serve() {
+        super("serve");
+
+        addParameter(new Parameter<>(
+                "port", "p", false, Integer.class, DEFAULT_PORT,
+                "local port on which to accept commands. Clients find the server through the "
+                        + SesamizeClient.SERVER_VARIABLE + " environment variable"));
+        addParameter(new Parameter<>(
+                "threads", "t", false, Integer.class, null,
+                "number of commands which may run at the same time (default: number of processors)"));
+    }
+
+    @Override
+    public void execute(SesamizeArgs args) throws Exception {
+        int port = Integer.valueOf(args.getOption("" + DEFAULT_PORT, "p", "port"));
+        int threads = Integer.valueOf(args.getOption(
+                "" + Runtime.getRuntime().availableProcessors(), "t", "threads"));
+
+        if (threads < 1) {
+            throw new IllegalArgumentException("number of threads must be positive");
+        }
+
+        SesamizeServer server = new SesamizeServer(port, threads);
+        // open stores are shut down cleanly when the server is stopped, e.g. by SIGTERM
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+        server.start();
+        server.awaitStop();
+    }
+}
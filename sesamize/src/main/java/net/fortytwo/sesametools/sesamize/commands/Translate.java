@@ -2,22 +2,43 @@ package net.fortytwo.sesametools.sesamize.commands;
 
 import net.fortytwo.sesametools.sesamize.SesamizeArgs;
 import net.fortytwo.sesametools.sesamize.Command;
+import net.fortytwo.sesametools.sesamize.Compression;
 import net.fortytwo.sesametools.sesamize.SparqlResultFormat;
+import org.eclipse.rdf4j.model.Statement;
 import org.eclipse.rdf4j.rio.RDFFormat;
 import org.eclipse.rdf4j.rio.RDFHandlerException;
 import org.eclipse.rdf4j.rio.RDFParseException;
 import org.eclipse.rdf4j.rio.RDFParser;
 import org.eclipse.rdf4j.rio.RDFWriter;
 import org.eclipse.rdf4j.rio.Rio;
+import org.eclipse.rdf4j.rio.helpers.BasicParserSettings;
+import org.eclipse.rdf4j.rio.helpers.StatementCollector;
 import org.eclipse.rdf4j.sail.SailException;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class Translate extends Command {
+    static final int CHUNK_SIZE = 1 << 22;
 
     public Translate() {
         super("translate");
@@ -30,16 +51,137 @@ public class Translate extends Command {
         addParameter(new Parameter<>(
                 "outputFormat", "o", true, SparqlResultFormat.class, SparqlResultFormat.XML,
                 "output SPARQL format (e.g. 'XML')"));
+        addParameter(new Parameter<>(
+                "threads", "t", false, Integer.class, 1,
+                "number of parser threads, for N-Triples or N-Quads input"));
+        addParameter(new Parameter<>(
+                "unordered", "u", false, Boolean.class, false,
+                "with more than one thread, write statements as soon as they are parsed, in any order"));
+        addParameter(new Parameter<>(
+                "compression", "c", false, String.class, "none",
+                "output compression: 'none', 'gzip', 'bzip2' or 'zstd'. Compressed input is detected automatically"));
     }
 
     @Override
-    public void execute(SesamizeArgs args) throws IOException {
+    public void execute(SesamizeArgs args) throws Exception {
         File inputFile = new File(args.nonOptions.get(1));
 
         RDFFormat inputFormat = args.getRDFFormat(inputFile, RDFFormat.RDFXML, "i", "inputFormat");
         RDFFormat outputFormat = args.getRDFFormat(RDFFormat.RDFXML, "o", "outputFormat");
 
-        translateRDFDocument(inputFile, System.out, inputFormat, outputFormat, getBaseURI(args));
+        int threads = Integer.valueOf(args.getOption("1", "t", "threads"));
+        boolean unordered = args.getBooleanOption(false, "u", "unordered");
+
+        try (OutputStream out = getCompressedOutput(args)) {
+            // memory-mapped, parallel parsing requires an uncompressed, line-based input
+            if (threads > 1 && (RDFFormat.NTRIPLES.equals(inputFormat) || RDFFormat.NQUADS.equals(inputFormat))
+                    && isUncompressed(inputFile)) {
+                translateInParallel(inputFile, out, inputFormat, outputFormat, getBaseURI(args), threads, unordered);
+            } else {
+                translateRDFDocument(inputFile, out, inputFormat, outputFormat, getBaseURI(args));
+            }
+        }
+    }
+
+    private static boolean isUncompressed(final File file) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            return Compression.NONE == Compression.detect(in);
+        }
+    }
+
+    private void translateInParallel(final File inputFile,
+                                     final OutputStream out,
+                                     final RDFFormat inFormat,
+                                     final RDFFormat outFormat,
+                                     final String baseURI,
+                                     final int threads,
+                                     final boolean unordered) throws Exception {
+        RDFWriter writer = Rio.createWriter(outFormat, out);
+        writer.startRDF();
+
+        int maxInFlight = 2 * threads;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (FileChannel channel = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ)) {
+            Deque<Future<List<Statement>>> inOrder = new ArrayDeque<>();
+            CompletionService<List<Statement>> asCompleted = new ExecutorCompletionService<>(executor);
+            int inFlight = 0;
+
+            long size = channel.size();
+            long position = 0;
+            while (position < size || inFlight > 0) {
+                if (position < size && inFlight < maxInFlight) {
+                    byte[] chunk = nextChunk(channel, position, size);
+                    position += chunk.length;
+
+                    Callable<List<Statement>> task = () -> parseChunk(chunk, inFormat, baseURI);
+                    if (unordered) {
+                        asCompleted.submit(task);
+                    } else {
+                        inOrder.add(executor.submit(task));
+                    }
+                    inFlight++;
+                } else {
+                    Future<List<Statement>> next = unordered ? asCompleted.take() : inOrder.remove();
+                    List<Statement> statements;
+                    try {
+                        statements = next.get();
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        throw cause instanceof Exception ? (Exception) cause : e;
+                    }
+                    for (Statement st : statements) {
+                        writer.handleStatement(st);
+                    }
+                    inFlight--;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        writer.endRDF();
+    }
+
+    // Maps the next region of the file, ending it after the last line break it contains
+    static byte[] nextChunk(final FileChannel channel, final long position, final long size) throws IOException {
+        long length = Math.min(CHUNK_SIZE, size - position);
+        while (true) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            int end = (int) length;
+            if (position + length < size) {
+                end = 0;
+                for (int i = (int) length - 1; i >= 0; i--) {
+                    if ('\n' == buffer.get(i)) {
+                        end = i + 1;
+                        break;
+                    }
+                }
+
+                if (0 == end) {
+                    // a line longer than the chunk
+                    length = Math.min(2 * length, size - position);
+                    continue;
+                }
+            }
+
+            byte[] chunk = new byte[end];
+            buffer.get(chunk);
+            return chunk;
+        }
+    }
+
+    // Note: blank node identifiers are preserved, so that they are consistent across chunks.
+    // Line numbers in parse errors are relative to the chunk.
+    private List<Statement> parseChunk(final byte[] chunk,
+                                       final RDFFormat format,
+                                       final String baseURI) throws IOException {
+        RDFParser parser = Rio.createParser(format);
+        parser.getParserConfig().set(BasicParserSettings.PRESERVE_BNODE_IDS, true);
+
+        List<Statement> statements = new ArrayList<>();
+        parser.setRDFHandler(new StatementCollector(statements));
+        parser.parse(new ByteArrayInputStream(chunk), baseURI);
+        return statements;
     }
 
     private void translateRDFDocument(final File inputFile,
@@ -49,7 +191,7 @@ public class Translate extends Command {
                                            final String baseURI)
             throws SailException, IOException, RDFHandlerException, RDFParseException {
 
-        try (InputStream in = new FileInputStream(inputFile)) {
+        try (InputStream in = Compression.openInput(inputFile)) {
             translateRDFDocument(in, out, inFormat, outFormat, baseURI);
         }
     }
@@ -0,0 +1,70 @@
+package net.fortytwo.sesametools.sesamize;
+
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class CompressionTest {
+
+    @Test
+    public void testDetectCompressedStreams() throws Exception {
+        String doc = "<http://example.org/a> <http://example.org/b> \"c\" .\n";
+        for (Compression c : Compression.values()) {
+            assertEquals(c, Compression.detect(stream(compress(c, doc))));
+            // the header of an empty stream differs from that of a non-empty one, for bzip2
+            assertEquals(c, Compression.detect(stream(compress(c, ""))));
+        }
+    }
+
+    @Test
+    public void testDetectLeavesStreamUnread() throws Exception {
+        InputStream in = stream(compress(Compression.GZIP, "foo"));
+        Compression.detect(in);
+        assertEquals(0x1f, in.read());
+        assertEquals(0x8b, in.read());
+    }
+
+    @Test
+    public void testTextIsNotTakenForBzip2() throws Exception {
+        // begins with the bzip2 magic number, but not with a bzip2 header
+        assertEquals(Compression.NONE, Compression.detect(stream(bytes("BZh9 is not a bzip2 stream"))));
+        assertEquals(Compression.NONE, Compression.detect(stream(bytes("BZh"))));
+        assertEquals(Compression.NONE, Compression.detect(stream(bytes("BZh91AY&SX"))));
+        assertEquals(Compression.BZIP2, Compression.detect(stream(bytes("BZh91AY&SY"))));
+        assertEquals(Compression.NONE, Compression.detect(stream(bytes("BZh01AY&SY"))));
+    }
+
+    @Test
+    public void testDetectUncompressedStreams() throws Exception {
+        assertEquals(Compression.NONE, Compression.detect(stream(new byte[]{})));
+        assertEquals(Compression.NONE, Compression.detect(stream(new byte[]{0x1f})));
+        assertEquals(Compression.NONE, Compression.detect(stream(bytes("<?xml version=\"1.0\"?>"))));
+    }
+
+    private static byte[] compress(final Compression c, final String s) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream out = c.compress(bytes)) {
+            out.write(bytes(s));
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] bytes(final String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static InputStream stream(final byte[] bytes) {
+        return new BufferedInputStream(new ByteArrayInputStream(bytes));
+    }
+}
@@ -0,0 +1,51 @@
+package net.fortytwo.sesametools.sesamize;
+
+import org.eclipse.rdf4j.query.QueryLanguage;
+import org.eclipse.rdf4j.query.parser.QueryParserUtil;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class FileQueryEvaluatorTest {
+    private static final String PREFIX = "PREFIX : <http://example.org/ns/>\n";
+
+    @Test
+    public void testSinglePatternIsStreamable() throws Exception {
+        assertEquals(FileQueryEvaluator.Shape.PATTERN, shape("SELECT ?s WHERE { ?s :p ?o }"));
+        assertEquals(FileQueryEvaluator.Shape.PATTERN, shape("SELECT ?o WHERE { :s :p ?o FILTER(?o > 1) }"));
+        assertEquals(FileQueryEvaluator.Shape.PATTERN, shape("SELECT (STR(?o) AS ?x) WHERE { ?s :p ?o }"));
+        assertEquals(FileQueryEvaluator.Shape.PATTERN, shape("CONSTRUCT { ?o :q ?s } WHERE { ?s :p ?o }"));
+    }
+
+    @Test
+    public void testStarIsStreamableBySubject() throws Exception {
+        assertEquals(FileQueryEvaluator.Shape.STAR, shape("SELECT * WHERE { ?s :p ?o ; :q ?o2 }"));
+        assertEquals(FileQueryEvaluator.Shape.STAR, shape("SELECT * WHERE { ?s :p ?o . ?s :q ?o2 FILTER(?o != ?o2) }"));
+    }
+
+    @Test
+    public void testOtherQueriesAreNotStreamable() throws Exception {
+        // a path of patterns joins different subjects
+        assertEquals(FileQueryEvaluator.Shape.OTHER, shape("SELECT * WHERE { ?s :p ?o . ?o :q ?o2 }"));
+        // operators which need to see all solutions at once
+        assertEquals(FileQueryEvaluator.Shape.OTHER, shape("SELECT DISTINCT ?s WHERE { ?s :p ?o }"));
+        assertEquals(FileQueryEvaluator.Shape.OTHER, shape("SELECT ?s WHERE { ?s :p ?o } ORDER BY ?o"));
+        assertEquals(FileQueryEvaluator.Shape.OTHER, shape("SELECT ?s WHERE { ?s :p ?o } LIMIT 10"));
+        assertEquals(FileQueryEvaluator.Shape.OTHER, shape("SELECT (COUNT(*) AS ?n) WHERE { ?s :p ?o }"));
+        assertEquals(FileQueryEvaluator.Shape.OTHER, shape("SELECT * WHERE { ?s :p ?o OPTIONAL { ?s :q ?o2 } }"));
+        assertEquals(FileQueryEvaluator.Shape.OTHER,
+                shape("SELECT * WHERE { ?s :p ?o FILTER NOT EXISTS { ?s :q ?o } }"));
+        // a dataset is not the default graph of the file
+        assertEquals(FileQueryEvaluator.Shape.OTHER,
+                shape("SELECT * FROM <http://example.org/ns/g> WHERE { ?s :p ?o }"));
+        assertEquals(FileQueryEvaluator.Shape.OTHER, shape("SELECT * WHERE { }"));
+    }
+
+    private static FileQueryEvaluator.Shape shape(final String query) {
+        return FileQueryEvaluator.getShape(
+                QueryParserUtil.parseQuery(QueryLanguage.SPARQL, PREFIX + query, "http://example.org/base/"));
+    }
+}
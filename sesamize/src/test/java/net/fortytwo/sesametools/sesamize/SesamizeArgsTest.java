@@ -0,0 +1,75 @@
+package net.fortytwo.sesametools.sesamize;
+
+import org.eclipse.rdf4j.rio.RDFFormat;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class SesamizeArgsTest {
+
+    @Test
+    public void testSniffTriplesAndQuads() throws Exception {
+        assertEquals(RDFFormat.NTRIPLES, sniff(
+                "# a comment\n"
+                        + "<http://example.org/a> <http://example.org/b> <http://example.org/c> .\n"
+                        + "_:x <http://example.org/b> \"c\"@en .\n"));
+        assertEquals(RDFFormat.NQUADS, sniff(
+                "<http://example.org/a> <http://example.org/b> <http://example.org/c> <http://example.org/g> .\n"));
+        // N-Quads which begin with triples in the default graph
+        assertEquals(RDFFormat.NQUADS, sniff(
+                "<http://example.org/a> <http://example.org/b> \"c\" .\n"
+                        + "<http://example.org/a> <http://example.org/b> \"c\" <http://example.org/g> .\n"));
+    }
+
+    @Test
+    public void testSniffTurtleAndTriG() throws Exception {
+        assertEquals(RDFFormat.TURTLE, sniff(
+                "@prefix : <http://example.org/ns/> .\n"
+                        + ":a :b :c .\n"));
+        assertEquals(RDFFormat.TURTLE, sniff(
+                "PREFIX : <http://example.org/ns/>\n"
+                        + ":a :b [ :c \"d\" ] .\n"));
+        assertEquals(RDFFormat.TRIG, sniff(
+                "@prefix : <http://example.org/ns/> .\n"
+                        + ":g {\n"
+                        + "    :a :b :c .\n"
+                        + "}\n"));
+        assertEquals(RDFFormat.TRIG, sniff(
+                "{ <http://example.org/a> <http://example.org/b> <http://example.org/c> . }\n"));
+    }
+
+    @Test
+    public void testSniffOtherFormats() throws Exception {
+        assertEquals(RDFFormat.RDFXML, sniff(
+                "<?xml version=\"1.0\"?>\n"
+                        + "<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\"/>\n"));
+        assertEquals(RDFFormat.TRIX, sniff(
+                "<?xml version=\"1.0\"?>\n"
+                        + "<TriX xmlns=\"http://www.w3.org/2004/03/trix/trix-1/\"/>\n"));
+        assertEquals(RDFFormat.RDFJSON, sniff("{ \"http://example.org/a\" : {} }\n"));
+        assertNull(sniff(""));
+        assertNull(sniff("# nothing but a comment\n"));
+    }
+
+    private static RDFFormat sniff(final String content) throws IOException {
+        File file = File.createTempFile("sesamize", ".rdf");
+        try {
+            try (OutputStream out = new FileOutputStream(file)) {
+                out.write(content.getBytes(StandardCharsets.UTF_8));
+            }
+            return SesamizeArgs.sniffRDFFormat(file);
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package net.fortytwo.sesametools.sesamize.commands;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class RandomTest {
+
+    @Test
+    public void testPartitionsConsistOfWholeBlocks() throws Exception {
+        long[] totals = {0, 1, Random.BLOCK_SIZE - 1, Random.BLOCK_SIZE, Random.BLOCK_SIZE + 1,
+                7 * Random.BLOCK_SIZE + 3, 1000L * Random.BLOCK_SIZE};
+        for (long total : totals) {
+            for (int partitions = 1; partitions <= 8; partitions++) {
+                assertEquals(0, Random.partitionStart(total, partitions, 0));
+                assertEquals(total, Random.partitionStart(total, partitions, partitions));
+
+                long previous = 0;
+                for (int partition = 1; partition < partitions; partition++) {
+                    long start = Random.partitionStart(total, partitions, partition);
+                    assertTrue(start >= previous);
+                    assertTrue(0 == start % Random.BLOCK_SIZE || total == start);
+                    previous = start;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testBlocksAreDividedEvenly() throws Exception {
+        long total = 10L * Random.BLOCK_SIZE;
+        assertEquals(5L * Random.BLOCK_SIZE, Random.partitionStart(total, 2, 1));
+        assertEquals(3L * Random.BLOCK_SIZE, Random.partitionStart(total, 3, 1));
+        assertEquals(6L * Random.BLOCK_SIZE, Random.partitionStart(total, 3, 2));
+
+        // fewer blocks than partitions; some partitions are empty
+        assertEquals(0, Random.partitionStart(Random.BLOCK_SIZE + 1, 4, 1));
+        assertEquals(Random.BLOCK_SIZE, Random.partitionStart(Random.BLOCK_SIZE + 1, 4, 2));
+        assertEquals(Random.BLOCK_SIZE + 1, Random.partitionStart(Random.BLOCK_SIZE + 1, 4, 4));
+    }
+}
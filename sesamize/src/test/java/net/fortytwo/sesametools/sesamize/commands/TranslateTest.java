@@ -0,0 +1,98 @@
+package net.fortytwo.sesametools.sesamize.commands;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class TranslateTest {
+    private static final byte[] LINE = ("<http://example.org/ns/subject> <http://example.org/ns/predicate>"
+            + " \"object\" .\n").getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void testChunksEndAtLineBreaks() throws Exception {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        while (content.size() < 2 * Translate.CHUNK_SIZE + Translate.CHUNK_SIZE / 2) {
+            content.write(LINE);
+        }
+        // a final line without a line break
+        content.write(LINE, 0, LINE.length - 1);
+
+        List<byte[]> chunks = split(content.toByteArray());
+        assertEquals(3, chunks.size());
+        for (byte[] chunk : chunks.subList(0, chunks.size() - 1)) {
+            assertTrue(chunk.length <= Translate.CHUNK_SIZE);
+            assertTrue(chunk.length > Translate.CHUNK_SIZE - LINE.length);
+            assertEquals('\n', chunk[chunk.length - 1]);
+        }
+    }
+
+    @Test
+    public void testLineLongerThanChunk() throws Exception {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        content.write(LINE);
+        byte[] longLine = new byte[Translate.CHUNK_SIZE + 1];
+        Arrays.fill(longLine, (byte) 'x');
+        longLine[longLine.length - 1] = '\n';
+        content.write(longLine);
+        while (content.size() < 4 * Translate.CHUNK_SIZE) {
+            content.write(LINE);
+        }
+
+        List<byte[]> chunks = split(content.toByteArray());
+        assertArrayEquals(LINE, chunks.get(0));
+        // the chunk is extended to the last line break within twice the chunk size
+        byte[] extended = chunks.get(1);
+        assertTrue(extended.length > Translate.CHUNK_SIZE + 1);
+        assertTrue(extended.length <= 2 * Translate.CHUNK_SIZE);
+        assertArrayEquals(longLine, Arrays.copyOf(extended, longLine.length));
+        assertEquals('\n', extended[extended.length - 1]);
+    }
+
+    @Test
+    public void testSmallFileIsOneChunk() throws Exception {
+        List<byte[]> chunks = split(LINE);
+        assertEquals(1, chunks.size());
+        assertArrayEquals(LINE, chunks.get(0));
+    }
+
+    // Splits the given content into chunks, checking that together they are the entire content
+    private static List<byte[]> split(final byte[] content) throws IOException {
+        File file = File.createTempFile("translate", ".nt");
+        try {
+            Files.write(file.toPath(), content);
+
+            List<byte[]> chunks = new LinkedList<>();
+            ByteArrayOutputStream joined = new ByteArrayOutputStream();
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long position = 0;
+                while (position < content.length) {
+                    byte[] chunk = Translate.nextChunk(channel, position, content.length);
+                    chunks.add(chunk);
+                    joined.write(chunk);
+                    position += chunk.length;
+                }
+            }
+
+            assertArrayEquals(content, joined.toByteArray());
+            return chunks;
+        } finally {
+            file.delete();
+        }
+    }
+}